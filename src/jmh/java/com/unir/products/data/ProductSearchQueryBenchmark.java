@@ -0,0 +1,62 @@
+package com.unir.products.data;
+
+import com.unir.products.model.request.ProductSearchCriteria;
+import org.elasticsearch.common.Strings;
+import org.elasticsearch.index.query.BoolQueryBuilder;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Construccion de la consulta de GET /products: la bool query y el cuerpo completo serializado a JSON,
+ * que es lo que el cliente envia al cluster, frente a la peticion por plantilla (id y parametros).
+ */
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(1)
+@State(Scope.Benchmark)
+public class ProductSearchQueryBenchmark {
+
+    @Param({"empty", "text", "full"})
+    public String criteria;
+
+    private final ProductSearchQueryFactory queryFactory = SearchResponseFixtures.QUERY_FACTORY;
+    private final ProductSearchTemplates searchTemplates = new ProductSearchTemplates(null, queryFactory, false);
+    private ProductSearchCriteria searchCriteria;
+
+    @Setup
+    public void setup() {
+        searchCriteria = switch (criteria) {
+            case "empty" -> ProductSearchCriteria.builder().build();
+            case "text" -> ProductSearchCriteria.builder().nombre("zapatillas running").build();
+            default -> SearchResponseFixtures.fullCriteria();
+        };
+    }
+
+    @Benchmark
+    public BoolQueryBuilder buildQuery() {
+        return queryFactory.buildQuery(searchCriteria);
+    }
+
+    @Benchmark
+    public String buildSearchJson() {
+        return Strings.toString(queryFactory.buildSearch(searchCriteria, 10, true));
+    }
+
+    @Benchmark
+    public String buildTemplateJson() {
+        return Strings.toString(searchTemplates.buildRequest("products", searchCriteria, 10, null, null));
+    }
+}
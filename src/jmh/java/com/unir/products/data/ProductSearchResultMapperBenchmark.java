@@ -0,0 +1,115 @@
+package com.unir.products.data;
+
+import com.fasterxml.jackson.databind.ObjectMapper;
+import com.unir.products.model.pojo.Product;
+import com.unir.products.model.request.ProductSearchCriteria;
+import com.unir.products.model.response.AggregationDetails;
+import org.elasticsearch.action.search.SearchResponse;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+import java.io.IOException;
+import java.io.OutputStream;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Mapeo de la respuesta de busqueda: parseo del JSON de Elasticsearch, conversion de hits a productos,
+ * buckets de las agregaciones y los query params de sus URIs. Tambien la serializacion de la pagina de productos,
+ * normal y ligera (lean=true); para comparar lo que reserva cada una: -Djmh.args="write -prof gc".
+ */
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(1)
+public class ProductSearchResultMapperBenchmark {
+
+    @State(Scope.Benchmark)
+    public static class Mapper {
+        final ProductSearchResultMapper mapper = new ProductSearchResultMapper(
+                SearchResponseFixtures.SERVER_FULL_ADDRESS, SearchResponseFixtures.offlineOperations(),
+                SearchResponseFixtures.QUERY_FACTORY);
+        final ProductSearchCriteria criteria = SearchResponseFixtures.fullCriteria();
+    }
+
+    @State(Scope.Benchmark)
+    public static class Json {
+        final ObjectMapper objectMapper = new ObjectMapper();
+    }
+
+    @State(Scope.Benchmark)
+    public static class Hits {
+        @Param({"10", "1000", "10000"})
+        public int hits;
+
+        byte[] json;
+        SearchResponse response;
+
+        @Setup
+        public void setup() {
+            json = SearchResponseFixtures.searchResponseJson(hits, 0);
+            response = SearchResponseFixtures.parse(json);
+        }
+    }
+
+    @State(Scope.Benchmark)
+    public static class Buckets {
+        @Param({"10", "100", "1000"})
+        public int buckets;
+
+        byte[] json;
+        SearchResponse response;
+
+        @Setup
+        public void setup() {
+            json = SearchResponseFixtures.searchResponseJson(0, buckets);
+            response = SearchResponseFixtures.parse(json);
+        }
+    }
+
+    @Benchmark
+    public SearchResponse parseHits(Hits fixture) {
+        return SearchResponseFixtures.parse(fixture.json);
+    }
+
+    @Benchmark
+    public List<Product> toProducts(Mapper mapper, Hits fixture) {
+        return mapper.mapper.toProducts(fixture.response.getHits().getHits());
+    }
+
+    @Benchmark
+    public void writeProducts(Mapper mapper, Json json, Hits fixture) throws IOException {
+        json.objectMapper.writeValue(OutputStream.nullOutputStream(), mapper.mapper.toProducts(fixture.response.getHits().getHits()));
+    }
+
+    @Benchmark
+    public void writeProductSources(Mapper mapper, Json json, Hits fixture) throws IOException {
+        json.objectMapper.writeValue(OutputStream.nullOutputStream(), mapper.mapper.toProductSources(fixture.response.getHits().getHits()));
+    }
+
+    @Benchmark
+    public SearchResponse parseBuckets(Buckets fixture) {
+        return SearchResponseFixtures.parse(fixture.json);
+    }
+
+    @Benchmark
+    public Map<String, List<AggregationDetails>> toFacets(Mapper mapper, Buckets fixture) {
+        return mapper.mapper.toFacets(mapper.criteria, fixture.response);
+    }
+
+    @Benchmark
+    public Map<String, String> getQueryParams(Mapper mapper) {
+        return mapper.mapper.getQueryParams(mapper.criteria);
+    }
+}
@@ -0,0 +1,135 @@
+package com.unir.products.data;
+
+import com.sun.net.httpserver.HttpServer;
+import com.unir.products.model.request.ProductSearchCriteria;
+import com.unir.products.model.response.ProductsQueryResponse;
+import io.github.resilience4j.bulkhead.Bulkhead;
+import io.github.resilience4j.bulkhead.BulkheadConfig;
+import io.github.resilience4j.circuitbreaker.CircuitBreaker;
+import io.micrometer.core.instrument.simple.SimpleMeterRegistry;
+import org.apache.http.HttpHost;
+import org.elasticsearch.client.RestClient;
+import org.elasticsearch.client.RestHighLevelClient;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Threads;
+import org.openjdk.jmh.annotations.Warmup;
+import org.springframework.core.env.StandardEnvironment;
+import org.springframework.data.elasticsearch.core.ElasticsearchRestTemplate;
+import org.springframework.test.util.ReflectionTestUtils;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.net.InetSocketAddress;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * Throughput de {@link DataAccessRepository#findProducts} de punta a punta: construccion de la consulta,
+ * serializacion, cliente HTTP, parseo y mapeo de la respuesta. En lugar de un cluster responde un servidor HTTP
+ * local con una respuesta de _search enlatada, de modo que lo que se mide es el coste del lado de la aplicacion.
+ * La cache de busquedas se deja sin efecto para que todas las llamadas lleguen al cliente.
+ */
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.SECONDS)
+@Warmup(iterations = 3, time = 5)
+@Measurement(iterations = 5, time = 5)
+@Fork(1)
+@Threads(8)
+@State(Scope.Benchmark)
+public class ProductSearchThroughputBenchmark {
+
+    @Param({"10", "1000"})
+    public int pageSize;
+
+    //Busqueda por plantilla o con la consulta completa. El servidor responde igual a las dos
+    @Param({"false", "true"})
+    public boolean templates;
+
+    private HttpServer server;
+    private ExecutorService serverExecutor;
+    private RestHighLevelClient client;
+    private DataAccessRepository repository;
+    private ElasticsearchResilience resilience;
+
+    //Criterios distintos por hilo: con criterios identicos las busquedas concurrentes se agruparian en una sola
+    @State(Scope.Thread)
+    public static class Criteria {
+        private static final AtomicInteger THREADS = new AtomicInteger();
+        final String nombre = "producto " + THREADS.incrementAndGet();
+    }
+
+    @Setup(Level.Trial)
+    public void setup() throws IOException {
+        byte[] body = SearchResponseFixtures.searchResponseJson(pageSize, 0);
+        server = HttpServer.create(new InetSocketAddress("127.0.0.1", 0), 0);
+        server.createContext("/", exchange -> {
+            try (InputStream request = exchange.getRequestBody()) {
+                request.readAllBytes();
+            }
+            exchange.getResponseHeaders().add("Content-Type", "application/json; charset=UTF-8");
+            exchange.sendResponseHeaders(200, body.length);
+            try (OutputStream response = exchange.getResponseBody()) {
+                response.write(body);
+            }
+        });
+        serverExecutor = Executors.newFixedThreadPool(8);
+        server.setExecutor(serverExecutor);
+        server.start();
+
+        client = new RestHighLevelClient(RestClient.builder(new HttpHost("127.0.0.1", server.getAddress().getPort(), "http")));
+        ElasticsearchRestTemplate operations = new ElasticsearchRestTemplate(client);
+        SimpleMeterRegistry meterRegistry = new SimpleMeterRegistry();
+
+        //Con un margen tras escritura tan largo la cache de busquedas nunca guarda respuestas
+        ProductsQueryCache queryCache = new ProductsQueryCache(10000, "30s", "365d", "10m", meterRegistry);
+        ProductsByIdCache productCache = new ProductsByIdCache(10000, "5m", false, "10s", meterRegistry);
+        queryCache.invalidateAll();
+        ElasticsearchMetrics metrics = new ElasticsearchMetrics(meterRegistry);
+        //Sin duplicar lecturas y con un bulkhead que no limita: se mide el coste del envoltorio, no su efecto
+        resilience = new ElasticsearchResilience(CircuitBreaker.ofDefaults("elasticsearch"),
+                Bulkhead.of("elasticsearch", BulkheadConfig.custom().maxConcurrentCalls(1000).build()),
+                metrics, new StandardEnvironment(), false, "50ms", 100);
+
+        repository = new DataAccessRepository(operations, client, queryCache, productCache,
+                SearchResponseFixtures.QUERY_FACTORY,
+                new ProductSearchResultMapper(SearchResponseFixtures.SERVER_FULL_ADDRESS, operations, SearchResponseFixtures.QUERY_FACTORY),
+                new ProductFields(operations),
+                new ProductsSuggestCache(10000, "30s", 3, meterRegistry),
+                metrics,
+                resilience,
+                null,
+                null,
+                new ProductSearchTemplates(client, SearchResponseFixtures.QUERY_FACTORY, templates));
+        ReflectionTestUtils.setField(repository, "defaultPageSize", 10);
+        ReflectionTestUtils.setField(repository, "maxPageSize", 1000);
+        ReflectionTestUtils.setField(repository, "pitKeepAlive", "1m");
+        ReflectionTestUtils.setField(repository, "slowQueryThreshold", "0");
+    }
+
+    @TearDown(Level.Trial)
+    public void tearDown() throws IOException {
+        client.close();
+        resilience.close();
+        server.stop(0);
+        serverExecutor.shutdownNow();
+    }
+
+    @Benchmark
+    public ProductsQueryResponse findProducts(Criteria criteria) {
+        return repository.findProducts(ProductSearchCriteria.builder().nombre(criteria.nombre).size(pageSize).build()).join();
+    }
+}
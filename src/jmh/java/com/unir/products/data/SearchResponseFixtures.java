@@ -0,0 +1,168 @@
+package com.unir.products.data;
+
+import com.fasterxml.jackson.databind.ObjectMapper;
+import com.unir.products.model.request.ProductSearchCriteria;
+import org.apache.http.HttpHost;
+import org.elasticsearch.action.search.SearchResponse;
+import org.elasticsearch.client.RestClient;
+import org.elasticsearch.client.RestHighLevelClient;
+import org.elasticsearch.common.ParseField;
+import org.elasticsearch.common.xcontent.DeprecationHandler;
+import org.elasticsearch.common.xcontent.NamedXContentRegistry;
+import org.elasticsearch.common.xcontent.XContentParser;
+import org.elasticsearch.common.xcontent.json.JsonXContent;
+import org.elasticsearch.search.aggregations.Aggregation;
+import org.elasticsearch.search.aggregations.bucket.histogram.HistogramAggregationBuilder;
+import org.elasticsearch.search.aggregations.bucket.histogram.ParsedHistogram;
+import org.elasticsearch.search.aggregations.bucket.terms.LongTerms;
+import org.elasticsearch.search.aggregations.bucket.terms.ParsedLongTerms;
+import org.elasticsearch.search.aggregations.bucket.terms.ParsedStringTerms;
+import org.elasticsearch.search.aggregations.bucket.terms.StringTerms;
+import org.springframework.data.elasticsearch.core.ElasticsearchOperations;
+import org.springframework.data.elasticsearch.core.ElasticsearchRestTemplate;
+
+import java.io.IOException;
+import java.io.UncheckedIOException;
+import java.util.ArrayList;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.function.IntFunction;
+
+/**
+ * Respuestas de busqueda enlatadas para los benchmarks, con el mismo formato que devuelve Elasticsearch 7.10
+ * (incluido typed_keys en las agregaciones, como las pide el cliente de alto nivel).
+ */
+final class SearchResponseFixtures {
+
+    static final String SERVER_FULL_ADDRESS = "http://localhost:8088";
+
+    static final ProductSearchQueryFactory QUERY_FACTORY = new ProductSearchQueryFactory(100, 50, 10, 1000);
+
+    private static final ObjectMapper MAPPER = new ObjectMapper();
+
+    //El cliente de alto nivel no expone su registro de parsers; registramos solo los de las agregaciones que usamos
+    private static final NamedXContentRegistry REGISTRY = new NamedXContentRegistry(List.of(
+            new NamedXContentRegistry.Entry(Aggregation.class, new ParseField(StringTerms.NAME),
+                    (parser, name) -> ParsedStringTerms.fromXContent(parser, (String) name)),
+            new NamedXContentRegistry.Entry(Aggregation.class, new ParseField(LongTerms.NAME),
+                    (parser, name) -> ParsedLongTerms.fromXContent(parser, (String) name)),
+            new NamedXContentRegistry.Entry(Aggregation.class, new ParseField(HistogramAggregationBuilder.NAME),
+                    (parser, name) -> ParsedHistogram.fromXContent(parser, (String) name))));
+
+    private SearchResponseFixtures() {
+    }
+
+    /**
+     * Cuerpo JSON de una respuesta de _search.
+     *
+     * @param hits    - numero de productos devueltos
+     * @param buckets - numero de buckets por agregacion, 0 para no incluir agregaciones
+     */
+    static byte[] searchResponseJson(int hits, int buckets) {
+        List<Map<String, Object>> hitList = new ArrayList<>(hits);
+        for (int i = 0; i < hits; i++) {
+            String codigo = String.format("P%06d", i);
+            Map<String, Object> source = new LinkedHashMap<>();
+            source.put("codigo", codigo);
+            source.put("nombre", "Producto de prueba " + i);
+            source.put("categoria", "categoria-" + (i % Math.max(buckets, 1)));
+            source.put("empresaAsociada", "Empresa " + (i % 50));
+            source.put("descripcionCorta", "Descripcion corta del producto " + i);
+            source.put("descripcionLarga", "Descripcion larga del producto " + i + ", con bastante mas texto que la corta para"
+                    + " que el _source tenga un tamaño parecido al de un producto real del catalogo.");
+            source.put("Producto", "Producto " + i);
+            source.put("precio", 100 + i);
+            source.put("cantidadDisponible", i % 20);
+            source.put("puntuacion", i % 5);
+            source.put("imagen", "https://cdn.example.com/products/" + codigo + ".jpg");
+
+            Map<String, Object> hit = new LinkedHashMap<>();
+            hit.put("_index", "products");
+            hit.put("_type", "_doc");
+            hit.put("_id", "id-" + i);
+            hit.put("_score", 1.0);
+            hit.put("_source", source);
+            hit.put("sort", List.of(1.0, codigo));
+            hitList.add(hit);
+        }
+
+        Map<String, Object> body = new LinkedHashMap<>();
+        body.put("took", 3);
+        body.put("timed_out", false);
+        body.put("_shards", Map.of("total", 1, "successful", 1, "skipped", 0, "failed", 0));
+        Map<String, Object> hitsSection = new LinkedHashMap<>();
+        hitsSection.put("max_score", null);
+        hitsSection.put("hits", hitList);
+        body.put("hits", hitsSection);
+
+        if (buckets > 0) {
+            Map<String, Object> aggregations = new LinkedHashMap<>();
+            aggregations.put(StringTerms.NAME + "#" + ProductSearchQueryFactory.FACET_CATEGORIA, terms(buckets, i -> "categoria-" + i));
+            aggregations.put(StringTerms.NAME + "#" + ProductSearchQueryFactory.FACET_EMPRESA, terms(buckets, i -> "Empresa " + i));
+            aggregations.put(HistogramAggregationBuilder.NAME + "#" + ProductSearchQueryFactory.FACET_PRECIO,
+                    Map.of("buckets", buckets(buckets, i -> i * 1000.0)));
+            aggregations.put(LongTerms.NAME + "#" + ProductSearchQueryFactory.FACET_PUNTUACION, terms(5, i -> i));
+            body.put("aggregations", aggregations);
+        }
+
+        try {
+            return MAPPER.writeValueAsBytes(body);
+        } catch (IOException e) {
+            throw new UncheckedIOException(e);
+        }
+    }
+
+    private static Map<String, Object> terms(int buckets, IntFunction<Object> key) {
+        Map<String, Object> terms = new LinkedHashMap<>();
+        terms.put("doc_count_error_upper_bound", 0);
+        terms.put("sum_other_doc_count", 0);
+        terms.put("buckets", buckets(buckets, key));
+        return terms;
+    }
+
+    private static List<Map<String, Object>> buckets(int buckets, IntFunction<Object> key) {
+        List<Map<String, Object>> bucketList = new ArrayList<>(buckets);
+        for (int i = 0; i < buckets; i++) {
+            bucketList.add(Map.of("key", key.apply(i), "doc_count", buckets - i));
+        }
+        return bucketList;
+    }
+
+    static SearchResponse parse(byte[] json) {
+        try (XContentParser parser = JsonXContent.jsonXContent.createParser(REGISTRY,
+                DeprecationHandler.THROW_UNSUPPORTED_OPERATION, json)) {
+            return SearchResponse.fromXContent(parser);
+        } catch (IOException e) {
+            throw new UncheckedIOException(e);
+        }
+    }
+
+    static SearchResponse searchResponse(int hits, int buckets) {
+        return parse(searchResponseJson(hits, buckets));
+    }
+
+    /**
+     * Criterios con todos los parametros informados: el peor caso para la consulta y para las URIs de las agregaciones.
+     */
+    static ProductSearchCriteria fullCriteria() {
+        return ProductSearchCriteria.builder()
+                .nombre("zapatillas running")
+                .categoria("deporte")
+                .descripcionCorta("amortiguacion")
+                .descripcionLarga("suela de goma transpirable")
+                .valorunitario(5000d)
+                .indValorUnitario(1)
+                .precioMin(1000d)
+                .precioMax(9000d)
+                .aggregate(Boolean.TRUE)
+                .build();
+    }
+
+    /**
+     * Plantilla de Spring Data sobre un cliente que no llega a conectarse: solo se usa su conversor.
+     */
+    static ElasticsearchOperations offlineOperations() {
+        return new ElasticsearchRestTemplate(new RestHighLevelClient(RestClient.builder(new HttpHost("localhost", 9200))));
+    }
+}
@@ -2,8 +2,11 @@ package com.unir.products;
 
 import org.springframework.boot.SpringApplication;
 import org.springframework.boot.autoconfigure.SpringBootApplication;
+import org.springframework.boot.autoconfigure.elasticsearch.ElasticsearchRestClientAutoConfiguration;
 
-@SpringBootApplication
+//El cliente de Elasticsearch se configura en ElasticsearchConfig. La autoconfiguracion de Spring Boot
+//crearia ademas un Sniffer propio siempre que la libreria esta en el classpath, aunque el sniffing este desactivado
+@SpringBootApplication(exclude = ElasticsearchRestClientAutoConfiguration.class)
 public class ProductosElasticsearch {
 
 	public static void main(String[] args) {
@@ -0,0 +1,47 @@
+package com.unir.products.config;
+
+import org.elasticsearch.common.unit.TimeValue;
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.context.annotation.Configuration;
+import org.springframework.web.context.request.NativeWebRequest;
+import org.springframework.web.context.request.RequestAttributes;
+import org.springframework.web.context.request.async.AsyncWebRequest;
+import org.springframework.web.context.request.async.CallableProcessingInterceptor;
+import org.springframework.web.servlet.config.annotation.AsyncSupportConfigurer;
+import org.springframework.web.servlet.config.annotation.WebMvcConfigurer;
+
+import java.util.concurrent.Callable;
+
+/**
+ * Timeout de las peticiones que se sirven de forma asincrona. Todas usan el general de Spring MVC
+ * (spring.mvc.async.request-timeout, o el del contenedor si no se indica) salvo las marcadas con
+ * {@link #LONG_REQUEST_ATTRIBUTE}, como las exportaciones, que usan elasticsearch.export.request-timeout.
+ */
+@Configuration
+public class AsyncRequestConfig implements WebMvcConfigurer {
+
+    /**
+     * Atributo de la peticion que la marca como larga. Hay que ponerlo antes de devolver la respuesta asincrona.
+     */
+    public static final String LONG_REQUEST_ATTRIBUTE = AsyncRequestConfig.class.getName() + ".longRequest";
+
+    private final long longRequestTimeoutMillis;
+
+    public AsyncRequestConfig(@Value("${elasticsearch.export.request-timeout:30m}") String longRequestTimeout) {
+        this.longRequestTimeoutMillis = TimeValue.parseTimeValue(longRequestTimeout, "elasticsearch.export.request-timeout").millis();
+    }
+
+    @Override
+    public void configureAsyncSupport(AsyncSupportConfigurer configurer) {
+        //Se aplica justo antes de pasar la peticion a modo asincrono, que es cuando se fija su timeout
+        configurer.registerCallableInterceptors(new CallableProcessingInterceptor() {
+            @Override
+            public <T> void beforeConcurrentHandling(NativeWebRequest request, Callable<T> task) {
+                if (request instanceof AsyncWebRequest asyncRequest
+                        && request.getAttribute(LONG_REQUEST_ATTRIBUTE, RequestAttributes.SCOPE_REQUEST) != null) {
+                    asyncRequest.setTimeout(longRequestTimeoutMillis);
+                }
+            }
+        });
+    }
+}
@@ -1,47 +1,281 @@
 package com.unir.products.config;
 
+import com.unir.products.data.ElasticsearchResilience;
+import io.github.resilience4j.bulkhead.Bulkhead;
+import io.github.resilience4j.bulkhead.BulkheadConfig;
+import io.github.resilience4j.bulkhead.BulkheadRegistry;
+import io.github.resilience4j.circuitbreaker.CircuitBreaker;
+import io.github.resilience4j.circuitbreaker.CircuitBreakerConfig;
+import io.github.resilience4j.circuitbreaker.CircuitBreakerRegistry;
+import io.github.resilience4j.micrometer.tagged.TaggedBulkheadMetrics;
+import io.github.resilience4j.micrometer.tagged.TaggedCircuitBreakerMetrics;
+import io.micrometer.core.instrument.DistributionSummary;
+import io.micrometer.core.instrument.Gauge;
+import io.micrometer.core.instrument.MeterRegistry;
+import org.apache.http.HttpEntity;
 import org.apache.http.HttpHost;
+import org.apache.http.HttpRequest;
+import org.apache.http.HttpResponseInterceptor;
 import org.apache.http.auth.AuthScope;
 import org.apache.http.auth.UsernamePasswordCredentials;
 import org.apache.http.client.CredentialsProvider;
+import org.apache.http.config.RegistryBuilder;
 import org.apache.http.impl.client.BasicCredentialsProvider;
+import org.apache.http.impl.client.DefaultConnectionKeepAliveStrategy;
 import org.apache.http.impl.nio.client.HttpAsyncClientBuilder;
+import org.apache.http.impl.nio.conn.PoolingNHttpClientConnectionManager;
+import org.apache.http.impl.nio.reactor.DefaultConnectingIOReactor;
+import org.apache.http.impl.nio.reactor.IOReactorConfig;
+import org.apache.http.nio.conn.NoopIOSessionStrategy;
+import org.apache.http.nio.conn.SchemeIOSessionStrategy;
+import org.apache.http.nio.conn.ssl.SSLIOSessionStrategy;
+import org.apache.http.nio.reactor.IOReactorException;
+import org.apache.http.protocol.HttpCoreContext;
 import org.elasticsearch.client.RestClient;
 import org.elasticsearch.client.RestClientBuilder;
 import org.elasticsearch.client.RestHighLevelClient;
+import org.elasticsearch.client.sniff.ElasticsearchNodesSniffer;
+import org.elasticsearch.client.sniff.SniffOnFailureListener;
+import org.elasticsearch.client.sniff.Sniffer;
+import org.elasticsearch.common.unit.TimeValue;
 import org.springframework.beans.factory.annotation.Value;
+import org.springframework.boot.autoconfigure.condition.ConditionalOnProperty;
 import org.springframework.context.annotation.Bean;
 import org.springframework.context.annotation.Configuration;
 import org.springframework.data.elasticsearch.core.ElasticsearchOperations;
 import org.springframework.data.elasticsearch.core.ElasticsearchRestTemplate;
 import org.springframework.data.elasticsearch.repository.config.EnableElasticsearchRepositories;
 
+import java.time.Duration;
+import java.util.Arrays;
+
 @Configuration
 @EnableElasticsearchRepositories(basePackages = "com.unir.products.data")
 public class ElasticsearchConfig {
 
+    // Uno o varios nodos separados por comas. Cada uno puede ser "host", "host:puerto" o "https://host:puerto"
     @Value("${elasticsearch.host}")
     private String clusterEndpoint;
+    @Value("${elasticsearch.port:443}")
+    private int port;
+    @Value("${elasticsearch.scheme:https}")
+    private String scheme;
     @Value("${elasticsearch.credentials.user}")
     private String username;
     @Value("${elasticsearch.credentials.password}")
     private String password;
 
-    @Bean
-    public ElasticsearchOperations elasticsearchTemplate() {
+    @Value("${elasticsearch.client.max-connections:100}")
+    private int maxConnections;
+    @Value("${elasticsearch.client.max-connections-per-route:50}")
+    private int maxConnectionsPerRoute;
+    // 0 = tantos hilos de IO como procesadores
+    @Value("${elasticsearch.client.io-threads:0}")
+    private int ioThreads;
+    @Value("${elasticsearch.client.connect-timeout:1s}")
+    private String connectTimeout;
+    @Value("${elasticsearch.client.socket-timeout:30s}")
+    private String socketTimeout;
+    // Tiempo maximo esperando a que quede libre una conexion del pool
+    @Value("${elasticsearch.client.connection-request-timeout:1s}")
+    private String connectionRequestTimeout;
+    @Value("${elasticsearch.client.keep-alive:60s}")
+    private String keepAlive;
+    @Value("${elasticsearch.client.compression:false}")
+    private boolean compression;
+    @Value("${elasticsearch.client.sniffer.enabled:false}")
+    private boolean sniffing;
+
+    private final SniffOnFailureListener sniffOnFailureListener = new SniffOnFailureListener();
+
+    // El cliente se expone como bean para las operaciones que Spring Data no cubre (point in time, bulk, scripts...)
+    @Bean(destroyMethod = "close")
+    public RestHighLevelClient elasticsearchClient(MeterRegistry meterRegistry) throws IOReactorException {
 
         final CredentialsProvider credentialsProvider = new BasicCredentialsProvider();
         credentialsProvider.setCredentials(AuthScope.ANY,
                 new UsernamePasswordCredentials(username, password));
 
-        return new ElasticsearchRestTemplate(
-                new RestHighLevelClient(RestClient.builder(new HttpHost(clusterEndpoint, 443, "https"))
-                        .setHttpClientConfigCallback(new RestClientBuilder.HttpClientConfigCallback() {
-                            @Override
-                            public HttpAsyncClientBuilder customizeHttpClient(
-                                    HttpAsyncClientBuilder httpClientBuilder) {
-                                return httpClientBuilder.setDefaultCredentialsProvider(credentialsProvider);
-                            }
-                        })));
-    }
-}
\ No newline at end of file
+        final PoolingNHttpClientConnectionManager connectionManager = connectionManager();
+        registerPoolMetrics(connectionManager, meterRegistry);
+        final long keepAliveMillis = millis(keepAlive, "elasticsearch.client.keep-alive");
+
+        RestClientBuilder builder = RestClient.builder(hosts())
+                .setCompressionEnabled(compression)
+                .setRequestConfigCallback(requestConfig -> requestConfig
+                        .setConnectTimeout((int) millis(connectTimeout, "elasticsearch.client.connect-timeout"))
+                        .setSocketTimeout((int) millis(socketTimeout, "elasticsearch.client.socket-timeout"))
+                        .setConnectionRequestTimeout((int) millis(connectionRequestTimeout, "elasticsearch.client.connection-request-timeout")))
+                .setHttpClientConfigCallback(new RestClientBuilder.HttpClientConfigCallback() {
+                    @Override
+                    public HttpAsyncClientBuilder customizeHttpClient(
+                            HttpAsyncClientBuilder httpClientBuilder) {
+                        return httpClientBuilder.setDefaultCredentialsProvider(credentialsProvider)
+                                .setConnectionManager(connectionManager)
+                                .addInterceptorLast(responseSizeInterceptor(meterRegistry))
+                                //Nunca reutilizamos una conexion mas alla del keep-alive configurado, aunque el servidor no lo limite
+                                .setKeepAliveStrategy((response, context) -> {
+                                    long serverKeepAlive = DefaultConnectionKeepAliveStrategy.INSTANCE.getKeepAliveDuration(response, context);
+                                    return serverKeepAlive > 0 ? Math.min(serverKeepAlive, keepAliveMillis) : keepAliveMillis;
+                                });
+                    }
+                });
+        if (sniffing) {
+            builder.setFailureListener(sniffOnFailureListener);
+        }
+        return new RestHighLevelClient(builder);
+    }
+
+    /**
+     * Descubre periodicamente los nodos del cluster y, si falla un nodo, vuelve a descubrirlos de inmediato.
+     * Solo tiene sentido con acceso directo a los nodos; detras de un balanceador o en un servicio gestionado
+     * debe quedar desactivado.
+     */
+    @Bean(destroyMethod = "close")
+    @ConditionalOnProperty(name = "elasticsearch.client.sniffer.enabled", havingValue = "true")
+    public Sniffer elasticsearchSniffer(RestHighLevelClient elasticsearchClient,
+                                        @Value("${elasticsearch.client.sniffer.interval:5m}") String interval,
+                                        @Value("${elasticsearch.client.sniffer.delay-after-failure:1m}") String delayAfterFailure) {
+        RestClient restClient = elasticsearchClient.getLowLevelClient();
+        Sniffer sniffer = Sniffer.builder(restClient)
+                .setNodesSniffer(new ElasticsearchNodesSniffer(restClient,
+                        ElasticsearchNodesSniffer.DEFAULT_SNIFF_REQUEST_TIMEOUT,
+                        "https".equalsIgnoreCase(scheme) ? ElasticsearchNodesSniffer.Scheme.HTTPS : ElasticsearchNodesSniffer.Scheme.HTTP))
+                .setSniffIntervalMillis((int) millis(interval, "elasticsearch.client.sniffer.interval"))
+                .setSniffAfterFailureDelayMillis((int) millis(delayAfterFailure, "elasticsearch.client.sniffer.delay-after-failure"))
+                .build();
+        sniffOnFailureListener.setSniffer(sniffer);
+        return sniffer;
+    }
+
+    /**
+     * Circuit breaker comun a todas las llamadas al cluster. Se abre si fallan o van lentas demasiadas de las ultimas
+     * llamadas, y mientras esta abierto las peticiones se rechazan al momento en lugar de esperar al timeout. Solo
+     * cuentan como fallo los errores del cluster (red, timeouts, 5xx y 429), no los 4xx de la propia peticion.
+     */
+    @Bean
+    public CircuitBreaker elasticsearchCircuitBreaker(MeterRegistry meterRegistry,
+                                                      @Value("${elasticsearch.resilience.circuit-breaker.failure-rate-threshold:50}") float failureRateThreshold,
+                                                      @Value("${elasticsearch.resilience.circuit-breaker.slow-call-duration-threshold:2s}") String slowCallDurationThreshold,
+                                                      @Value("${elasticsearch.resilience.circuit-breaker.slow-call-rate-threshold:80}") float slowCallRateThreshold,
+                                                      @Value("${elasticsearch.resilience.circuit-breaker.sliding-window-size:100}") int slidingWindowSize,
+                                                      @Value("${elasticsearch.resilience.circuit-breaker.minimum-number-of-calls:20}") int minimumNumberOfCalls,
+                                                      @Value("${elasticsearch.resilience.circuit-breaker.wait-duration-in-open-state:10s}") String waitDurationInOpenState) {
+        CircuitBreakerRegistry registry = CircuitBreakerRegistry.of(CircuitBreakerConfig.custom()
+                .failureRateThreshold(failureRateThreshold)
+                .slowCallDurationThreshold(Duration.ofMillis(millis(slowCallDurationThreshold, "elasticsearch.resilience.circuit-breaker.slow-call-duration-threshold")))
+                .slowCallRateThreshold(slowCallRateThreshold)
+                .slidingWindowSize(slidingWindowSize)
+                .minimumNumberOfCalls(minimumNumberOfCalls)
+                .waitDurationInOpenState(Duration.ofMillis(millis(waitDurationInOpenState, "elasticsearch.resilience.circuit-breaker.wait-duration-in-open-state")))
+                .recordException(ElasticsearchResilience::isClusterFailure)
+                .build());
+        TaggedCircuitBreakerMetrics.ofCircuitBreakerRegistry(registry).bindTo(meterRegistry);
+        return registry.circuitBreaker("elasticsearch");
+    }
+
+    /**
+     * Limite de llamadas concurrentes al cluster. Por encima se rechazan al momento (max-wait 0) en lugar de encolarse:
+     * si el cluster va lento, las peticiones no se acumulan ocupando hilos y conexiones.
+     */
+    @Bean
+    public Bulkhead elasticsearchBulkhead(MeterRegistry meterRegistry,
+                                          @Value("${elasticsearch.resilience.bulkhead.max-concurrent-calls:80}") int maxConcurrentCalls,
+                                          @Value("${elasticsearch.resilience.bulkhead.max-wait:0ms}") String maxWait) {
+        BulkheadRegistry registry = BulkheadRegistry.of(BulkheadConfig.custom()
+                .maxConcurrentCalls(maxConcurrentCalls)
+                .maxWaitDuration(Duration.ofMillis(millis(maxWait, "elasticsearch.resilience.bulkhead.max-wait")))
+                .build());
+        TaggedBulkheadMetrics.ofBulkheadRegistry(registry).bindTo(meterRegistry);
+        return registry.bulkhead("elasticsearch");
+    }
+
+    @Bean
+    public ElasticsearchOperations elasticsearchTemplate(RestHighLevelClient elasticsearchClient) {
+        return new ElasticsearchRestTemplate(elasticsearchClient);
+    }
+
+    /**
+     * Pool de conexiones propio en lugar del que crea el cliente (30 conexiones en total y 10 por nodo), para poder
+     * dimensionarlo y publicar su ocupacion.
+     */
+    private PoolingNHttpClientConnectionManager connectionManager() throws IOReactorException {
+        IOReactorConfig.Builder ioReactorConfig = IOReactorConfig.custom()
+                .setSoKeepAlive(true)
+                .setConnectTimeout((int) millis(connectTimeout, "elasticsearch.client.connect-timeout"))
+                .setSoTimeout((int) millis(socketTimeout, "elasticsearch.client.socket-timeout"));
+        if (ioThreads > 0) {
+            ioReactorConfig.setIoThreadCount(ioThreads);
+        }
+
+        PoolingNHttpClientConnectionManager connectionManager = new PoolingNHttpClientConnectionManager(
+                new DefaultConnectingIOReactor(ioReactorConfig.build()),
+                RegistryBuilder.<SchemeIOSessionStrategy>create()
+                        .register("http", NoopIOSessionStrategy.INSTANCE)
+                        .register("https", SSLIOSessionStrategy.getSystemDefaultStrategy())
+                        .build());
+        connectionManager.setMaxTotal(maxConnections);
+        connectionManager.setDefaultMaxPerRoute(maxConnectionsPerRoute);
+        return connectionManager;
+    }
+
+    private void registerPoolMetrics(PoolingNHttpClientConnectionManager connectionManager, MeterRegistry meterRegistry) {
+        Gauge.builder("elasticsearch.client.pool.leased", connectionManager, manager -> manager.getTotalStats().getLeased())
+                .description("Conexiones en uso").register(meterRegistry);
+        Gauge.builder("elasticsearch.client.pool.available", connectionManager, manager -> manager.getTotalStats().getAvailable())
+                .description("Conexiones abiertas y libres").register(meterRegistry);
+        Gauge.builder("elasticsearch.client.pool.pending", connectionManager, manager -> manager.getTotalStats().getPending())
+                .description("Peticiones esperando una conexion").register(meterRegistry);
+        Gauge.builder("elasticsearch.client.pool.max", connectionManager, manager -> manager.getTotalStats().getMax())
+                .description("Tamaño maximo del pool").register(meterRegistry);
+    }
+
+    /**
+     * Tamaño de las respuestas de Elasticsearch por endpoint (_search, _doc, _mget...), tal y como llegan por la
+     * red: con compresion activa es el tamaño comprimido. Las respuestas sin Content-Length no se cuentan.
+     */
+    private HttpResponseInterceptor responseSizeInterceptor(MeterRegistry meterRegistry) {
+        return (response, context) -> {
+            HttpEntity entity = response.getEntity();
+            if (entity == null || entity.getContentLength() < 0) {
+                return;
+            }
+            HttpRequest request = HttpCoreContext.adapt(context).getRequest();
+            DistributionSummary.builder("elasticsearch.client.response.size")
+                    .description("Tamaño de las respuestas de Elasticsearch")
+                    .baseUnit("bytes")
+                    .tag("endpoint", request == null ? "other" : endpoint(request.getRequestLine().getUri()))
+                    .register(meterRegistry)
+                    .record(entity.getContentLength());
+        };
+    }
+
+    /**
+     * El ultimo segmento de la ruta que empieza por "_" (/products/_doc/1 -> _doc), para no etiquetar por id.
+     */
+    private static String endpoint(String uri) {
+        int query = uri.indexOf('?');
+        String[] segments = (query < 0 ? uri : uri.substring(0, query)).split("/");
+        for (int i = segments.length - 1; i >= 0; i--) {
+            if (segments[i].startsWith("_")) {
+                return segments[i];
+            }
+        }
+        return "other";
+    }
+
+    private HttpHost[] hosts() {
+        return Arrays.stream(clusterEndpoint.split(","))
+                .map(String::trim)
+                .filter(host -> !host.isEmpty())
+                .map(host -> {
+                    HttpHost parsed = HttpHost.create(host.contains("://") ? host : scheme + "://" + host);
+                    return parsed.getPort() > 0 ? parsed : new HttpHost(parsed.getHostName(), port, parsed.getSchemeName());
+                })
+                .toArray(HttpHost[]::new);
+    }
+
+    private static long millis(String value, String setting) {
+        return TimeValue.parseTimeValue(value, setting).millis();
+    }
+}
@@ -0,0 +1,117 @@
+package com.unir.products.controller;
+
+import com.unir.products.model.response.ReindexTask;
+import com.unir.products.service.ProductsService;
+import io.swagger.v3.oas.annotations.Operation;
+import io.swagger.v3.oas.annotations.Parameter;
+import io.swagger.v3.oas.annotations.media.Content;
+import io.swagger.v3.oas.annotations.media.Schema;
+import io.swagger.v3.oas.annotations.responses.ApiResponse;
+import io.swagger.v3.oas.annotations.tags.Tag;
+import lombok.extern.slf4j.Slf4j;
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.boot.autoconfigure.condition.ConditionalOnProperty;
+import org.springframework.dao.ConcurrencyFailureException;
+import org.springframework.http.HttpStatus;
+import org.springframework.http.ResponseEntity;
+import org.springframework.web.bind.annotation.GetMapping;
+import org.springframework.web.bind.annotation.PathVariable;
+import org.springframework.web.bind.annotation.PostMapping;
+import org.springframework.web.bind.annotation.RequestHeader;
+import org.springframework.web.bind.annotation.RequestParam;
+import org.springframework.web.bind.annotation.RestController;
+
+import java.net.URI;
+import java.nio.charset.StandardCharsets;
+import java.security.MessageDigest;
+
+/**
+ * Operaciones de administracion del indice de productos. Solo existen con admin.api.enabled=true y exigen la
+ * cabecera X-Admin-Token con el valor de admin.api.token; sin token configurado se rechazan todas.
+ */
+@RestController
+@ConditionalOnProperty(name = "admin.api.enabled", havingValue = "true")
+@Slf4j
+@Tag(name = "Products Admin Controller", description = "Operaciones de administracion del indice de productos.")
+public class ProductsAdminController {
+
+    private static final String TOKEN_HEADER = "X-Admin-Token";
+
+    private final ProductsService service;
+    private final byte[] token;
+
+    public ProductsAdminController(ProductsService service, @Value("${admin.api.token:}") String token) {
+        this.service = service;
+        this.token = token.getBytes(StandardCharsets.UTF_8);
+        if (token.isBlank()) {
+            log.warn("admin.api.enabled sin admin.api.token: se rechazaran todas las operaciones de administracion");
+        }
+    }
+
+    @PostMapping("/admin/products/_reindex")
+    @Operation(
+            operationId = "Reindexar productos",
+            description = "Operacion de administracion",
+            summary = "Se lanza en segundo plano la copia de los productos a un indice nuevo con los mappings y settings actuales "
+                    + "y el cambio de los alias de lectura y escritura. Las busquedas siguen funcionando durante todo el proceso.")
+    @ApiResponse(
+            responseCode = "202",
+            content = @Content(mediaType = "application/json", schema = @Schema(implementation = ReindexTask.class)),
+            description = "Reindexacion lanzada. Su estado se consulta en la URL de la cabecera Location.")
+    @ApiResponse(
+            responseCode = "403",
+            content = @Content(mediaType = "application/json", schema = @Schema(implementation = Void.class)),
+            description = "Falta la cabecera X-Admin-Token o no es valida.")
+    @ApiResponse(
+            responseCode = "409",
+            content = @Content(mediaType = "application/json", schema = @Schema(implementation = Void.class)),
+            description = "Ya hay una reindexacion en curso.")
+    public ResponseEntity<ReindexTask> reindexProducts(
+            @RequestHeader(name = TOKEN_HEADER, required = false) String adminToken,
+            @Parameter(name = "deletePrevious", description = "Borrar el indice anterior al terminar", example = "false", required = false)
+            @RequestParam(required = false, defaultValue = "false") boolean deletePrevious) {
+
+        if (!isAuthorized(adminToken)) {
+            return ResponseEntity.status(HttpStatus.FORBIDDEN).build();
+        }
+        try {
+            ReindexTask task = service.reindexProducts(deletePrevious);
+            return ResponseEntity.accepted().location(URI.create("/admin/products/_reindex/" + task.getId())).body(task);
+        } catch (ConcurrencyFailureException e) {
+            log.warn("Reindexacion no iniciada: {}", e.getMessage());
+            return ResponseEntity.status(HttpStatus.CONFLICT).build();
+        }
+    }
+
+    @GetMapping("/admin/products/_reindex/{taskId}")
+    @Operation(
+            operationId = "Consultar una reindexacion",
+            description = "Operacion de administracion",
+            summary = "Se devuelve el estado de una reindexacion lanzada por esta instancia y, al terminar, su resumen o el motivo del fallo.")
+    @ApiResponse(
+            responseCode = "200",
+            content = @Content(mediaType = "application/json", schema = @Schema(implementation = ReindexTask.class)))
+    @ApiResponse(
+            responseCode = "403",
+            content = @Content(mediaType = "application/json", schema = @Schema(implementation = Void.class)),
+            description = "Falta la cabecera X-Admin-Token o no es valida.")
+    @ApiResponse(
+            responseCode = "404",
+            content = @Content(mediaType = "application/json", schema = @Schema(implementation = Void.class)),
+            description = "No hay ninguna reindexacion reciente con ese identificador en esta instancia.")
+    public ResponseEntity<ReindexTask> getReindexTask(
+            @RequestHeader(name = TOKEN_HEADER, required = false) String adminToken,
+            @PathVariable String taskId) {
+
+        if (!isAuthorized(adminToken)) {
+            return ResponseEntity.status(HttpStatus.FORBIDDEN).build();
+        }
+        return service.getReindexTask(taskId).map(ResponseEntity::ok).orElseGet(() -> ResponseEntity.notFound().build());
+    }
+
+    private boolean isAuthorized(String adminToken) {
+        //Comparacion en tiempo constante para no dar pistas del token
+        return token.length > 0 && adminToken != null
+                && MessageDigest.isEqual(token, adminToken.getBytes(StandardCharsets.UTF_8));
+    }
+}
@@ -1,19 +1,41 @@
 package com.unir.products.controller;
 
+import javax.servlet.http.HttpServletRequest;
+import java.io.InputStream;
 import java.util.*;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CompletionException;
 
 import com.unir.products.model.pojo.ProductDto;
+import com.unir.products.model.request.ProductMultiGetRequest;
+import com.unir.products.model.request.ProductSearchCriteria;
+import com.unir.products.model.request.StockAdjustment;
+import com.unir.products.model.response.BulkIngestResponse;
+import com.unir.products.model.response.ProductChangesResponse;
+import com.unir.products.model.response.ProductMultiGetItem;
+import com.unir.products.model.response.ProductMultiSearchItem;
+import com.unir.products.model.response.ProductSuggestion;
 import com.unir.products.model.response.ProductsQueryResponse;
+import com.unir.products.model.response.StockAdjustmentResult;
+import io.github.resilience4j.bulkhead.BulkheadFullException;
+import io.github.resilience4j.circuitbreaker.CallNotPermittedException;
 import io.swagger.v3.oas.annotations.Operation;
 import io.swagger.v3.oas.annotations.Parameter;
 import io.swagger.v3.oas.annotations.media.Content;
 import io.swagger.v3.oas.annotations.media.Schema;
 import io.swagger.v3.oas.annotations.responses.ApiResponse;
 import io.swagger.v3.oas.annotations.tags.Tag;
+import org.springframework.dao.OptimisticLockingFailureException;
+import org.springframework.dao.TransientDataAccessResourceException;
+import org.springframework.data.elasticsearch.core.query.SeqNoPrimaryTerm;
+import org.springframework.http.HttpHeaders;
 import org.springframework.http.HttpStatus;
+import org.springframework.http.MediaType;
 import org.springframework.http.ResponseEntity;
 import org.springframework.web.bind.annotation.*;
+import org.springframework.web.servlet.mvc.method.annotation.StreamingResponseBody;
 
+import com.unir.products.config.AsyncRequestConfig;
 import com.unir.products.model.pojo.Product;
 import com.unir.products.model.request.CreateProductRequest;
 import com.unir.products.service.ProductsService;
@@ -37,8 +59,7 @@ public class ProductsController {
     @ApiResponse(
             responseCode = "200",
             content = @Content(mediaType = "application/json", schema = @Schema(implementation = Product.class)))
-    public ResponseEntity<ProductsQueryResponse> getProducts(
-            @RequestHeader Map<String, String> headers,
+    public CompletableFuture<ResponseEntity<ProductsQueryResponse>> getProducts(
             @Parameter(name = "nombre", description = "Nombre del producto. No tiene por que ser exacto", example = "iPhone", required = false)
             @RequestParam(required = false) String nombre,
             @Parameter(name = "categoria", description = "País del producto. Debe ser exacto", example = "ES", required = false)
@@ -51,16 +72,210 @@ public class ProductsController {
             @RequestParam(required = false) Double valorunitario,
             @Parameter(name = "indValorUnitario", description = "Indicador de busqueda del Precio de producto si es 1 es menor igual al precio indicado si es 2 es mayor igual al precio indicado, si no se especifica lo tomara como igual al precio indicado", example = "1", required = false)
             @RequestParam(required = false) Integer indValorUnitario,
-            @Parameter(name = "aggregate", description = "Indicar si quiere agregacion por categoria", example = "true", required = false)
-            @RequestParam(required = false, defaultValue = "false") Boolean aggregate ) {
+            @Parameter(name = "precioMin", description = "Precio minimo del producto (incluido)", example = "1000", required = false)
+            @RequestParam(required = false) Double precioMin,
+            @Parameter(name = "precioMax", description = "Precio maximo del producto (incluido)", example = "50000", required = false)
+            @RequestParam(required = false) Double precioMax,
+            @Parameter(name = "empresaAsociada", description = "Empresa asociada al producto. Debe ser exacta", example = "Apple", required = false)
+            @RequestParam(required = false) String empresaAsociada,
+            @Parameter(name = "puntuacion", description = "Puntuacion del producto. Debe ser exacta", example = "5", required = false)
+            @RequestParam(required = false) Long puntuacion,
+            @Parameter(name = "aggregate", description = "Indicar si quiere, junto a la primera pagina de productos, agregaciones por categoria, empresa, rango de precio y puntuacion", example = "true", required = false)
+            @RequestParam(required = false, defaultValue = "false") Boolean aggregate,
+            @Parameter(name = "size", description = "Numero de productos por pagina", example = "10", required = false)
+            @RequestParam(required = false) Integer size,
+            @Parameter(name = "cursor", description = "Cursor devuelto en la respuesta anterior para obtener la siguiente pagina. Desde la segunda pagina se pagina sobre una foto fija del indice; entre la primera y la segunda, un producto modificado entre ambas peticiones puede repetirse o no aparecer", required = false)
+            @RequestParam(required = false) String cursor,
+            @Parameter(name = "fields", description = "Campos a devolver de cada producto: summary, card, full (por defecto) o una lista de campos separados por comas", example = "summary", required = false)
+            @RequestParam(required = false) String fields,
+            @Parameter(name = "profile", description = "Devolver el desglose por shard de la busqueda (Profile API de Elasticsearch). Solo disponible si esta habilitado en la configuracion", example = "false", required = false)
+            @RequestParam(required = false, defaultValue = "false") Boolean profile,
+            @Parameter(name = "lean", description = "Respuesta ligera: cada producto se devuelve con su id y su documento tal y como esta guardado en Elasticsearch, sin pasar por el modelo. Es mas barata con paginas grandes; los campos llevan el nombre del indice (por ejemplo Producto)", example = "false", required = false)
+            @RequestParam(required = false, defaultValue = "false") Boolean lean) {
 
-        log.info("headers: {}", headers);
-        ProductsQueryResponse products = service.getProducts(nombre, categoria, descripcionCorta,descripcionLarga,valorunitario,indValorUnitario,aggregate);
+        //La busqueda no ocupa el hilo de Tomcat mientras espera a Elasticsearch: la respuesta se completa de forma asincrona
+        return service.getProducts(ProductSearchCriteria.builder()
+                        .nombre(nombre).categoria(categoria)
+                        .descripcionCorta(descripcionCorta).descripcionLarga(descripcionLarga)
+                        .valorunitario(valorunitario).indValorUnitario(indValorUnitario)
+                        .precioMin(precioMin).precioMax(precioMax)
+                        .empresaAsociada(empresaAsociada).puntuacion(puntuacion)
+                        .aggregate(aggregate).size(size).cursor(cursor).fields(fields)
+                        .profile(profile).lean(lean)
+                        .build())
+                .thenApply(ResponseEntity::ok)
+                .exceptionally(e -> {
+                    Throwable cause = e instanceof CompletionException && e.getCause() != null ? e.getCause() : e;
+                    if (cause instanceof IllegalArgumentException) {
+                        log.warn("Peticion de busqueda no valida: {}", cause.getMessage());
+                        return ResponseEntity.badRequest().build();
+                    }
+                    throw e instanceof CompletionException completion ? completion : new CompletionException(cause);
+                });
+    }
+
+    @GetMapping("/products/_suggest")
+    @Operation(
+            operationId = "Sugerir productos",
+            description = "Operacion de lectura",
+            summary = "Autocompletado: se devuelven el id y el nombre de los productos cuyo nombre empieza por lo tecleado.")
+    @ApiResponse(
+            responseCode = "200",
+            content = @Content(mediaType = "application/json", schema = @Schema(implementation = ProductSuggestion.class)))
+    @ApiResponse(
+            responseCode = "400",
+            content = @Content(mediaType = "application/json", schema = @Schema(implementation = Void.class)),
+            description = "Datos incorrectos introducidos.")
+    public CompletableFuture<ResponseEntity<List<ProductSuggestion>>> suggestProducts(
+            @Parameter(name = "q", description = "Texto tecleado. La ultima palabra puede estar incompleta", example = "zapat", required = true)
+            @RequestParam(required = false) String q,
+            @Parameter(name = "size", description = "Numero de sugerencias", example = "5", required = false)
+            @RequestParam(required = false) Integer size) {
+
+        CompletableFuture<List<ProductSuggestion>> suggestions;
+        try {
+            suggestions = service.suggestProducts(q, size);
+        } catch (IllegalArgumentException e) {
+            log.warn("Peticion de sugerencias no valida: {}", e.getMessage());
+            suggestions = null;
+        }
+        if (suggestions == null) {
+            return CompletableFuture.completedFuture(ResponseEntity.badRequest().build());
+        }
+        return suggestions.thenApply(ResponseEntity::ok);
+    }
+
+    @GetMapping("/products/_export")
+    @Operation(
+            operationId = "Exportar productos",
+            description = "Operacion de lectura",
+            summary = "Se devuelven en streaming (NDJSON, un producto por linea) todos los productos que cumplen los criterios.")
+    @ApiResponse(
+            responseCode = "200",
+            content = @Content(mediaType = "application/x-ndjson", schema = @Schema(implementation = Product.class)))
+    public ResponseEntity<StreamingResponseBody> exportProducts(
+            @Parameter(name = "nombre", description = "Nombre del producto. No tiene por que ser exacto", example = "iPhone", required = false)
+            @RequestParam(required = false) String nombre,
+            @Parameter(name = "categoria", description = "País del producto. Debe ser exacto", example = "ES", required = false)
+            @RequestParam(required = false) String categoria,
+            @Parameter(name = "descripcionCorta", description = "Descripcion corta del producto. No tiene por que ser exacta", example = "Estupendo", required = false)
+            @RequestParam(required = false) String descripcionCorta,
+            @Parameter(name = "descripcionLarga", description = "Descripcion completa del producto. No tiene por que ser exacta", example = "Estupendo detallado", required = false)
+            @RequestParam(required = false) String descripcionLarga,
+            @Parameter(name = "valorunitario", description = "Precio de cada producto", example = "20", required = false)
+            @RequestParam(required = false) Double valorunitario,
+            @Parameter(name = "indValorUnitario", description = "Indicador de busqueda del Precio de producto si es 1 es menor igual al precio indicado si es 2 es mayor igual al precio indicado, si no se especifica lo tomara como igual al precio indicado", example = "1", required = false)
+            @RequestParam(required = false) Integer indValorUnitario,
+            @Parameter(name = "precioMin", description = "Precio minimo del producto (incluido)", example = "1000", required = false)
+            @RequestParam(required = false) Double precioMin,
+            @Parameter(name = "precioMax", description = "Precio maximo del producto (incluido)", example = "50000", required = false)
+            @RequestParam(required = false) Double precioMax,
+            @Parameter(name = "empresaAsociada", description = "Empresa asociada al producto. Debe ser exacta", example = "Apple", required = false)
+            @RequestParam(required = false) String empresaAsociada,
+            @Parameter(name = "puntuacion", description = "Puntuacion del producto. Debe ser exacta", example = "5", required = false)
+            @RequestParam(required = false) Long puntuacion,
+            HttpServletRequest request) {
+
+        log.info("Exportando productos");
+        //Una exportacion puede durar mucho mas que el timeout general de las peticiones asincronas
+        request.setAttribute(AsyncRequestConfig.LONG_REQUEST_ATTRIBUTE, Boolean.TRUE);
+        ProductSearchCriteria criteria = ProductSearchCriteria.builder()
+                .nombre(nombre).categoria(categoria)
+                .descripcionCorta(descripcionCorta).descripcionLarga(descripcionLarga)
+                .valorunitario(valorunitario).indValorUnitario(indValorUnitario)
+                .precioMin(precioMin).precioMax(precioMax)
+                .empresaAsociada(empresaAsociada).puntuacion(puntuacion)
+                .build();
+        StreamingResponseBody body = output -> service.exportProducts(criteria, output);
+        return ResponseEntity.ok().contentType(MediaType.parseMediaType("application/x-ndjson")).body(body);
+    }
+
+    @GetMapping("/products/_changes")
+    @Operation(
+            operationId = "Obtener cambios de productos",
+            description = "Operacion de lectura",
+            summary = "Feed de cambios: se devuelven los productos creados, modificados o borrados desde el token indicado, en el orden en que se escribieron. Se piden paginas con el token de la respuesta anterior hasta que no haya cambios. "
+                    + "Las marcas de escritura las pone el cluster; el feed asume que los relojes de sus nodos no se separan mas que elasticsearch.changes.settle, "
+                    + "y los cambios de ese ultimo margen se entregan en la pagina siguiente.")
+    @ApiResponse(
+            responseCode = "200",
+            content = @Content(mediaType = "application/json", schema = @Schema(implementation = ProductChangesResponse.class)),
+            description = "Los borrados llevan deleted a true y no llevan producto.")
+    @ApiResponse(
+            responseCode = "400",
+            content = @Content(mediaType = "application/json", schema = @Schema(implementation = Void.class)),
+            description = "Token o tamaño no validos.")
+    public ResponseEntity<ProductChangesResponse> getProductChanges(
+            @Parameter(name = "since", description = "Token (next) de la respuesta anterior. Sin token se devuelve el catalogo completo desde el principio", required = false)
+            @RequestParam(required = false) String since,
+            @Parameter(name = "size", description = "Numero maximo de cambios por pagina", example = "1000", required = false)
+            @RequestParam(required = false) Integer size) {
+
+        try {
+            return ResponseEntity.ok(service.getProductChanges(since, size));
+        } catch (IllegalArgumentException e) {
+            log.warn("Peticion de cambios no valida: {}", e.getMessage());
+            return ResponseEntity.badRequest().build();
+        }
+    }
+
+    @PostMapping("/products/_msearch")
+    @Operation(
+            operationId = "Realizar varias busquedas de productos",
+            description = "Operacion de lectura",
+            summary = "Se ejecutan varias busquedas de productos en una sola peticion, por ejemplo un carrusel por categoria.",
+            requestBody = @io.swagger.v3.oas.annotations.parameters.RequestBody(
+                    description = "Criterios de cada busqueda, con los mismos nombres que los parametros de GET /products.",
+                    required = true,
+                    content = @Content(mediaType = "application/json", schema = @Schema(implementation = ProductSearchCriteria.class))))
+    @ApiResponse(
+            responseCode = "200",
+            content = @Content(mediaType = "application/json", schema = @Schema(implementation = ProductMultiSearchItem.class)),
+            description = "Un resultado por busqueda, en el orden de la peticion. Cada uno lleva su estado: las que fallan no afectan a las demas.")
+    @ApiResponse(
+            responseCode = "400",
+            content = @Content(mediaType = "application/json", schema = @Schema(implementation = Void.class)),
+            description = "No se han indicado busquedas o se han indicado demasiadas.")
+    public CompletableFuture<ResponseEntity<List<ProductMultiSearchItem>>> searchProducts(@RequestBody List<ProductSearchCriteria> searches) {
+
+        CompletableFuture<List<ProductMultiSearchItem>> results = service.searchProducts(searches);
+        if (results == null) {
+            return CompletableFuture.completedFuture(ResponseEntity.badRequest().build());
+        }
+        return results.thenApply(ResponseEntity::ok);
+    }
+
+    @PostMapping("/products/_mget")
+    @Operation(
+            operationId = "Obtener varios productos",
+            description = "Operacion de lectura",
+            summary = "Se devuelven varios productos a partir de sus identificadores en una sola peticion.",
+            requestBody = @io.swagger.v3.oas.annotations.parameters.RequestBody(
+                    description = "Identificadores de los productos (ids) y, opcionalmente, los campos a devolver (_source).",
+                    required = true,
+                    content = @Content(mediaType = "application/json", schema = @Schema(implementation = ProductMultiGetRequest.class))))
+    @ApiResponse(
+            responseCode = "200",
+            content = @Content(mediaType = "application/json", schema = @Schema(implementation = ProductMultiGetItem.class)),
+            description = "Un resultado por identificador, en el orden de la peticion. Los que no existen llevan found a false.")
+    @ApiResponse(
+            responseCode = "400",
+            content = @Content(mediaType = "application/json", schema = @Schema(implementation = Void.class)),
+            description = "Datos incorrectos introducidos.")
+    public ResponseEntity<List<ProductMultiGetItem>> getProducts(@RequestBody ProductMultiGetRequest request) {
+
+        List<ProductMultiGetItem> products;
+        try {
+            products = service.getProducts(request);
+        } catch (IllegalArgumentException e) {
+            log.warn("Peticion multi-get no valida: {}", e.getMessage());
+            return ResponseEntity.badRequest().build();
+        }
 
         if (products != null) {
             return ResponseEntity.ok(products);
         } else {
-            return ResponseEntity.ok(null);
+            return ResponseEntity.badRequest().build();
         }
     }
 
@@ -76,14 +291,26 @@ public class ProductsController {
             responseCode = "404",
             content = @Content(mediaType = "application/json", schema = @Schema(implementation = Void.class)),
             description = "No se ha encontrado el producto con el identificador indicado.")
-    public ResponseEntity<Product> getProduct(@PathVariable String productId) {
+    @ApiResponse(
+            responseCode = "400",
+            content = @Content(mediaType = "application/json", schema = @Schema(implementation = Void.class)),
+            description = "Campos no validos.")
+    public ResponseEntity<Product> getProduct(@PathVariable String productId,
+            @Parameter(name = "fields", description = "Campos a devolver de cada producto: summary, card, full (por defecto) o una lista de campos separados por comas", example = "summary", required = false)
+            @RequestParam(required = false) String fields) {
 
         log.info("Request received for product {}", productId);
-        Optional<Product> productOptional = service.getProduct(productId);
+        Optional<Product> productOptional;
+        try {
+            productOptional = service.getProduct(productId, fields);
+        } catch (IllegalArgumentException e) {
+            log.warn("Peticion de producto no valida: {}", e.getMessage());
+            return ResponseEntity.badRequest().build();
+        }
         Product product = productOptional.orElseThrow(() -> new NoSuchElementException("No se encontró el producto")); // Lanza NoSuchElementException si el Optional está vacío
 
         if (product != null) {
-            return ResponseEntity.ok(product);
+            return withVersion(ResponseEntity.ok(), product);
         } else {
             return ResponseEntity.notFound().build();
         }
@@ -102,9 +329,12 @@ public class ProductsController {
             responseCode = "404",
             content = @Content(mediaType = "application/json", schema = @Schema(implementation = Void.class)),
             description = "No se ha encontrado el producto con el identificador indicado.")
-    public ResponseEntity<Void> deleteProduct(@PathVariable String productId) {
+    public ResponseEntity<Void> deleteProduct(
+            @PathVariable String productId,
+            @Parameter(name = "waitForRefresh", description = "No responder hasta que el borrado sea visible en las busquedas", example = "false", required = false)
+            @RequestParam(required = false, defaultValue = "false") Boolean waitForRefresh) {
 
-        Boolean removed = service.removeProduct(productId);
+        Boolean removed = service.removeProduct(productId, waitForRefresh);
 
         if (Boolean.TRUE.equals(removed)) {
             return ResponseEntity.ok().build();
@@ -134,9 +364,12 @@ public class ProductsController {
             responseCode = "404",
             content = @Content(mediaType = "application/json", schema = @Schema(implementation = Void.class)),
             description = "No se ha encontrado el producto con el identificador indicado.")
-    public ResponseEntity<Product> addProduct(@RequestBody CreateProductRequest request) {
+    public ResponseEntity<Product> addProduct(
+            @RequestBody CreateProductRequest request,
+            @Parameter(name = "waitForRefresh", description = "No responder hasta que el producto sea visible en las busquedas", example = "false", required = false)
+            @RequestParam(required = false, defaultValue = "false") Boolean waitForRefresh) {
         try {
-            Product createdProduct = service.createProduct(request);
+            Product createdProduct = service.createProduct(request, waitForRefresh);
 
             if (createdProduct != null) {
                 return ResponseEntity.status(HttpStatus.CREATED).body(createdProduct);
@@ -148,6 +381,33 @@ public class ProductsController {
         }
     }
 
+    @PostMapping(value = "/products/_bulk", consumes = {"application/json", "application/x-ndjson"})
+    @Operation(
+            operationId = "Insertar productos de forma masiva",
+            description = "Operacion de escritura",
+            summary = "Se crean o reemplazan productos por lotes. Acepta un array JSON o NDJSON (un producto por linea).",
+            requestBody = @io.swagger.v3.oas.annotations.parameters.RequestBody(
+                    description = "Productos a indexar. Si un producto incluye id se reemplaza el existente.",
+                    required = true,
+                    content = @Content(mediaType = "application/x-ndjson", schema = @Schema(implementation = Product.class))))
+    @ApiResponse(
+            responseCode = "200",
+            content = @Content(mediaType = "application/json", schema = @Schema(implementation = BulkIngestResponse.class)),
+            description = "Numero de productos procesados y resultado de los que han fallado, con su posicion en la entrada.")
+    @ApiResponse(
+            responseCode = "400",
+            content = @Content(mediaType = "application/json", schema = @Schema(implementation = BulkIngestResponse.class)),
+            description = "La entrada no se ha podido leer completa. Se devuelve el resultado de lo procesado hasta el error.")
+    public ResponseEntity<BulkIngestResponse> addProducts(InputStream body) {
+
+        BulkIngestResponse response = service.createProducts(body);
+        if (response.getError() == null) {
+            return ResponseEntity.ok(response);
+        } else {
+            return ResponseEntity.badRequest().body(response);
+        }
+    }
+
 
     @PatchMapping("/products/{productId}")
     @Operation(
@@ -165,13 +425,25 @@ public class ProductsController {
             responseCode = "400",
             content = @Content(mediaType = "application/json", schema = @Schema(implementation = Void.class)),
             description = "Producto inválido o datos incorrectos introducidos.")
-    public ResponseEntity<Product> patchProduct(@PathVariable String productId, @RequestBody String patchBody) {
+    @ApiResponse(
+            responseCode = "412",
+            content = @Content(mediaType = "application/json", schema = @Schema(implementation = Void.class)),
+            description = "El producto ha cambiado desde la version indicada en If-Match.")
+    public ResponseEntity<Product> patchProduct(@PathVariable String productId, @RequestBody String patchBody,
+            @Parameter(name = "If-Match", description = "ETag del producto. Si se indica, solo se modifica si no ha cambiado", example = "\"12-1\"", required = false)
+            @RequestHeader(value = HttpHeaders.IF_MATCH, required = false) String ifMatch) {
 
-        Product patched = service.updateProduct(productId, patchBody);
-        if (patched != null) {
-            return ResponseEntity.ok(patched);
-        } else {
+        try {
+            Product patched = service.updateProduct(productId, patchBody, parseVersion(ifMatch));
+            if (patched != null) {
+                return withVersion(ResponseEntity.ok(), patched);
+            } else {
+                return ResponseEntity.badRequest().build();
+            }
+        } catch (IllegalArgumentException e) {
             return ResponseEntity.badRequest().build();
+        } catch (OptimisticLockingFailureException e) {
+            return ResponseEntity.status(HttpStatus.PRECONDITION_FAILED).build();
         }
     }
 
@@ -192,13 +464,129 @@ public class ProductsController {
             responseCode = "404",
             content = @Content(mediaType = "application/json", schema = @Schema(implementation = Void.class)),
             description = "Producto no encontrado.")
-    public ResponseEntity<Product> updateProduct(@PathVariable String productId, @RequestBody ProductDto body) {
+    @ApiResponse(
+            responseCode = "412",
+            content = @Content(mediaType = "application/json", schema = @Schema(implementation = Void.class)),
+            description = "El producto ha cambiado desde la version indicada en If-Match.")
+    public ResponseEntity<Product> updateProduct(@PathVariable String productId, @RequestBody ProductDto body,
+            @Parameter(name = "If-Match", description = "ETag del producto. Si se indica, solo se modifica si no ha cambiado", example = "\"12-1\"", required = false)
+            @RequestHeader(value = HttpHeaders.IF_MATCH, required = false) String ifMatch) {
 
-        Product updated = service.updateProduct(productId, body);
-        if (updated != null) {
-            return ResponseEntity.ok(updated);
+        try {
+            Product updated = service.updateProduct(productId, body, parseVersion(ifMatch));
+            if (updated != null) {
+                return withVersion(ResponseEntity.ok(), updated);
+            } else {
+                return ResponseEntity.notFound().build();
+            }
+        } catch (IllegalArgumentException e) {
+            return ResponseEntity.badRequest().build();
+        } catch (OptimisticLockingFailureException e) {
+            return ResponseEntity.status(HttpStatus.PRECONDITION_FAILED).build();
+        }
+    }
+
+    @PostMapping("/products/{productId}/stock")
+    @Operation(
+            operationId = "Ajustar el stock de un producto",
+            description = "Operacion de escritura",
+            summary = "Se suma o resta stock (cantidadDisponible) a un producto de forma atomica. Nunca deja el stock en negativo.",
+            requestBody = @io.swagger.v3.oas.annotations.parameters.RequestBody(
+                    description = "Unidades a sumar (delta positivo) o restar (delta negativo).",
+                    required = true,
+                    content = @Content(mediaType = "application/json", schema = @Schema(implementation = StockAdjustment.class))))
+    @ApiResponse(
+            responseCode = "200",
+            content = @Content(mediaType = "application/json", schema = @Schema(implementation = StockAdjustmentResult.class)),
+            description = "Stock ajustado. Se devuelve la nueva cantidad disponible.")
+    @ApiResponse(
+            responseCode = "400",
+            content = @Content(mediaType = "application/json", schema = @Schema(implementation = Void.class)),
+            description = "Datos incorrectos introducidos.")
+    @ApiResponse(
+            responseCode = "404",
+            content = @Content(mediaType = "application/json", schema = @Schema(implementation = StockAdjustmentResult.class)),
+            description = "No se ha encontrado el producto con el identificador indicado.")
+    @ApiResponse(
+            responseCode = "409",
+            content = @Content(mediaType = "application/json", schema = @Schema(implementation = StockAdjustmentResult.class)),
+            description = "Stock insuficiente. Se devuelve la cantidad disponible actual.")
+    public ResponseEntity<StockAdjustmentResult> adjustStock(@PathVariable String productId, @RequestBody StockAdjustment body) {
+
+        StockAdjustmentResult result = service.adjustStock(productId, body);
+        if (result != null) {
+            return ResponseEntity.status(result.getStatus()).body(result);
         } else {
-            return ResponseEntity.notFound().build();
+            return ResponseEntity.badRequest().build();
+        }
+    }
+
+    @PostMapping("/products/_stock")
+    @Operation(
+            operationId = "Ajustar el stock de varios productos",
+            description = "Operacion de escritura",
+            summary = "Se ajusta el stock de varios productos en una sola peticion, por ejemplo las lineas de un pedido.",
+            requestBody = @io.swagger.v3.oas.annotations.parameters.RequestBody(
+                    description = "Ajustes a aplicar, cada uno con productId y delta.",
+                    required = true,
+                    content = @Content(mediaType = "application/json", schema = @Schema(implementation = StockAdjustment.class))))
+    @ApiResponse(
+            responseCode = "200",
+            content = @Content(mediaType = "application/json", schema = @Schema(implementation = StockAdjustmentResult.class)),
+            description = "Resultado de cada ajuste, en el orden de la peticion. Con allOrNothing, las lineas deshechas llevan "
+                    + "status 409 y las que no se han podido deshacer, y siguen aplicadas, status 500.")
+    @ApiResponse(
+            responseCode = "400",
+            content = @Content(mediaType = "application/json", schema = @Schema(implementation = Void.class)),
+            description = "Datos incorrectos introducidos.")
+    public ResponseEntity<List<StockAdjustmentResult>> adjustStock(@RequestBody List<StockAdjustment> body,
+            @Parameter(name = "allOrNothing", description = "Si alguna linea falla, deshacer las que se hayan aplicado", example = "true", required = false)
+            @RequestParam(required = false, defaultValue = "false") Boolean allOrNothing) {
+
+        List<StockAdjustmentResult> results = service.adjustStock(body, Boolean.TRUE.equals(allOrNothing));
+        if (results != null) {
+            return ResponseEntity.ok(results);
+        } else {
+            return ResponseEntity.badRequest().build();
+        }
+    }
+
+    /**
+     * Las llamadas que se rechazan sin llegar al cluster (circuit breaker abierto, demasiadas llamadas en curso o
+     * escritura diferida llena) se responden con 503 para que el cliente reintente mas tarde en lugar de tratarlas
+     * como un error interno.
+     */
+    @ExceptionHandler({CallNotPermittedException.class, BulkheadFullException.class, TransientDataAccessResourceException.class})
+    public ResponseEntity<Void> handleElasticsearchUnavailable(Exception e) {
+        log.warn("Elasticsearch no disponible: {}", e.getMessage());
+        return ResponseEntity.status(HttpStatus.SERVICE_UNAVAILABLE).header(HttpHeaders.RETRY_AFTER, "10").build();
+    }
+
+    /**
+     * La version del producto (_seq_no y _primary_term) se expone como ETag con el formato "seqNo-primaryTerm".
+     */
+    private static ResponseEntity<Product> withVersion(ResponseEntity.BodyBuilder response, Product product) {
+        SeqNoPrimaryTerm version = product.getSeqNoPrimaryTerm();
+        if (version != null) {
+            response.eTag(version.getSequenceNumber() + "-" + version.getPrimaryTerm());
+        }
+        return response.body(product);
+    }
+
+    private static SeqNoPrimaryTerm parseVersion(String ifMatch) {
+        if (ifMatch == null || ifMatch.isBlank() || ifMatch.trim().equals("*")) {
+            return null;
+        }
+        String tag = ifMatch.trim();
+        if (tag.startsWith("W/")) {
+            tag = tag.substring(2);
+        }
+        tag = tag.replace("\"", "");
+        int separator = tag.indexOf('-');
+        try {
+            return new SeqNoPrimaryTerm(Long.parseLong(tag.substring(0, separator)), Long.parseLong(tag.substring(separator + 1)));
+        } catch (RuntimeException e) {
+            throw new IllegalArgumentException("If-Match no valido: " + ifMatch, e);
         }
     }
 
@@ -0,0 +1,161 @@
+package com.unir.products.data;
+
+import com.unir.products.model.pojo.Product;
+import com.unir.products.model.response.BulkItemResult;
+import lombok.extern.slf4j.Slf4j;
+import org.elasticsearch.action.DocWriteRequest;
+import org.elasticsearch.action.bulk.BulkItemResponse;
+import org.elasticsearch.action.bulk.BulkProcessor;
+import org.elasticsearch.action.bulk.BulkRequest;
+import org.elasticsearch.action.bulk.BulkResponse;
+import org.elasticsearch.action.index.IndexRequest;
+import org.elasticsearch.common.UUIDs;
+import org.elasticsearch.rest.RestStatus;
+
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.Comparator;
+import java.util.Deque;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.TimeUnit;
+import java.util.function.Consumer;
+import java.util.function.Function;
+
+/**
+ * Sesion de carga masiva de productos sobre un {@link BulkProcessor}.
+ * <p>
+ * Los documentos se agrupan en peticiones bulk segun el numero de acciones, el tamaño en bytes y el intervalo
+ * de flush configurados. Cuando hay tantas peticiones en vuelo como las permitidas, {@link #add} bloquea al
+ * llamante, de modo que la lectura de la entrada avanza al ritmo que marca el cluster.
+ * <p>
+ * Solo se guarda el resultado de los productos en vuelo y el de los que fallan: los que se escriben bien se
+ * descartan en cuanto termina su bulk, asi que la memoria no crece con el tamaño de la carga.
+ * <p>
+ * No es reutilizable: se crea una por peticion de carga desde {@link DataAccessRepository#openBulkIngestion()}.
+ */
+@Slf4j
+public class BulkIngestion implements BulkProcessor.Listener {
+
+    private final List<BulkItemResult> failures = new ArrayList<>();
+    // Correlacionamos las respuestas por id: los reintentos del BulkProcessor no conservan las posiciones originales
+    private final Map<String, Deque<BulkItemResult>> pending = new HashMap<>();
+    private final BulkProcessor processor;
+    private final Function<Product, IndexRequest> indexRequestFactory;
+    private final Consumer<List<String>> onWrite;
+    private final long awaitMillis;
+    private final long start = System.currentTimeMillis();
+    private int total;
+
+    BulkIngestion(Function<BulkProcessor.Listener, BulkProcessor> processorFactory,
+                  Function<Product, IndexRequest> indexRequestFactory, Consumer<List<String>> onWrite, long awaitMillis) {
+        this.processor = processorFactory.apply(this);
+        this.indexRequestFactory = indexRequestFactory;
+        this.onWrite = onWrite;
+        this.awaitMillis = awaitMillis;
+    }
+
+    /**
+     * Encola un producto para su indexacion. Si el producto no trae id se le asigna uno para poder
+     * correlacionar su resultado.
+     *
+     * @param product - producto a indexar
+     */
+    public void add(Product product) {
+        IndexRequest request = indexRequestFactory.apply(product);
+        if (request.id() == null) {
+            request.id(UUIDs.base64UUID());
+        }
+        synchronized (this) {
+            BulkItemResult item = new BulkItemResult(total++, request.id(), null, null);
+            pending.computeIfAbsent(request.id(), id -> new ArrayDeque<>()).add(item);
+        }
+        processor.add(request);
+    }
+
+    /**
+     * Registra un elemento de la entrada que no se envia a Elasticsearch por no ser valido.
+     *
+     * @param error - motivo del rechazo
+     */
+    public synchronized void reject(String error) {
+        failures.add(new BulkItemResult(total++, null, RestStatus.BAD_REQUEST.getStatus(), error));
+    }
+
+    /**
+     * Envia los documentos pendientes y espera a que terminen todas las peticiones en vuelo.
+     *
+     * @return resultado de los elementos que han fallado, en el mismo orden que la entrada
+     */
+    public List<BulkItemResult> await() throws InterruptedException {
+        if (!processor.awaitClose(awaitMillis, TimeUnit.MILLISECONDS)) {
+            log.warn("La carga masiva no ha terminado en {} ms", awaitMillis);
+        }
+        synchronized (this) {
+            pending.values().forEach(items -> items.forEach(item ->
+                    fail(item, RestStatus.REQUEST_TIMEOUT.getStatus(), "Sin respuesta de Elasticsearch")));
+            pending.clear();
+            //Cada bulk termina cuando termina: los fallos se ordenan al final
+            List<BulkItemResult> failed = new ArrayList<>(failures);
+            failed.sort(Comparator.comparing(BulkItemResult::getPosition));
+            return failed;
+        }
+    }
+
+    /**
+     * @return elementos leidos de la entrada, enviados o rechazados
+     */
+    public synchronized int total() {
+        return total;
+    }
+
+    public long took() {
+        return System.currentTimeMillis() - start;
+    }
+
+    @Override
+    public void beforeBulk(long executionId, BulkRequest request) {
+        log.debug("Enviando bulk {} con {} acciones ({} bytes)", executionId, request.numberOfActions(), request.estimatedSizeInBytes());
+    }
+
+    @Override
+    public synchronized void afterBulk(long executionId, BulkRequest request, BulkResponse response) {
+        onWrite.accept(request.requests().stream().map(DocWriteRequest::id).toList());
+        for (BulkItemResponse itemResponse : response.getItems()) {
+            BulkItemResult item = poll(itemResponse.getId());
+            if (item != null && itemResponse.isFailed()) {
+                fail(item, itemResponse.status().getStatus(), itemResponse.getFailureMessage());
+            }
+        }
+    }
+
+    @Override
+    public synchronized void afterBulk(long executionId, BulkRequest request, Throwable failure) {
+        log.error("Error en el bulk {}", executionId, failure);
+        for (DocWriteRequest<?> docRequest : request.requests()) {
+            BulkItemResult item = poll(docRequest.id());
+            if (item != null) {
+                fail(item, RestStatus.INTERNAL_SERVER_ERROR.getStatus(), failure.getMessage());
+            }
+        }
+    }
+
+    private void fail(BulkItemResult item, int status, String error) {
+        item.setStatus(status);
+        item.setError(error);
+        failures.add(item);
+    }
+
+    private BulkItemResult poll(String id) {
+        Deque<BulkItemResult> items = pending.get(id);
+        if (items == null) {
+            return null;
+        }
+        BulkItemResult item = items.poll();
+        if (items.isEmpty()) {
+            pending.remove(id);
+        }
+        return item;
+    }
+}
@@ -1,21 +1,92 @@
 package com.unir.products.data;
 
+import java.io.IOException;
+import java.io.InputStream;
 import java.util.*;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CompletionException;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.TimeUnit;
+import java.util.function.Consumer;
+import java.util.function.Function;
+import java.util.function.Predicate;
+import java.util.function.Supplier;
+import com.unir.products.data.ProductsByIdCache.CachedProduct;
 import com.unir.products.model.pojo.Product;
+import com.unir.products.model.pojo.ProjectedProduct;
+import com.unir.products.model.request.ProductSearchCriteria;
+import com.unir.products.model.request.StockAdjustment;
 import com.unir.products.model.response.AggregationDetails;
+import com.unir.products.model.response.ProductChange;
+import com.unir.products.model.response.ProductChangesResponse;
+import com.unir.products.model.response.ProductMultiGetItem;
+import com.unir.products.model.response.ProductMultiSearchItem;
+import com.unir.products.model.response.ProductSuggestion;
 import com.unir.products.model.response.ProductsQueryResponse;
+import com.unir.products.model.response.ReindexTask;
+import com.unir.products.model.response.StockAdjustmentResult;
 import lombok.SneakyThrows;
 import org.apache.commons.lang.StringUtils;
+import org.elasticsearch.ElasticsearchStatusException;
+import org.elasticsearch.ExceptionsHelper;
+import org.elasticsearch.action.ActionListener;
+import org.elasticsearch.action.DocWriteResponse;
+import org.elasticsearch.action.bulk.BackoffPolicy;
+import org.elasticsearch.action.bulk.BulkItemResponse;
+import org.elasticsearch.action.bulk.BulkProcessor;
+import org.elasticsearch.action.bulk.BulkRequest;
+import org.elasticsearch.action.bulk.BulkResponse;
+import org.elasticsearch.action.delete.DeleteRequest;
+import org.elasticsearch.action.get.GetRequest;
+import org.elasticsearch.action.get.GetResponse;
+import org.elasticsearch.action.get.MultiGetItemResponse;
+import org.elasticsearch.action.get.MultiGetRequest;
+import org.elasticsearch.action.get.MultiGetResponse;
+import org.elasticsearch.action.index.IndexRequest;
+import org.elasticsearch.action.index.IndexResponse;
+import org.elasticsearch.action.update.UpdateRequest;
+import org.elasticsearch.action.update.UpdateResponse;
+import org.elasticsearch.action.search.MultiSearchRequest;
+import org.elasticsearch.action.search.MultiSearchResponse;
+import org.elasticsearch.action.search.SearchRequest;
+import org.elasticsearch.action.search.SearchResponse;
+import org.elasticsearch.action.support.IndicesOptions;
+import org.elasticsearch.action.support.WriteRequest;
+import org.elasticsearch.client.Request;
+import org.elasticsearch.client.RequestOptions;
+import org.elasticsearch.client.Response;
+import org.elasticsearch.client.ResponseException;
+import org.elasticsearch.client.ResponseListener;
+import org.elasticsearch.client.RestHighLevelClient;
+import org.elasticsearch.common.Strings;
+import org.elasticsearch.common.UUIDs;
+import org.elasticsearch.common.unit.ByteSizeValue;
+import org.elasticsearch.common.unit.TimeValue;
+import org.elasticsearch.common.xcontent.XContentHelper;
+import org.elasticsearch.common.xcontent.json.JsonXContent;
 import org.elasticsearch.index.query.BoolQueryBuilder;
-import org.elasticsearch.index.query.MultiMatchQueryBuilder.Type;
 import org.elasticsearch.index.query.QueryBuilders;
-import org.elasticsearch.search.aggregations.Aggregation;
-import org.elasticsearch.search.aggregations.AggregationBuilders;
-import org.elasticsearch.search.aggregations.bucket.terms.ParsedStringTerms;
+import org.elasticsearch.rest.RestStatus;
+import org.elasticsearch.script.Script;
+import org.elasticsearch.script.ScriptType;
+import org.elasticsearch.script.mustache.MultiSearchTemplateRequest;
+import org.elasticsearch.script.mustache.SearchTemplateRequest;
+import org.elasticsearch.search.SearchHit;
+import org.elasticsearch.search.builder.PointInTimeBuilder;
+import org.elasticsearch.search.builder.SearchSourceBuilder;
+import org.elasticsearch.search.fetch.subphase.FetchSourceContext;
+import org.elasticsearch.search.sort.SortBuilders;
+import org.elasticsearch.search.sort.SortOrder;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+import org.springframework.beans.BeanUtils;
 import org.springframework.beans.factory.annotation.Value;
+import org.springframework.dao.OptimisticLockingFailureException;
+import org.springframework.data.domain.PageRequest;
 import org.springframework.data.elasticsearch.core.ElasticsearchOperations;
-import org.springframework.data.elasticsearch.core.SearchHit;
-import org.springframework.data.elasticsearch.core.SearchHits;
+import org.springframework.data.elasticsearch.core.SearchHitsIterator;
+import org.springframework.data.elasticsearch.core.document.DocumentAdapters;
+import org.springframework.data.elasticsearch.core.query.SeqNoPrimaryTerm;
 import org.springframework.data.elasticsearch.core.query.NativeSearchQueryBuilder;
 import org.springframework.data.elasticsearch.core.query.Query;
 import org.springframework.stereotype.Repository;
@@ -27,109 +98,1133 @@ import lombok.extern.slf4j.Slf4j;
 @Slf4j
 public class DataAccessRepository {
 
-    @Value("${server.fullAddress}")
-    private String serverFullAddress;
+    // Log propio para las busquedas lentas, para poder enviarlo a otro appender o silenciarlo por separado
+    private static final Logger slowQueryLog = LoggerFactory.getLogger(DataAccessRepository.class.getName() + ".slowquery");
+
+    @Value("${elasticsearch.search.page-size:10}")
+    private int defaultPageSize;
+
+    @Value("${elasticsearch.search.max-page-size:1000}")
+    private int maxPageSize;
+
+    @Value("${elasticsearch.search.pit-keep-alive:1m}")
+    private String pitKeepAlive;
+
+    // Las busquedas que tardan mas se registran en el log con su consulta. 0 o negativo para desactivarlo
+    @Value("${elasticsearch.search.slow-query-threshold:500ms}")
+    private String slowQueryThreshold;
+
+    @Value("${elasticsearch.search.profile.enabled:false}")
+    private boolean profileEnabled;
+
+    @Value("${elasticsearch.suggest.size:5}")
+    private int defaultSuggestSize;
+
+    @Value("${elasticsearch.suggest.max-size:10}")
+    private int maxSuggestSize;
+
+    @Value("${elasticsearch.update.retry-on-conflict:3}")
+    private int retryOnConflict;
+
+    @Value("${elasticsearch.export.batch-size:1000}")
+    private int exportBatchSize;
+
+    @Value("${elasticsearch.bulk.actions:1000}")
+    private int bulkActions;
+
+    @Value("${elasticsearch.bulk.size:5mb}")
+    private String bulkSize;
+
+    @Value("${elasticsearch.bulk.flush-interval:5s}")
+    private String bulkFlushInterval;
+
+    @Value("${elasticsearch.bulk.concurrent-requests:2}")
+    private int bulkConcurrentRequests;
+
+    @Value("${elasticsearch.bulk.await-timeout:10m}")
+    private String bulkAwaitTimeout;
+
+    @Value("${elasticsearch.changes.page-size:1000}")
+    private int defaultChangesSize;
+
+    @Value("${elasticsearch.changes.max-page-size:10000}")
+    private int maxChangesSize;
+
+    // Politica de refresh de las escrituras directas que no piden esperar: wait_for, false o true
+    @Value("${elasticsearch.write.refresh-policy:wait_for}")
+    private String refreshPolicy;
+
+    @Value("${elasticsearch.write-behind.await-timeout:30s}")
+    private String writeAwaitTimeout;
+
+    // Espera maxima de las escrituras directas mientras una reindexacion tiene bloqueado el indice
+    @Value("${elasticsearch.write.block-wait:30s}")
+    private String writeBlockWait;
+
+    // Margen para que las escrituras recientes sean visibles antes de entregarlas en el feed de cambios
+    @Value("${elasticsearch.changes.settle:5s}")
+    private String changesSettle;
 
     // Esta clase (y bean) es la unica que usan directamente los servicios para
     // acceder a los datos.
-    private final ProductRepository productRepository;
     private final ElasticsearchOperations elasticClient;
+    private final RestHighLevelClient elasticsearchClient;
+    private final ProductsQueryCache queryCache;
+    private final ProductsByIdCache productCache;
+    private final ProductSearchQueryFactory queryFactory;
+    private final ProductSearchResultMapper resultMapper;
+    private final ProductFields productFields;
+    private final ProductsSuggestCache suggestCache;
+    private final ElasticsearchMetrics metrics;
+    private final ElasticsearchResilience resilience;
+    private final ProductIndexManager indexManager;
+    private final ProductWriteBuffer writeBuffer;
+    private final ProductSearchTemplates searchTemplates;
 
-    private final String[] nombreSearchFields = {"nombre", "nombre._2gram", "nombre._3gram"};
-    private final String[] descripcioncortaSearchFields = {"descripcionCorta", "descripcionCorta._2gram", "descripcionCorta._3gram"};
-    private final String[] descripcionlargaSearchFields = {"descripcionLarga", "descripcionLarga._2gram", "descripcionLarga._3gram"};
+    private static final String UPDATED_AT = "updatedAt";
+    private static final long WRITE_BLOCK_RETRY_MILLIS = 200;
 
-    public Product save(Product product) {
-        return productRepository.save(product);
+    private static final String STOCK_SCRIPT =
+            "long current = ctx._source.cantidadDisponible == null ? 0 : ctx._source.cantidadDisponible;"
+            + "long updated = current + params.delta;"
+            + "if (updated < 0) { ctx.op = 'noop'; } else { ctx._source.cantidadDisponible = updated; ctx._source.updatedAt = ctx._now; }";
+
+    //Merge de una actualizacion parcial. Es un script, y no un doc, para que la marca updatedAt la ponga el cluster
+    //(ctx._now): los pipelines de ingesta no se aplican a las actualizaciones. Si nada cambia no se escribe
+    private static final String MERGE_SCRIPT =
+            "boolean changed = false;"
+            + "for (def entry : params.doc.entrySet()) {"
+            + "  if (!Objects.equals(ctx._source[entry.getKey()], entry.getValue())) { ctx._source[entry.getKey()] = entry.getValue(); changed = true; }"
+            + "}"
+            + "if (changed) { ctx._source.updatedAt = ctx._now; } else { ctx.op = 'noop'; }";
+
+    /**
+     * Alta o sustitucion completa del producto.
+     * <p>
+     * Con la escritura diferida activa (ver {@link ProductWriteBuffer}) el producto se encola y se responde sin
+     * esperar al cluster. Si no, se indexa en el momento con la politica de refresh de elasticsearch.write.refresh-policy.
+     * En los dos casos el id, si no lo trae, se genera aqui.
+     *
+     * @param product        - producto a guardar
+     * @param waitForRefresh - no volver hasta que el producto sea visible en las busquedas
+     * @return el producto guardado, con su id
+     */
+    @SneakyThrows
+    public Product save(Product product, boolean waitForRefresh) {
+        if (writeBuffer.isEnabled()) {
+            CompletableFuture<Void> written = writeBuffer.write(toIndexRequest(product), waitForRefresh);
+            productCache.put(product);
+            if (waitForRefresh) {
+                await(written);
+            }
+            return product;
+        }
+
+        IndexRequest request = toIndexRequest(product).setRefreshPolicy(getRefreshPolicy(waitForRefresh));
+        IndexResponse response = call("index", (options, listener) -> elasticsearchClient.indexAsync(request, options, listener));
+        product.setId(response.getId());
+        product.setSeqNoPrimaryTerm(new SeqNoPrimaryTerm(response.getSeqNo(), response.getPrimaryTerm()));
+        queryCache.invalidateAll();
+        productCache.put(product);
+        return product;
     }
 
-    public Boolean delete(Product product) {
-        productRepository.delete(product);
+    /**
+     * Borra el producto y deja su marca de borrado para el feed de cambios. Con la escritura diferida activa ambas
+     * cosas se encolan, igual que las altas.
+     *
+     * @param product        - producto a borrar
+     * @param waitForRefresh - no volver hasta que el borrado sea visible en las busquedas
+     */
+    @SneakyThrows
+    public Boolean delete(Product product, boolean waitForRefresh) {
+        if (product.getId() == null) {
+            return Boolean.FALSE;
+        }
+        DeleteRequest request = new DeleteRequest(getWriteIndexName(), product.getId());
+        IndexRequest tombstone = new IndexRequest(indexManager.getTombstoneIndex())
+                .id(product.getId())
+                .source(Map.of("id", product.getId()))
+                .setPipeline(indexManager.getChangeStampPipeline());
+        productCache.evict(product.getId());
+
+        if (writeBuffer.isEnabled()) {
+            CompletableFuture<Void> written = writeBuffer.write(List.of(request, tombstone), waitForRefresh);
+            if (waitForRefresh) {
+                await(written);
+            }
+            return Boolean.TRUE;
+        }
+
+        //El borrado y su marca van en una sola peticion, como en la escritura diferida
+        BulkRequest bulk = new BulkRequest().add(request).add(tombstone).setRefreshPolicy(getRefreshPolicy(waitForRefresh));
+        BulkResponse response = bulk("delete", bulk, true);
+        queryCache.invalidateAll();
+        if (response.hasFailures()) {
+            BulkItemResponse failed = Arrays.stream(response.getItems()).filter(BulkItemResponse::isFailed).findFirst().orElseThrow();
+            throw new ElasticsearchStatusException("No se ha podido borrar el producto " + product.getId() + ": "
+                    + response.buildFailureMessage(), failed.status());
+        }
         return Boolean.TRUE;
     }
 
-    public Optional<Product> findById(String id) {
-        return productRepository.findById(id);
+    private IndexRequest toIndexRequest(Product product) {
+        //El id se genera aqui para que el documento lo lleve tambien en el campo id, que desempata las ordenaciones.
+        //La marca updatedAt la pone el pipeline al indexar
+        if (product.getId() == null) {
+            product.setId(UUIDs.base64UUID());
+        }
+        return new IndexRequest(getWriteIndexName())
+                .id(product.getId())
+                .source(elasticClient.getElasticsearchConverter().mapObject(product))
+                .setPipeline(indexManager.getChangeStampPipeline());
+    }
+
+    /**
+     * Quien pide ver su escritura espera al refresh; el resto, a lo configurado. Por defecto tambien se espera
+     * (wait_for), como hacia el repositorio de Spring Data al refrescar tras cada alta, pero sin forzar el refresh.
+     */
+    private WriteRequest.RefreshPolicy getRefreshPolicy(boolean waitForRefresh) {
+        return waitForRefresh ? WriteRequest.RefreshPolicy.WAIT_UNTIL : WriteRequest.RefreshPolicy.parse(refreshPolicy);
+    }
+
+    /**
+     * Espera a que una escritura diferida llegue al cluster, y falla como lo haria la escritura directa.
+     */
+    private void await(CompletableFuture<Void> written) throws Exception {
+        try {
+            written.get(TimeValue.parseTimeValue(writeAwaitTimeout, "elasticsearch.write-behind.await-timeout").millis(), TimeUnit.MILLISECONDS);
+        } catch (ExecutionException e) {
+            throw e.getCause() instanceof Exception cause ? cause : e;
+        }
+    }
+
+    /**
+     * Con la escritura diferida activa, espera a que lleguen al cluster las escrituras encoladas de los productos
+     * antes de actualizarlos directamente. Ver {@link ProductWriteBuffer#awaitPending}.
+     */
+    private void awaitPendingWrites(List<String> ids) throws Exception {
+        if (writeBuffer.isEnabled()) {
+            await(CompletableFuture.allOf(ids.stream()
+                    .map(id -> writeBuffer.awaitPending(getWriteIndexName(), id))
+                    .toArray(CompletableFuture[]::new)));
+        }
+    }
+
+    /**
+     * Actualizacion parcial en una sola peticion con el API update de Elasticsearch: el merge del documento se
+     * hace en el cluster y se devuelve el _source resultante.
+     * <p>
+     * Si se indica la version esperada la actualizacion solo se aplica si el documento no ha cambiado
+     * (if_seq_no/if_primary_term). Si no, Elasticsearch reintenta internamente los conflictos hasta
+     * elasticsearch.update.retry-on-conflict veces; como el merge es por campo, no se pierden cambios de otros.
+     *
+     * @param id       - identificador del producto
+     * @param changes  - campos a modificar, por nombre de propiedad del producto. Un valor null vacia el campo
+     * @param expected - version esperada del documento, o null para no comprobarla
+     * @return el producto actualizado, o vacio si no existe
+     * @throws IllegalArgumentException           si algun campo no existe o su valor no es valido
+     * @throws OptimisticLockingFailureException si el documento no esta en la version esperada
+     */
+    @SneakyThrows
+    public Optional<Product> update(String id, Map<String, Object> changes, SeqNoPrimaryTerm expected) {
+
+        Map<String, Object> document = toFieldNames(changes);
+        awaitPendingWrites(List.of(id));
+        UpdateRequest request = new UpdateRequest(getWriteIndexName(), id)
+                .script(new Script(ScriptType.INLINE, "painless", MERGE_SCRIPT, Map.of("doc", document)))
+                .fetchSource(true);
+        if (expected != null) {
+            request.setIfSeqNo(expected.getSequenceNumber()).setIfPrimaryTerm(expected.getPrimaryTerm());
+        } else {
+            request.retryOnConflict(retryOnConflict);
+        }
+
+        UpdateResponse response;
+        try {
+            response = call("update", (options, listener) -> elasticsearchClient.updateAsync(request, options, listener));
+        } catch (ElasticsearchStatusException e) {
+            if (e.status() == RestStatus.NOT_FOUND) {
+                productCache.evict(id);
+                return Optional.empty();
+            } else if (e.status() == RestStatus.CONFLICT) {
+                throw new OptimisticLockingFailureException("El producto " + id + " ha sido modificado", e);
+            } else if (e.status() == RestStatus.BAD_REQUEST) {
+                throw new IllegalArgumentException(e.getDetailedMessage(), e);
+            }
+            throw e;
+        }
+
+        Product product = elasticClient.getElasticsearchConverter().read(Product.class, DocumentAdapters.from(response.getGetResult()));
+        product.setId(response.getId());
+        product.setSeqNoPrimaryTerm(new SeqNoPrimaryTerm(response.getSeqNo(), response.getPrimaryTerm()));
+        queryCache.invalidateAll();
+        productCache.put(product);
+        return Optional.of(product);
+    }
+
+    /**
+     * Suma delta a cantidadDisponible con un script en el propio cluster, de modo que ajustes concurrentes sobre
+     * el mismo producto no se pisan. Si el stock quedaria negativo el script no modifica el documento.
+     *
+     * @param id    - identificador del producto
+     * @param delta - unidades a sumar (positivo) o restar (negativo)
+     * @return resultado del ajuste con el stock resultante: 200 si se aplica, 409 si no hay stock suficiente
+     * y 404 si el producto no existe
+     */
+    @SneakyThrows
+    public StockAdjustmentResult adjustStock(String id, long delta) {
+        awaitPendingWrites(List.of(id));
+        try {
+            UpdateResponse response = call("stock", (options, listener) -> elasticsearchClient.updateAsync(stockUpdate(id, delta), options, listener));
+            return toStockResult(id, delta, response);
+        } catch (ElasticsearchStatusException e) {
+            if (e.status() == RestStatus.NOT_FOUND) {
+                return new StockAdjustmentResult(id, null, RestStatus.NOT_FOUND.getStatus(), "Producto no encontrado");
+            }
+            throw e;
+        }
     }
 
+    /**
+     * Ajusta el stock de varios productos en una sola peticion bulk, por ejemplo las lineas de un pedido.
+     * <p>
+     * Cada linea se aplica de forma atomica, pero el lote no: si allOrNothing esta activo y alguna linea falla,
+     * se deshacen con el ajuste contrario las que si se habian aplicado y se marcan como 409.
+     * <p>
+     * Deshacer tambien es un ajuste y puede fallar: las lineas que no se han podido deshacer siguen aplicadas y se
+     * marcan como 500. Pasa por ejemplo al deshacer una entrada de stock si entre medias se han vendido unidades y
+     * el stock quedaria negativo, ya que el script no lo permite.
+     *
+     * @param adjustments  - ajustes a aplicar
+     * @param allOrNothing - deshacer el lote completo si alguna linea falla
+     * @return resultado de cada ajuste, en el mismo orden
+     */
     @SneakyThrows
-    public ProductsQueryResponse findProducts(String nombre, String categoria, String descripcionCorta, String descripcionLarga, Double valorunitario, Integer indValorUnitario, Boolean aggregate) {
+    public List<StockAdjustmentResult> adjustStock(List<StockAdjustment> adjustments, boolean allOrNothing) {
+
+        awaitPendingWrites(adjustments.stream().map(StockAdjustment::getProductId).distinct().toList());
+        BulkRequest request = new BulkRequest();
+        adjustments.forEach(adjustment -> request.add(stockUpdate(adjustment.getProductId(), adjustment.getDelta())));
+        BulkResponse response = bulk("stock_bulk", request);
+
+        List<StockAdjustmentResult> results = new ArrayList<>(adjustments.size());
+        BulkItemResponse[] items = response.getItems();
+        for (int i = 0; i < items.length; i++) {
+            StockAdjustment adjustment = adjustments.get(i);
+            if (items[i].isFailed()) {
+                results.add(new StockAdjustmentResult(adjustment.getProductId(), null, items[i].status().getStatus(), items[i].getFailureMessage()));
+            } else {
+                results.add(toStockResult(adjustment.getProductId(), adjustment.getDelta(), items[i].getResponse()));
+            }
+        }
+
+        boolean failed = results.stream().anyMatch(result -> result.getStatus() != RestStatus.OK.getStatus());
+        if (allOrNothing && failed) {
+            BulkRequest rollback = new BulkRequest();
+            List<StockAdjustmentResult> applied = new ArrayList<>();
+            for (int i = 0; i < results.size(); i++) {
+                StockAdjustmentResult result = results.get(i);
+                if (result.getStatus() == RestStatus.OK.getStatus() && adjustments.get(i).getDelta() != 0) {
+                    rollback.add(stockUpdate(result.getProductId(), -adjustments.get(i).getDelta()));
+                    applied.add(result);
+                }
+            }
+            if (rollback.numberOfActions() > 0) {
+                rollback(rollback, applied);
+            }
+            invalidateStock(applied.stream().map(StockAdjustmentResult::getProductId).toList());
+        }
+        return results;
+    }
+
+    /**
+     * Deshace los ajustes aplicados de un lote. Cada linea queda como 409 si se ha deshecho o como 500 si sigue
+     * aplicada.
+     */
+    private void rollback(BulkRequest rollback, List<StockAdjustmentResult> applied) {
+        BulkItemResponse[] items;
+        try {
+            items = bulk("stock_bulk", rollback).getItems();
+        } catch (Exception e) {
+            log.error("No se ha podido deshacer el ajuste de stock de {} productos", applied.size(), e);
+            applied.forEach(result -> rollbackFailed(result, e.toString()));
+            return;
+        }
+        for (int i = 0; i < items.length; i++) {
+            StockAdjustmentResult result = applied.get(i);
+            if (items[i].isFailed()) {
+                log.error("No se ha podido deshacer el ajuste de stock de {}: {}", result.getProductId(), items[i].getFailureMessage());
+                rollbackFailed(result, items[i].getFailureMessage());
+                continue;
+            }
+            UpdateResponse response = items[i].getResponse();
+            if (response.getResult() == DocWriteResponse.Result.NOOP) {
+                log.error("No se ha podido deshacer el ajuste de stock de {}: el stock quedaria negativo", result.getProductId());
+                rollbackFailed(result, "stock insuficiente para el ajuste contrario");
+                continue;
+            }
+            Object stock = response.getGetResult() == null ? null : response.getGetResult().sourceAsMap().get("cantidadDisponible");
+            result.setCantidadDisponible(stock == null ? null : ((Number) stock).longValue());
+            result.setStatus(RestStatus.CONFLICT.getStatus());
+            result.setError("Ajuste deshecho: otra linea del lote ha fallado");
+        }
+    }
+
+    private static void rollbackFailed(StockAdjustmentResult result, String reason) {
+        result.setStatus(RestStatus.INTERNAL_SERVER_ERROR.getStatus());
+        result.setError("Otra linea del lote ha fallado y este ajuste no se ha podido deshacer, sigue aplicado: " + reason);
+    }
+
+    private UpdateRequest stockUpdate(String id, long delta) {
+        return new UpdateRequest(getWriteIndexName(), id)
+                .script(new Script(ScriptType.INLINE, "painless", STOCK_SCRIPT, Map.of("delta", delta)))
+                .fetchSource(new FetchSourceContext(true, new String[]{"cantidadDisponible"}, null))
+                .retryOnConflict(retryOnConflict);
+    }
+
+    private StockAdjustmentResult toStockResult(String id, long delta, UpdateResponse response) {
+        Object stock = response.getGetResult() == null ? null : response.getGetResult().sourceAsMap().get("cantidadDisponible");
+        Long cantidadDisponible = stock == null ? null : ((Number) stock).longValue();
+        //El script solo deja el documento sin cambios cuando el stock quedaria negativo
+        if (response.getResult() == DocWriteResponse.Result.NOOP && delta != 0) {
+            return new StockAdjustmentResult(id, cantidadDisponible, RestStatus.CONFLICT.getStatus(), "Stock insuficiente");
+        }
+        invalidateStock(List.of(id));
+        return new StockAdjustmentResult(id, cantidadDisponible, RestStatus.OK.getStatus(), null);
+    }
+
+    /**
+     * El stock no esta indexado (cantidadDisponible tiene index: false), asi que un ajuste no cambia que productos
+     * encuentra una busqueda y las busquedas cacheadas siguen siendo validas salvo por el stock que muestran, que
+     * como mucho tiene la antiguedad de elasticsearch.cache.search.ttl. Invalidarlas en cada ajuste ademas dejaria
+     * la cache sin guardar nada mientras lleguen pedidos mas deprisa que la write-grace.
+     */
+    private void invalidateStock(List<String> ids) {
+        ids.forEach(productCache::evict);
+    }
+
+    /**
+     * Traduce los nombres de propiedad del producto (tal y como los usa el API, sin distinguir mayusculas)
+     * a los nombres de campo del documento en Elasticsearch. El id no se puede modificar.
+     */
+    private Map<String, Object> toFieldNames(Map<String, Object> changes) {
+        Map<String, Object> document = new LinkedHashMap<>();
+        changes.forEach((name, value) -> {
+            String fieldName = productFields.fieldName(name);
+            if (fieldName == null) {
+                throw new IllegalArgumentException("Campo no modificable: " + name);
+            }
+            document.put(fieldName, value);
+        });
+        return document;
+    }
+
+    /**
+     * Abre una sesion de carga masiva. Cada llamada crea su propio BulkProcessor para poder devolver
+     * el resultado de cada documento a quien hizo la carga.
+     *
+     * @return sesion de carga que hay que cerrar con {@link BulkIngestion#await()}
+     */
+    public BulkIngestion openBulkIngestion() {
+        return new BulkIngestion(
+                listener -> BulkProcessor.builder(
+                                (request, bulkListener) -> elasticsearchClient.bulkAsync(request, RequestOptions.DEFAULT,
+                                        metrics.timed("bulk", false, bulkListener)),
+                                listener)
+                        .setBulkActions(bulkActions)
+                        .setBulkSize(ByteSizeValue.parseBytesSizeValue(bulkSize, "elasticsearch.bulk.size"))
+                        .setFlushInterval(TimeValue.parseTimeValue(bulkFlushInterval, "elasticsearch.bulk.flush-interval"))
+                        .setConcurrentRequests(bulkConcurrentRequests)
+                        //Reintentamos con espera exponencial los rechazos (429) del cluster cuando va saturado
+                        .setBackoffPolicy(BackoffPolicy.exponentialBackoff(TimeValue.timeValueMillis(100), 5))
+                        .build(),
+                this::toIndexRequest,
+                ids -> {
+                    queryCache.invalidateAll();
+                    ids.forEach(productCache::evict);
+                },
+                TimeValue.parseTimeValue(bulkAwaitTimeout, "elasticsearch.bulk.await-timeout").millis());
+    }
+
+    /**
+     * Busca un producto por id pasando por la near-cache. Si la entrada cacheada necesita revalidarse solo se
+     * pide a Elasticsearch la version del documento; el documento completo solo se trae si ha cambiado. Si el cluster
+     * no responde a la revalidacion se sirve la entrada cacheada.
+     *
+     * @param id     - identificador del producto
+     * @param fields - proyeccion o propiedades a devolver (ver {@link ProductFields#includes(String)}), o null
+     * @return el producto, si existe
+     * @throws IllegalArgumentException si alguna propiedad no existe
+     */
+    @SneakyThrows
+    public Optional<Product> findById(String id, String fields) {
+        //Los documentos parciales se piden directamente al cluster y no se cachean
+        String[] includes = productFields.includes(fields);
+        if (includes != null) {
+            GetResponse response = call("get", (options, listener) -> elasticsearchClient.getAsync(
+                    new GetRequest(getIndexName(), id).fetchSourceContext(new FetchSourceContext(true, includes, null)),
+                    options, listener));
+            return response.isExists()
+                    ? Optional.of(elasticClient.getElasticsearchConverter().read(ProjectedProduct.class, DocumentAdapters.from(response)))
+                    : Optional.empty();
+        }
+
+        CachedProduct cached = productCache.get(id);
+        if (cached != null) {
+            if (!productCache.needsRevalidation(cached)) {
+                return Optional.of(cached.copy());
+            }
+            GetResponse version;
+            try {
+                version = call("get_version", (options, listener) -> elasticsearchClient.getAsync(
+                        new GetRequest(getIndexName(), id).fetchSourceContext(FetchSourceContext.DO_NOT_FETCH_SOURCE),
+                        options, listener));
+            } catch (Exception e) {
+                if (!ElasticsearchResilience.isUnavailable(e)) {
+                    throw e;
+                }
+                log.warn("Cluster no disponible, se sirve el producto {} desde cache: {}", id, e.toString());
+                metrics.recordFallback("get");
+                return Optional.of(cached.copy());
+            }
+            if (version.isExists() && cached.isVersion(version.getSeqNo(), version.getPrimaryTerm())) {
+                productCache.revalidated(cached);
+                return Optional.of(cached.copy());
+            }
+        }
+
+        GetResponse response = call("get", (options, listener) -> elasticsearchClient.getAsync(new GetRequest(getIndexName(), id), options, listener));
+        if (!response.isExists()) {
+            productCache.evict(id);
+            return Optional.empty();
+        }
+        Product product = elasticClient.getElasticsearchConverter().read(Product.class, DocumentAdapters.from(response));
+        productCache.put(product);
+        return Optional.of(product);
+    }
+
+    /**
+     * Busca varios productos por id en una sola peticion multi-get. Sin filtro de campos, los productos que estan
+     * en la near-cache (y no necesitan revalidarse) se sirven desde ella y solo se piden al cluster los demas,
+     * que quedan cacheados. Con filtro de campos se piden todos al cluster y no se cachean, porque son parciales.
+     *
+     * @param ids    - identificadores, en el orden en que se quieren los resultados. Puede haber repetidos
+     * @param fields - propiedades del producto a devolver, o null para devolverlo completo
+     * @return un resultado por id, en el mismo orden
+     * @throws IllegalArgumentException si algun campo no existe
+     */
+    @SneakyThrows
+    public List<ProductMultiGetItem> findAllById(List<String> ids, List<String> fields) {
+
+        String[] includes = productFields.includes(fields);
+        FetchSourceContext fetchSource = includes == null ? FetchSourceContext.FETCH_SOURCE : new FetchSourceContext(true, includes, null);
 
-        BoolQueryBuilder querySpec = QueryBuilders.boolQuery();
+        Map<String, ProductMultiGetItem> resolved = new HashMap<>();
+        MultiGetRequest request = new MultiGetRequest();
+        for (String id : new LinkedHashSet<>(ids)) {
+            CachedProduct cached = includes == null ? productCache.get(id) : null;
+            if (cached != null && !productCache.needsRevalidation(cached)) {
+                resolved.put(id, new ProductMultiGetItem(id, true, cached.copy(), null));
+            } else {
+                request.add(new MultiGetRequest.Item(getIndexName(), id).fetchSourceContext(fetchSource));
+            }
+        }
+
+        if (!request.getItems().isEmpty()) {
+            MultiGetResponse response = call("mget", (options, listener) -> elasticsearchClient.mgetAsync(request, options, listener));
+            for (MultiGetItemResponse item : response.getResponses()) {
+                if (item.isFailed()) {
+                    resolved.put(item.getId(), new ProductMultiGetItem(item.getId(), false, null, item.getFailure().getMessage()));
+                } else if (!item.getResponse().isExists()) {
+                    resolved.put(item.getId(), new ProductMultiGetItem(item.getId(), false, null, null));
+                } else {
+                    Class<? extends Product> type = includes == null ? Product.class : ProjectedProduct.class;
+                    Product product = elasticClient.getElasticsearchConverter().read(type, DocumentAdapters.from(item.getResponse()));
+                    if (includes == null) {
+                        productCache.put(product);
+                    }
+                    resolved.put(item.getId(), new ProductMultiGetItem(item.getId(), true, product, null));
+                }
+            }
+        }
+
+        //Cada posicion lleva su propia copia: los ids repetidos no comparten instancia
+        List<ProductMultiGetItem> results = new ArrayList<>(ids.size());
+        Set<String> served = new HashSet<>();
+        for (String id : ids) {
+            ProductMultiGetItem item = resolved.get(id);
+            if (!served.add(id) && item.getProduct() != null) {
+                item = new ProductMultiGetItem(id, true, copy(item.getProduct()), null);
+            }
+            results.add(item);
+        }
+        return results;
+    }
+
+    //Las proyecciones se copian como proyecciones, para que sigan sin serializar los campos no pedidos
+    private static Product copy(Product product) {
+        if (product instanceof ProjectedProduct) {
+            Product copy = new ProjectedProduct();
+            BeanUtils.copyProperties(product, copy);
+            return copy;
+        }
+        return product.toBuilder().build();
+    }
+
+    /**
+     * Busqueda de productos sin bloquear al llamante: la peticion se envia con el cliente asincrono y el resultado
+     * se mapea en el hilo de IO que recibe la respuesta, igual que hace el propio cliente al parsearla.
+     *
+     * Si el cluster no esta disponible se responde con la ultima respuesta correcta a la misma busqueda, si la hay.
+     *
+     * @param criteria - criterios de busqueda
+     * @return la pagina de productos y, si se piden, las agregaciones y el perfil de la busqueda. Si se pide el perfil
+     * y no esta habilitado falla con IllegalArgumentException
+     */
+    public CompletableFuture<ProductsQueryResponse> findProducts(ProductSearchCriteria criteria) {
+        return findProducts(criteria, this::search);
+    }
+
+    /**
+     * Varias busquedas de productos en una sola peticion al cluster (multi-search), por ejemplo los carruseles por
+     * categoria de una portada. Cada busqueda pasa por la cache igual que en {@link #findProducts(ProductSearchCriteria)}
+     * y solo las que no estan cacheadas ni en curso se envian, todas juntas. Las que continuan una paginacion o piden
+     * el perfil se ejecutan por separado, como siempre.
+     * <p>
+     * El fallo de una busqueda no afecta a las demas: cada una lleva su propio estado.
+     *
+     * @param criteria - criterios de cada busqueda
+     * @return un resultado por busqueda, en el mismo orden
+     */
+    public CompletableFuture<List<ProductMultiSearchItem>> findProducts(List<ProductSearchCriteria> criteria) {
+
+        MultiSearchBatch batch = new MultiSearchBatch();
+        List<CompletableFuture<ProductMultiSearchItem>> items = new ArrayList<>(criteria.size());
+        for (ProductSearchCriteria searchCriteria : criteria) {
+            items.add(findProducts(searchCriteria, batch::add).handle(this::toMultiSearchItem));
+        }
+        batch.send();
+
+        return CompletableFuture.allOf(items.toArray(CompletableFuture[]::new))
+                .thenApply(done -> items.stream().map(CompletableFuture::join).toList());
+    }
+
+    private CompletableFuture<ProductsQueryResponse> findProducts(ProductSearchCriteria criteria,
+                                                                  Function<ProductSearchCriteria, CompletableFuture<ProductsQueryResponse>> loader) {
+        return queryCache.get(criteria, loader).exceptionallyCompose(e -> {
+            ProductsQueryResponse stale = ElasticsearchResilience.isUnavailable(e) ? queryCache.getStale(criteria) : null;
+            if (stale == null) {
+                return CompletableFuture.failedFuture(e);
+            }
+            log.warn("Cluster no disponible, se sirve la busqueda desde cache: {}", e.toString());
+            metrics.recordFallback("search");
+            return CompletableFuture.completedFuture(stale);
+        });
+    }
+
+    private CompletableFuture<ProductsQueryResponse> search(ProductSearchCriteria criteria) {
+
+        checkProfile(criteria);
+        int pageSize = getPageSize(criteria.getSize());
+        boolean paging = !StringUtils.isEmpty(criteria.getCursor());
+        //Las agregaciones solo se calculan con la primera pagina; al seguir paginando no cambian
+        boolean facets = Boolean.TRUE.equals(criteria.getAggregate()) && !paging;
+        SearchCursor after = paging ? SearchCursor.decode(criteria.getCursor()) : null;
+        String[] includes = productFields.includes(criteria.getFields());
+        ProductQueryShape shape = ProductQueryShape.of(criteria);
+
+        //La primera pagina se sirve sin point in time; solo si el cliente sigue paginando lo abrimos.
+        //Es deliberado: abrirlo en todas las primeras paginas costaria una llamada y un contexto en cada shard por
+        //busqueda, cuando la mayoria no pasa de ahi, e impediria servirlas desde cache o por plantilla (sus cursores
+        //llevan pit=null). El precio es que el salto de la pagina 1 a la 2 no es una foto consistente: search_after
+        //continua por valores de ordenacion, asi que un producto que cambie de precio o categoria entre las dos
+        //peticiones puede repetirse o no salir. De la pagina 2 en adelante si se pagina sobre el mismo point in time.
+        //Un cursor emitido con otra ordenacion (p.ej. antes de desempatar por id, o con y sin criterios de texto) no
+        //se puede continuar. Se comprueba antes de abrir el point in time, que si no quedaria abierto para nada
+        SearchSourceBuilder pagedSource = after == null ? null : buildSearchSource(criteria, pageSize, facets, includes);
+        if (pagedSource != null && after.getAfter().length != pagedSource.sorts().size()) {
+            throw new IllegalArgumentException("Cursor no valido");
+        }
+        boolean opensPit = after != null && after.getPit() == null;
+        CompletableFuture<String> pointInTime = after == null ? CompletableFuture.completedFuture(null)
+                : !opensPit ? CompletableFuture.completedFuture(after.getPit())
+                : openPointInTime();
+
+        CompletableFuture<ProductsQueryResponse> search = pointInTime.thenCompose(pitId -> {
+            long start = System.nanoTime();
+            CompletableFuture<SearchResponse> response;
+            Supplier<String> query;
+            //Las primeras paginas van por plantilla si estan habilitadas; con point in time se envia la consulta completa
+            if (pitId == null && useTemplate(criteria)) {
+                SearchTemplateRequest request = searchTemplates.buildRequest(getIndexName(), criteria, pageSize, includes, getSourceExcludes(criteria));
+                query = () -> Strings.toString(request);
+                response = resilience.<SearchResponse>executeAsync("search", facets, true, (options, listener) ->
+                        searchTemplates.searchAsync(request, options, metrics.timed("search", facets, listener)));
+            } else {
+                SearchSourceBuilder sourceBuilder = pagedSource != null ? pagedSource : buildSearchSource(criteria, pageSize, facets, includes);
+                if (pitId != null) {
+                    sourceBuilder.searchAfter(after.getAfter());
+                    sourceBuilder.pointInTimeBuilder(new PointInTimeBuilder(pitId).setKeepAlive(getPitKeepAlive()));
+                }
+
+                //Con point in time la peticion no puede llevar indices: el PIT ya determina sobre que se busca
+                SearchRequest request = pitId == null ? new SearchRequest(getIndexName()) : new SearchRequest();
+                request.source(sourceBuilder);
+                if (pitId != null) {
+                    request.setCcsMinimizeRoundtrips(false);
+                }
+                query = () -> Strings.toString(sourceBuilder);
+
+                //Solo se duplican las primeras paginas: las que siguen un cursor dependen de su point in time
+                response = resilience.<SearchResponse>executeAsync("search", facets, pitId == null, (options, listener) ->
+                        elasticsearchClient.searchAsync(request, options, metrics.timed("search", facets, listener)));
+            }
+
+            return response.handle((result, e) -> {
+                long elapsed = System.nanoTime() - start;
+                metrics.recordShape(shape, elapsed, e == null);
+                if (e == null) {
+                    logIfSlow(shape, query, result, elapsed);
+                    return toQueryResponse(criteria, result, pageSize, pitId);
+                }
+                Throwable cause = e instanceof CompletionException && e.getCause() != null ? e.getCause() : e;
+                if (pitId != null && cause instanceof ElasticsearchStatusException statusException
+                        && statusException.status() == RestStatus.NOT_FOUND) {
+                    throw new IllegalArgumentException("El cursor ha expirado", cause);
+                }
+                throw e instanceof CompletionException completion ? completion : new CompletionException(e);
+            });
+        });
+        if (opensPit) {
+            //Si la busqueda falla el cliente no recibe cursor con el point in time abierto para ella: se cierra ya
+            search.whenComplete((response, e) -> {
+                if (e != null && pointInTime.isDone() && !pointInTime.isCompletedExceptionally()) {
+                    closePointInTime(pointInTime.join());
+                }
+            });
+        }
+        return search;
+    }
+
+    private boolean useTemplate(ProductSearchCriteria criteria) {
+        return searchTemplates.isEnabled() && !Boolean.TRUE.equals(criteria.getProfile());
+    }
+
+    private static String[] getSourceExcludes(ProductSearchCriteria criteria) {
+        return Boolean.TRUE.equals(criteria.getLean()) ? ProductSourceList.SOURCE_EXCLUDES : null;
+    }
+
+    private SearchSourceBuilder buildSearchSource(ProductSearchCriteria criteria, int pageSize, boolean facets, String[] includes) {
+        SearchSourceBuilder sourceBuilder = queryFactory.buildSearch(criteria, pageSize, facets);
+        String[] excludes = getSourceExcludes(criteria);
+        if (includes != null || excludes != null) {
+            sourceBuilder.fetchSource(includes, excludes);
+        }
+        if (Boolean.TRUE.equals(criteria.getProfile())) {
+            sourceBuilder.profile(true);
+        }
+        return sourceBuilder;
+    }
+
+    private void checkProfile(ProductSearchCriteria criteria) {
+        if (Boolean.TRUE.equals(criteria.getProfile()) && !profileEnabled) {
+            throw new IllegalArgumentException("El perfilado de busquedas no esta habilitado");
+        }
+    }
+
+    /**
+     * Busquedas pendientes de un multi-search. Hace de loader de la cache: en lugar de lanzar cada busqueda la
+     * apunta, y {@link #send()} las envia todas en una peticion y completa cada una con su respuesta. Como ninguna
+     * lleva perfilado, van todas por plantilla o todas con la consulta completa.
+     */
+    private class MultiSearchBatch {
+
+        private final boolean templates = searchTemplates.isEnabled();
+        private final MultiSearchRequest request = new MultiSearchRequest();
+        private final MultiSearchTemplateRequest templateRequest = new MultiSearchTemplateRequest();
+        private final List<ProductSearchCriteria> criteria = new ArrayList<>();
+        private final List<Integer> pageSizes = new ArrayList<>();
+        private final List<Supplier<String>> queries = new ArrayList<>();
+        private final List<CompletableFuture<ProductsQueryResponse>> responses = new ArrayList<>();
+        private boolean facets;
+        private long start;
+
+        CompletableFuture<ProductsQueryResponse> add(ProductSearchCriteria searchCriteria) {
+            if (searchCriteria.getCursor() != null || Boolean.TRUE.equals(searchCriteria.getProfile())) {
+                return search(searchCriteria);
+            }
+            int pageSize = getPageSize(searchCriteria.getSize());
+            boolean searchFacets = Boolean.TRUE.equals(searchCriteria.getAggregate());
+            String[] includes = productFields.includes(searchCriteria.getFields());
+            if (templates) {
+                SearchTemplateRequest search = searchTemplates.buildRequest(getIndexName(), searchCriteria, pageSize, includes, getSourceExcludes(searchCriteria));
+                templateRequest.add(search);
+                queries.add(() -> Strings.toString(search));
+            } else {
+                SearchSourceBuilder sourceBuilder = buildSearchSource(searchCriteria, pageSize, searchFacets, includes);
+                request.add(new SearchRequest(getIndexName()).source(sourceBuilder));
+                queries.add(() -> Strings.toString(sourceBuilder));
+            }
+
+            CompletableFuture<ProductsQueryResponse> response = new CompletableFuture<>();
+            criteria.add(searchCriteria);
+            pageSizes.add(pageSize);
+            responses.add(response);
+            facets |= searchFacets;
+            return response;
+        }
+
+        void send() {
+            if (responses.isEmpty()) {
+                return;
+            }
+            start = System.nanoTime();
+            if (templates) {
+                resilience.<MultiSearchResponse>executeAsync("msearch", facets, true, (options, listener) ->
+                                searchTemplates.msearchAsync(templateRequest, options, metrics.timed("msearch", facets, listener)))
+                        .whenComplete(this::complete);
+            } else {
+                resilience.<MultiSearchResponse>executeAsync("msearch", facets, true, (options, listener) ->
+                                elasticsearchClient.msearchAsync(request, options, metrics.timed("msearch", facets, listener)))
+                        .whenComplete(this::complete);
+            }
+        }
+
+        private void complete(MultiSearchResponse result, Throwable e) {
+            for (int i = 0; i < responses.size(); i++) {
+                MultiSearchResponse.Item item = e == null ? result.getResponses()[i] : null;
+                complete(i, item == null || item.isFailure() ? null : item.getResponse(), e != null ? e : item.getFailure());
+            }
+        }
+
+        private void complete(int i, SearchResponse result, Throwable failure) {
+            long elapsed = System.nanoTime() - start;
+            ProductQueryShape shape = ProductQueryShape.of(criteria.get(i));
+            metrics.recordShape(shape, elapsed, failure == null);
+            if (failure != null) {
+                responses.get(i).completeExceptionally(failure);
+                return;
+            }
+            try {
+                logIfSlow(shape, queries.get(i), result, elapsed);
+                responses.get(i).complete(toQueryResponse(criteria.get(i), result, pageSizes.get(i), null));
+            } catch (RuntimeException e) {
+                responses.get(i).completeExceptionally(e);
+            }
+        }
+    }
+
+    private ProductMultiSearchItem toMultiSearchItem(ProductsQueryResponse response, Throwable error) {
+        if (error == null) {
+            return new ProductMultiSearchItem(RestStatus.OK.getStatus(), response, null);
+        }
+        Throwable cause = error instanceof CompletionException && error.getCause() != null ? error.getCause() : error;
+        RestStatus status = cause instanceof IllegalArgumentException ? RestStatus.BAD_REQUEST
+                : ElasticsearchResilience.isUnavailable(cause) ? RestStatus.SERVICE_UNAVAILABLE
+                : ExceptionsHelper.status(cause);
+        if (status.getStatus() >= 500) {
+            log.warn("Busqueda fallida dentro de un multi-search: {}", cause.toString());
+        }
+        return new ProductMultiSearchItem(status.getStatus(), null, cause.getMessage());
+    }
 
-        if (!StringUtils.isEmpty(nombre)) {
-            querySpec.must(QueryBuilders.multiMatchQuery(nombre, nombreSearchFields).type(Type.BOOL_PREFIX));
+    /**
+     * Registra la consulta tal y como se envia al cluster (o la plantilla y sus parametros) si la busqueda ha superado
+     * el umbral configurado, junto con su forma, lo que tardo en el cluster (took) y lo que tardo vista desde aqui,
+     * para separar la lentitud del cluster de la del servicio.
+     */
+    private void logIfSlow(ProductQueryShape shape, Supplier<String> query, SearchResponse result, long elapsedNanos) {
+        long thresholdMillis = TimeValue.parseTimeValue(slowQueryThreshold, "elasticsearch.search.slow-query-threshold").millis();
+        long elapsedMillis = TimeUnit.NANOSECONDS.toMillis(elapsedNanos);
+        if (thresholdMillis > 0 && elapsedMillis >= thresholdMillis && slowQueryLog.isWarnEnabled()) {
+            slowQueryLog.warn("Busqueda lenta ({}): {} ms (took {} ms), {} resultados, {} shards. Consulta: {}",
+                    shape, elapsedMillis, result.getTook().millis(), result.getHits().getHits().length,
+                    result.getTotalShards(), query.get());
         }
+    }
 
-        if (!StringUtils.isEmpty(categoria)) {
-            querySpec.must(QueryBuilders.matchQuery("categoria", categoria));
+    /**
+     * Sugerencias de autocompletado por nombre: solo id y nombre de unos pocos productos, con los prefijos cortos
+     * servidos desde cache.
+     *
+     * @param prefix - texto tecleado
+     * @param size   - numero de sugerencias, o null para el valor por defecto
+     * @return las sugerencias, por relevancia
+     * @throws IllegalArgumentException si el tamaño no es valido
+     */
+    public CompletableFuture<List<ProductSuggestion>> suggest(String prefix, Integer size) {
+        if (size != null && size < 1) {
+            throw new IllegalArgumentException("El numero de sugerencias debe ser mayor que cero");
         }
+        int suggestSize = size == null ? defaultSuggestSize : Math.min(size, maxSuggestSize);
+        String normalized = prefix.trim().replaceAll("\\s+", " ").toLowerCase(Locale.ROOT);
+
+        return suggestCache.get(normalized, suggestSize, () -> {
+            SearchRequest request = new SearchRequest(getIndexName()).source(queryFactory.buildSuggest(normalized, suggestSize));
+            return resilience.<SearchResponse>executeAsync("suggest", false, true, (options, listener) ->
+                            elasticsearchClient.searchAsync(request, options, metrics.timed("suggest", false, listener)))
+                    .thenApply(result -> resultMapper.toSuggestions(result.getHits().getHits(), normalized));
+        });
+    }
 
-        if (!StringUtils.isEmpty(descripcionCorta)) {
-            querySpec.must(QueryBuilders.multiMatchQuery(descripcionCorta, descripcioncortaSearchFields).type(Type.BOOL_PREFIX));
+    private ProductsQueryResponse toQueryResponse(ProductSearchCriteria criteria, SearchResponse result, int pageSize, String pitId) {
+        SearchHit[] hits = result.getHits().getHits();
+        String nextCursor = null;
+        if (hits.length == pageSize) {
+            //ES puede devolver un identificador de PIT distinto en cada respuesta, siempre usamos el ultimo
+            String nextPit = result.pointInTimeId() != null ? result.pointInTimeId() : pitId;
+            nextCursor = new SearchCursor(nextPit, hits[hits.length - 1].getSortValues()).encode();
+        } else if (pitId != null) {
+            closePointInTime(pitId);
         }
 
-        if (!StringUtils.isEmpty(descripcionLarga)) {
-            querySpec.must(QueryBuilders.multiMatchQuery(descripcionLarga, descripcionlargaSearchFields).type(Type.BOOL_PREFIX));
+        Map<String, List<AggregationDetails>> responseFacets = resultMapper.toFacets(criteria, result);
+        List<Product> products = Boolean.TRUE.equals(criteria.getLean()) ? resultMapper.toProductSources(hits)
+                : resultMapper.toProducts(hits, productFields.includes(criteria.getFields()) != null);
+        return new ProductsQueryResponse(products,
+                responseFacets.getOrDefault(ProductSearchQueryFactory.FACET_CATEGORIA, Collections.emptyList()),
+                responseFacets, nextCursor, resultMapper.toProfile(result));
+    }
+
+    /**
+     * Recorre todos los productos que cumplen los criterios sin acumularlos en memoria. Se usa un scroll
+     * ordenado por _doc, que es el orden mas barato de leer para Elasticsearch.
+     *
+     * @param consumer - recibe cada producto segun llega del cluster
+     */
+    public void exportProducts(ProductSearchCriteria criteria, Consumer<Product> consumer) {
+
+        Query query = new NativeSearchQueryBuilder()
+                .withQuery(queryFactory.buildQuery(criteria))
+                .withSort(SortBuilders.fieldSort("_doc"))
+                .withPageable(PageRequest.of(0, exportBatchSize))
+                .build();
+
+        try (SearchHitsIterator<Product> hits = elasticClient.searchForStream(query, Product.class)) {
+            hits.forEachRemaining(hit -> consumer.accept(hit.getContent()));
         }
+    }
 
-        //Si no he recibido ningun parametro, busco todos los elementos.
-        if (!querySpec.hasClauses()) {
-            querySpec.must(QueryBuilders.matchAllQuery());
+    /**
+     * Feed de cambios: productos creados, modificados o borrados despues del token, en el orden en que se escribieron
+     * (marca updatedAt y, a igualdad, id). Las altas y modificaciones llevan el producto completo; los borrados son
+     * marcas con solo el id. Se pagina con search_after sobre el producto y el indice de borrados a la vez, filtrando
+     * por rango de updatedAt para que el cluster solo lea lo que ha cambiado.
+     * <p>
+     * Sin token se empieza por el principio: primero los productos sin marca, escritos antes de existir el feed, y
+     * despues el resto. Los cambios de los ultimos segundos (elasticsearch.changes.settle) no se entregan todavia: aun
+     * pueden no ser visibles, o llegar con una marca anterior puesta por otro nodo.
+     * <p>
+     * Las marcas las pone el cluster (pipeline de ingesta en altas y borrados, ctx._now en las actualizaciones), no
+     * cada instancia del servicio. Se asume que los relojes de los nodos del cluster no se separan mas que el margen
+     * settle; si lo hicieran, un token podria adelantar cambios marcados despues y esos cambios no se entregarian.
+     *
+     * @param since - token de la respuesta anterior, o null para empezar por el principio
+     * @param size  - numero maximo de cambios, o null para el valor por defecto
+     * @return los cambios y el token para pedir los siguientes
+     * @throws IllegalArgumentException si el token o el tamaño no son validos
+     */
+    @SneakyThrows
+    public ProductChangesResponse findChanges(String since, Integer size) {
+        if (size != null && size < 1) {
+            throw new IllegalArgumentException("El numero de cambios debe ser mayor que cero");
         }
+        int pageSize = size == null ? defaultChangesSize : Math.min(size, maxChangesSize);
+        Object[] after = since == null ? null : decodeChangeToken(since);
 
-        //Filtro implicito
-        //No le pido al usuario que lo introduzca pero lo aplicamos proactivamente en todas las peticiones
-        //En este caso, que los productos sean visibles (estado correcto de la entidad)
-        //querySpec.must(QueryBuilders.termQuery("visible", true));
+        long until = System.currentTimeMillis() - TimeValue.parseTimeValue(changesSettle, "elasticsearch.changes.settle").millis();
+        BoolQueryBuilder query = QueryBuilders.boolQuery();
+        if (after != null && (Long) after[0] != Long.MIN_VALUE) {
+            query.filter(QueryBuilders.rangeQuery(UPDATED_AT).gte(after[0]).lte(until));
+        } else {
+            query.should(QueryBuilders.rangeQuery(UPDATED_AT).lte(until))
+                    .should(QueryBuilders.boolQuery().mustNot(QueryBuilders.existsQuery(UPDATED_AT)))
+                    .minimumShouldMatch(1);
+        }
 
-        NativeSearchQueryBuilder nativeSearchQueryBuilder = new NativeSearchQueryBuilder().withQuery(querySpec);
+        //Los productos sin marca van primero (su valor de ordenacion es Long.MIN_VALUE) para poder seguir despues
+        SearchSourceBuilder sourceBuilder = new SearchSourceBuilder()
+                .query(QueryBuilders.constantScoreQuery(query))
+                .sort(SortBuilders.fieldSort(UPDATED_AT).order(SortOrder.ASC).missing("_first"))
+                .sort(SortBuilders.fieldSort("id").order(SortOrder.ASC))
+                .trackTotalHits(false)
+                .size(pageSize);
+        if (after != null) {
+            sourceBuilder.searchAfter(after);
+        }
+        String tombstoneIndex = indexManager.getTombstoneIndex();
+        SearchRequest request = new SearchRequest(getIndexName(), tombstoneIndex)
+                .indicesOptions(IndicesOptions.lenientExpandOpen())
+                .source(sourceBuilder);
+        SearchResponse response = call("changes", (options, listener) -> elasticsearchClient.searchAsync(request, options, listener));
 
-        if (aggregate) {
-            nativeSearchQueryBuilder.addAggregation(AggregationBuilders.terms("Agrupacion por Categoria").field("categoria").size(1000));
-            nativeSearchQueryBuilder.withMaxResults(0);
+        SearchHit[] hits = response.getHits().getHits();
+        List<ProductChange> changes = new ArrayList<>(hits.length);
+        for (SearchHit hit : hits) {
+            long stamp = ((Number) hit.getSortValues()[0]).longValue();
+            Long updatedAt = stamp == Long.MIN_VALUE ? null : stamp;
+            if (tombstoneIndex.equals(hit.getIndex())) {
+                changes.add(new ProductChange(hit.getId(), true, updatedAt, null));
+            } else {
+                changes.add(new ProductChange(hit.getId(), false, updatedAt, resultMapper.toProduct(hit)));
+            }
         }
+        String next = hits.length == 0 ? since : new SearchCursor(null, hits[hits.length - 1].getSortValues()).encode();
+        return new ProductChangesResponse(changes, next);
+    }
 
-        //Opcionalmente, podemos paginar los resultados
-        //nativeSearchQueryBuilder.withPageable(PageRequest.of(0, 10));
+    /**
+     * @return los valores de search_after del token: marca de escritura e id
+     */
+    private static Object[] decodeChangeToken(String token) {
+        Object[] after = SearchCursor.decode(token).getAfter();
+        if (after.length != 2 || !(after[0] instanceof Number stamp) || !(after[1] instanceof String)) {
+            throw new IllegalArgumentException("Token no valido");
+        }
+        return new Object[]{stamp.longValue(), after[1]};
+    }
 
-        Query query = nativeSearchQueryBuilder.build();
-        SearchHits<Product> result = elasticClient.search(query, Product.class);
+    /**
+     * Llamada al cluster, esperando su respuesta, protegida por {@link ElasticsearchResilience} y medida por
+     * {@link ElasticsearchMetrics}.
+     */
+    private <T> T call(String operation, ElasticsearchResilience.AsyncCall<T> call) throws Exception {
+        long deadline = System.nanoTime() + TimeValue.parseTimeValue(writeBlockWait, "elasticsearch.write.block-wait").nanos();
+        while (true) {
+            try {
+                return resilience.execute(operation, (options, listener) -> call.send(options, metrics.timed(operation, false, listener)));
+            } catch (ElasticsearchStatusException e) {
+                //Al final de una reindexacion el indice no admite escrituras unos segundos: se espera a que acabe
+                if (!ProductIndexManager.isWriteBlocked(e) || System.nanoTime() > deadline) {
+                    throw e;
+                }
+                Thread.sleep(WRITE_BLOCK_RETRY_MILLIS);
+            }
+        }
+    }
+
+    /**
+     * Bulk sincrono con la misma espera que {@link #call} si el indice esta bloqueado: en ese caso fallan todos los
+     * elementos, porque van todos al mismo indice.
+     */
+    private BulkResponse bulk(String operation, BulkRequest request) throws Exception {
+        return bulk(operation, request, false);
+    }
+
+    /**
+     * @param idempotent - los elementos se pueden repetir sin efecto, asi que el bulk se reenvia entero en cuanto
+     *                   alguno falla por el bloqueo, aunque otros vayan a indices que no se bloquean (p.ej. un
+     *                   borrado y su marca de borrado)
+     */
+    private BulkResponse bulk(String operation, BulkRequest request, boolean idempotent) throws Exception {
+        long deadline = System.nanoTime() + TimeValue.parseTimeValue(writeBlockWait, "elasticsearch.write.block-wait").nanos();
+        while (true) {
+            BulkResponse response = call(operation, (options, listener) -> elasticsearchClient.bulkAsync(request, options, listener));
+            Predicate<BulkItemResponse> isBlocked = item -> item.isFailed() && ProductIndexManager.isWriteBlocked(item.status(), item.getFailureMessage());
+            boolean blocked = response.hasFailures() && (idempotent
+                    ? Arrays.stream(response.getItems()).anyMatch(isBlocked)
+                    : Arrays.stream(response.getItems()).allMatch(isBlocked));
+            if (!blocked || System.nanoTime() > deadline) {
+                return response;
+            }
+            Thread.sleep(WRITE_BLOCK_RETRY_MILLIS);
+        }
+    }
+
+    /**
+     * Lanza en segundo plano el volcado de los productos a un indice nuevo con los mappings y settings actuales y el
+     * cambio de los alias, sin cortar las busquedas. Ver {@link ProductIndexManager#startReindex(boolean)}.
+     */
+    public ReindexTask startReindex(boolean deletePrevious) {
+        return indexManager.startReindex(deletePrevious);
+    }
+
+    public Optional<ReindexTask> getReindexTask(String id) {
+        return indexManager.getReindexTask(id);
+    }
 
-        List<AggregationDetails> responseAggs = new LinkedList<>();
+    // Alias de lectura: busquedas y lecturas por id
+    private String getIndexName() {
+        return elasticClient.getIndexCoordinatesFor(Product.class).getIndexName();
+    }
 
-        if (result.hasAggregations()) {
-            Map<String, Aggregation> aggs = result.getAggregations().asMap();
-            ParsedStringTerms countryAgg = (ParsedStringTerms) aggs.get("Agrupacion por Categoria");
+    // Alias de escritura: altas, modificaciones y borrados
+    private String getWriteIndexName() {
+        return indexManager.getWriteAlias();
+    }
 
-            //Componemos una URI basada en serverFullAddress y query params para cada argumento, siempre que no viniesen vacios
-            String queryParams = getQueryParams(nombre, descripcionCorta, descripcionLarga,categoria);
-            countryAgg.getBuckets()
-                    .forEach(
-                            bucket -> responseAggs.add(
-                                    new AggregationDetails(
-                                            bucket.getKey().toString(),
-                                            (int) bucket.getDocCount(),
-                                            serverFullAddress + "/products?categoria=" + bucket.getKey() + queryParams)));
+    private int getPageSize(Integer size) {
+        if (size == null) {
+            return defaultPageSize;
+        }
+        if (size < 1) {
+            throw new IllegalArgumentException("El tamaño de pagina debe ser mayor que cero");
         }
-        return new ProductsQueryResponse(result.getSearchHits().stream().map(SearchHit::getContent).toList(), responseAggs);
+        return Math.min(size, maxPageSize);
+    }
+
+    private TimeValue getPitKeepAlive() {
+        return TimeValue.parseTimeValue(pitKeepAlive, "elasticsearch.search.pit-keep-alive");
     }
 
     /**
-     * Componemos una URI basada en serverFullAddress y query params para cada argumento, siempre que no viniesen vacios
+     * Abre un point in time sobre el indice de productos. El cliente de alto nivel de la version 7.10
+     * no expone esta API, por lo que usamos el cliente de bajo nivel, pasando como el resto de llamadas por el
+     * circuit breaker, el bulkhead y el plazo de la operacion (open_pit).
      *
-     * @param nombre        - nombre del producto
-     * @param categoria - categoria del producto
-     * @param descripcioncorta     - descripcion corta del producto
-     * @param descripcionlarga     - descripcion larga del producto
-     * @return
+     * @return identificador del point in time
      */
-    private String getQueryParams(String nombre, String descripcionlarga, String descripcioncorta, String categoria) {
-        String queryParams = (StringUtils.isEmpty(nombre) ? "" : "&nombre=" + nombre)
-                + (StringUtils.isEmpty(categoria) ? "" : "&categoria=" + categoria)
-                + (StringUtils.isEmpty(descripcioncorta) ? "" : "&descripcioncorta=" + descripcioncorta)
-                + (StringUtils.isEmpty(descripcionlarga) ? "" : "&descripcionlarga=" + descripcionlarga);
-        // Eliminamos el ultimo & si existe
-        return queryParams.endsWith("&") ? queryParams.substring(0, queryParams.length() - 1) : queryParams;
+    private CompletableFuture<String> openPointInTime() {
+        return resilience.executeAsync("open_pit", false, false, (options, listener) -> {
+            ActionListener<String> timed = metrics.timed("open_pit", false, listener);
+            Request request = new Request("POST", "/" + getIndexName() + "/_pit");
+            request.addParameter("keep_alive", pitKeepAlive);
+            request.setOptions(options);
+            return elasticsearchClient.getLowLevelClient().performRequestAsync(request, new ResponseListener() {
+                @Override
+                public void onSuccess(Response response) {
+                    String pitId;
+                    try (InputStream content = response.getEntity().getContent()) {
+                        pitId = (String) XContentHelper.convertToMap(JsonXContent.jsonXContent, content, false).get("id");
+                    } catch (IOException e) {
+                        timed.onFailure(e);
+                        return;
+                    }
+                    timed.onResponse(pitId);
+                }
+
+                @Override
+                public void onFailure(Exception exception) {
+                    //Un error del cluster como con el cliente de alto nivel, para que solo cuenten como fallo sus 5xx
+                    timed.onFailure(exception instanceof ResponseException responseException
+                            ? new ElasticsearchStatusException(responseException.getMessage(),
+                            RestStatus.fromCode(responseException.getResponse().getStatusLine().getStatusCode()), responseException)
+                            : exception);
+                }
+            });
+        });
+    }
+
+    /**
+     * Liberamos el point in time en cuanto se sirve la ultima pagina, sin esperar a que caduque.
+     * Se hace de forma asincrona para no penalizar la latencia de la respuesta.
+     *
+     * @param pitId - identificador del point in time
+     */
+    private void closePointInTime(String pitId) {
+        Request request = new Request("DELETE", "/_pit");
+        request.setJsonEntity("{\"id\":\"" + pitId + "\"}");
+        elasticsearchClient.getLowLevelClient().performRequestAsync(request, new ResponseListener() {
+            @Override
+            public void onSuccess(Response response) {
+                log.debug("Point in time cerrado");
+            }
+
+            @Override
+            public void onFailure(Exception exception) {
+                log.warn("No se ha podido cerrar el point in time", exception);
+            }
+        });
     }
 }
@@ -0,0 +1,129 @@
+package com.unir.products.data;
+
+import io.micrometer.core.instrument.Counter;
+import io.micrometer.core.instrument.DistributionSummary;
+import io.micrometer.core.instrument.MeterRegistry;
+import io.micrometer.core.instrument.Timer;
+import io.micrometer.core.instrument.distribution.ValueAtPercentile;
+import org.elasticsearch.action.ActionListener;
+import org.elasticsearch.action.search.SearchResponse;
+import org.springframework.stereotype.Component;
+
+import java.util.concurrent.CancellationException;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Metricas de las llamadas a Elasticsearch que hace {@link DataAccessRepository}, etiquetadas por operacion y por
+ * si la busqueda lleva agregaciones:
+ * <ul>
+ *     <li>{@code elasticsearch.requests}: latencia vista desde el cliente, de envio a respuesta parseada.</li>
+ *     <li>{@code elasticsearch.took}: tiempo que el propio cluster dice haber tardado en las busquedas. Si la
+ *     latencia del cliente crece y el took no, el tiempo se va en red, en el pool de conexiones o en el parseo.</li>
+ *     <li>{@code elasticsearch.search.hits}: documentos devueltos por busqueda.</li>
+ *     <li>{@code elasticsearch.search.shape}: latencia de las busquedas de productos por forma de la busqueda
+ *     ({@link ProductQueryShape}), para ver que combinaciones de criterios son las caras.</li>
+ *     <li>{@code elasticsearch.fallback}: respuestas servidas desde cache porque el cluster no respondia.</li>
+ * </ul>
+ * El tamaño de las respuestas y la ocupacion del pool de conexiones se publican desde la configuracion del cliente.
+ */
+@Component
+public class ElasticsearchMetrics {
+
+    private final MeterRegistry meterRegistry;
+
+    public ElasticsearchMetrics(MeterRegistry meterRegistry) {
+        this.meterRegistry = meterRegistry;
+    }
+
+    /**
+     * Envuelve el listener de una llamada asincrona para medirla. El reloj arranca al crear el listener, asi que hay
+     * que crearlo justo al enviar la peticion.
+     */
+    public <T> ActionListener<T> timed(String operation, boolean aggregate, ActionListener<T> listener) {
+        Timer.Sample sample = Timer.start(meterRegistry);
+        return new ActionListener<>() {
+            @Override
+            public void onResponse(T response) {
+                sample.stop(requestTimer(operation, aggregate, "success"));
+                if (response instanceof SearchResponse searchResponse) {
+                    recordSearch(operation, aggregate, searchResponse);
+                }
+                listener.onResponse(response);
+            }
+
+            @Override
+            public void onFailure(Exception e) {
+                //Las peticiones canceladas son las que pierden frente a su duplicada, no son errores
+                sample.stop(requestTimer(operation, aggregate, e instanceof CancellationException ? "cancelled" : "error"));
+                listener.onFailure(e);
+            }
+        };
+    }
+
+    /**
+     * Percentil 95 de la latencia de las llamadas correctas de la operacion, sobre una ventana de los ultimos minutos.
+     *
+     * @param minSamples - llamadas necesarias para dar el percentil por bueno
+     * @return el percentil en nanosegundos, o -1 si aun no hay suficientes llamadas
+     */
+    public long p95Nanos(String operation, boolean aggregate, long minSamples) {
+        Timer timer = requestTimer(operation, aggregate, "success");
+        if (timer.count() < minSamples) {
+            return -1;
+        }
+        for (ValueAtPercentile percentile : timer.takeSnapshot().percentileValues()) {
+            if (percentile.percentile() == 0.95) {
+                return (long) percentile.value(TimeUnit.NANOSECONDS);
+            }
+        }
+        return -1;
+    }
+
+    /**
+     * Registra la latencia de una busqueda de productos, vista desde el cliente, bajo la forma de sus criterios.
+     * En un multi-search es la de la peticion completa.
+     */
+    void recordShape(ProductQueryShape shape, long elapsedNanos, boolean success) {
+        Timer.builder("elasticsearch.search.shape")
+                .description("Latencia de las busquedas de productos por forma de la busqueda")
+                .tag("shape", shape.getName())
+                .tag("outcome", success ? "success" : "error")
+                .publishPercentiles(0.5, 0.95, 0.99)
+                .register(meterRegistry)
+                .record(elapsedNanos, TimeUnit.NANOSECONDS);
+    }
+
+    public void recordFallback(String operation) {
+        Counter.builder("elasticsearch.fallback")
+                .description("Respuestas servidas desde cache porque el cluster no respondia")
+                .tag("operation", operation)
+                .register(meterRegistry)
+                .increment();
+    }
+
+    private void recordSearch(String operation, boolean aggregate, SearchResponse response) {
+        Timer.builder("elasticsearch.took")
+                .description("Tiempo de la busqueda en el cluster, segun el campo took de la respuesta")
+                .tag("operation", operation)
+                .tag("aggregate", String.valueOf(aggregate))
+                .register(meterRegistry)
+                .record(response.getTook().millis(), TimeUnit.MILLISECONDS);
+        DistributionSummary.builder("elasticsearch.search.hits")
+                .description("Documentos devueltos por busqueda")
+                .tag("operation", operation)
+                .tag("aggregate", String.valueOf(aggregate))
+                .register(meterRegistry)
+                .record(response.getHits().getHits().length);
+    }
+
+    private Timer requestTimer(String operation, boolean aggregate, String outcome) {
+        //El p95 se calcula tambien en la aplicacion: es el retraso a partir del cual se duplican las lecturas
+        return Timer.builder("elasticsearch.requests")
+                .description("Latencia de las llamadas a Elasticsearch vista desde el cliente")
+                .tag("operation", operation)
+                .tag("aggregate", String.valueOf(aggregate))
+                .tag("outcome", outcome)
+                .publishPercentiles(0.95)
+                .register(meterRegistry);
+    }
+}
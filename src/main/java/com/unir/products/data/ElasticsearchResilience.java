@@ -0,0 +1,283 @@
+package com.unir.products.data;
+
+import io.github.resilience4j.bulkhead.Bulkhead;
+import io.github.resilience4j.bulkhead.BulkheadFullException;
+import io.github.resilience4j.circuitbreaker.CallNotPermittedException;
+import io.github.resilience4j.circuitbreaker.CircuitBreaker;
+import lombok.extern.slf4j.Slf4j;
+import org.apache.http.client.config.RequestConfig;
+import org.elasticsearch.ElasticsearchStatusException;
+import org.elasticsearch.action.ActionListener;
+import org.elasticsearch.client.Cancellable;
+import org.elasticsearch.client.RequestOptions;
+import org.elasticsearch.common.unit.TimeValue;
+import org.elasticsearch.rest.RestStatus;
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.core.env.Environment;
+import org.springframework.dao.DataAccessResourceFailureException;
+import org.springframework.stereotype.Component;
+
+import javax.annotation.PreDestroy;
+import java.io.IOException;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CompletionException;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ScheduledFuture;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.TimeoutException;
+import java.util.concurrent.atomic.AtomicBoolean;
+
+/**
+ * Proteccion de las llamadas al cluster para que un Elasticsearch lento o caido no arrastre al servicio:
+ * <ul>
+ *     <li>Circuit breaker: con el cluster fallando las llamadas se rechazan al momento.</li>
+ *     <li>Bulkhead: limite de llamadas concurrentes, con rechazo inmediato al superarlo.</li>
+ *     <li>Plazo por operacion (elasticsearch.resilience.timeouts.&lt;operacion&gt;): pasado ese tiempo desde el envio
+ *     la llamada falla con {@link TimeoutException} y la peticion se cancela, aunque el cluster siga mandando datos.
+ *     Tambien se usa como socket-timeout de la operacion, en lugar del general del cliente, que tiene que ser largo
+ *     por las exportaciones y las cargas.</li>
+ *     <li>Lecturas duplicadas (hedged requests), opcionales: si una lectura no ha respondido cuando ya va por el p95
+ *     de su operacion se envia otra igual y se usa la primera respuesta que llegue; la otra se cancela. Cada envio
+ *     cuenta por separado en el circuit breaker y en el bulkhead; el que se cancela por perder no cuenta como error.</li>
+ * </ul>
+ * Las respuestas de reserva desde cache las decide el repositorio, con {@link #isUnavailable(Throwable)}.
+ */
+@Component
+@Slf4j
+public class ElasticsearchResilience {
+
+    /**
+     * Llamada asincrona al cliente con las opciones de la operacion. Puede hacerse mas de una vez si se duplica.
+     */
+    @FunctionalInterface
+    public interface AsyncCall<T> {
+        Cancellable send(RequestOptions options, ActionListener<T> listener);
+    }
+
+    private final CircuitBreaker circuitBreaker;
+    private final Bulkhead bulkhead;
+    private final ElasticsearchMetrics metrics;
+    private final Environment environment;
+    private final boolean hedgingEnabled;
+    private final long hedgeMinDelayNanos;
+    private final long hedgeMinSamples;
+    private final ConcurrentMap<String, RequestOptions> requestOptions = new ConcurrentHashMap<>();
+    private final ConcurrentMap<String, Long> deadlines = new ConcurrentHashMap<>();
+    // Programa los duplicados y los plazos
+    private final ScheduledExecutorService scheduler = Executors.newSingleThreadScheduledExecutor(runnable -> {
+        Thread thread = new Thread(runnable, "elasticsearch-resilience");
+        thread.setDaemon(true);
+        return thread;
+    });
+
+    public ElasticsearchResilience(CircuitBreaker elasticsearchCircuitBreaker,
+                                   Bulkhead elasticsearchBulkhead,
+                                   ElasticsearchMetrics metrics,
+                                   Environment environment,
+                                   @Value("${elasticsearch.resilience.hedge.enabled:false}") boolean hedgingEnabled,
+                                   @Value("${elasticsearch.resilience.hedge.min-delay:50ms}") String hedgeMinDelay,
+                                   @Value("${elasticsearch.resilience.hedge.min-samples:100}") long hedgeMinSamples) {
+        this.circuitBreaker = elasticsearchCircuitBreaker;
+        this.bulkhead = elasticsearchBulkhead;
+        this.metrics = metrics;
+        this.environment = environment;
+        this.hedgingEnabled = hedgingEnabled;
+        this.hedgeMinDelayNanos = TimeValue.parseTimeValue(hedgeMinDelay, "elasticsearch.resilience.hedge.min-delay").nanos();
+        this.hedgeMinSamples = hedgeMinSamples;
+    }
+
+    /**
+     * Ejecuta una llamada y espera su respuesta, con las mismas protecciones que {@link #executeAsync} pero sin
+     * duplicarla. Se hace sobre el cliente asincrono para poder cancelar la peticion al cumplirse el plazo.
+     *
+     * @param operation - operacion, para elegir su plazo
+     * @param call      - llamada al cliente
+     * @return la respuesta de la llamada
+     * @throws BulkheadFullException     si hay demasiadas llamadas en curso
+     * @throws CallNotPermittedException si el circuit breaker esta abierto
+     * @throws TimeoutException          si no ha respondido en el plazo de la operacion
+     */
+    public <T> T execute(String operation, AsyncCall<T> call) throws Exception {
+        try {
+            return executeAsync(operation, false, false, call).get();
+        } catch (ExecutionException e) {
+            throw e.getCause() instanceof Exception cause ? cause : e;
+        }
+    }
+
+    /**
+     * Ejecuta una llamada asincrona pasando por el bulkhead y el circuit breaker y, si se pide y esta habilitado,
+     * la duplica cuando tarda mas que el p95 de la operacion. Solo deben duplicarse lecturas. La primera respuesta,
+     * correcta o no, es la que vale.
+     *
+     * @param operation - operacion, para elegir su plazo y su p95
+     * @param aggregate - si la busqueda lleva agregaciones, que tienen su propio p95
+     * @param hedge     - si se puede duplicar la llamada
+     * @param call      - llamada al cliente
+     * @return la respuesta; falla con BulkheadFullException o CallNotPermittedException si se rechaza y con
+     * TimeoutException si no llega en el plazo de la operacion
+     */
+    public <T> CompletableFuture<T> executeAsync(String operation, boolean aggregate, boolean hedge, AsyncCall<T> call) {
+        if (!bulkhead.tryAcquirePermission()) {
+            return CompletableFuture.failedFuture(BulkheadFullException.createBulkheadFullException(bulkhead));
+        }
+        if (!circuitBreaker.tryAcquirePermission()) {
+            bulkhead.onComplete();
+            return CompletableFuture.failedFuture(CallNotPermittedException.createCallNotPermittedException(circuitBreaker));
+        }
+
+        RequestOptions options = options(operation);
+        CompletableFuture<T> response = new CompletableFuture<>();
+        long deadline = deadlineMillis(operation);
+        if (deadline > 0) {
+            ScheduledFuture<?> timeout = scheduler.schedule(() -> response.completeExceptionally(
+                    new TimeoutException(operation + " sin respuesta tras " + deadline + " ms")), deadline, TimeUnit.MILLISECONDS);
+            response.whenComplete((result, error) -> timeout.cancel(false));
+        }
+        send(call, options, response);
+
+        long hedgeDelay = hedge && hedgingEnabled ? hedgeDelayNanos(operation, aggregate) : -1;
+        if (hedgeDelay > 0 && !response.isDone()) {
+            ScheduledFuture<?> hedging = scheduler.schedule(() -> {
+                //El duplicado tambien ocupa sitio en el bulkhead y pide paso al circuit breaker; si no lo hay no se envia
+                if (response.isDone() || !bulkhead.tryAcquirePermission()) {
+                    return;
+                }
+                if (!circuitBreaker.tryAcquirePermission()) {
+                    bulkhead.onComplete();
+                    return;
+                }
+                log.debug("Duplicando {} tras {} ms sin respuesta", operation, TimeUnit.NANOSECONDS.toMillis(hedgeDelay));
+                send(call, options, response);
+            }, hedgeDelay, TimeUnit.NANOSECONDS);
+            response.whenComplete((result, error) -> hedging.cancel(false));
+        }
+        return response;
+    }
+
+    /**
+     * Envia la peticion, que ya tiene permiso del bulkhead y del circuit breaker, y registra en ambos como acaba. Si
+     * la respuesta se completa antes por otro motivo (gana el duplicado o vence el plazo) la peticion se cancela:
+     * al vencer el plazo cuenta como error, y al perder frente al duplicado solo se devuelve el permiso.
+     */
+    private <T> void send(AsyncCall<T> call, RequestOptions options, CompletableFuture<T> response) {
+        long start = System.nanoTime();
+        AtomicBoolean finished = new AtomicBoolean();
+        Cancellable cancellable;
+        try {
+            cancellable = call.send(options, new ActionListener<>() {
+                @Override
+                public void onResponse(T result) {
+                    if (finished.compareAndSet(false, true)) {
+                        bulkhead.onComplete();
+                        circuitBreaker.onSuccess(System.nanoTime() - start, TimeUnit.NANOSECONDS);
+                    }
+                    response.complete(result);
+                }
+
+                @Override
+                public void onFailure(Exception e) {
+                    if (finished.compareAndSet(false, true)) {
+                        bulkhead.onComplete();
+                        circuitBreaker.onError(System.nanoTime() - start, TimeUnit.NANOSECONDS, e);
+                    }
+                    response.completeExceptionally(e);
+                }
+            });
+        } catch (RuntimeException e) {
+            if (finished.compareAndSet(false, true)) {
+                bulkhead.onComplete();
+                circuitBreaker.onError(System.nanoTime() - start, TimeUnit.NANOSECONDS, e);
+            }
+            response.completeExceptionally(e);
+            return;
+        }
+        response.whenComplete((result, error) -> {
+            if (finished.compareAndSet(false, true)) {
+                bulkhead.onComplete();
+                if (error instanceof TimeoutException) {
+                    circuitBreaker.onError(System.nanoTime() - start, TimeUnit.NANOSECONDS, error);
+                } else {
+                    circuitBreaker.releasePermission();
+                }
+                cancellable.cancel();
+            }
+        });
+    }
+
+    private long hedgeDelayNanos(String operation, boolean aggregate) {
+        long p95 = metrics.p95Nanos(operation, aggregate, hedgeMinSamples);
+        return p95 < 0 ? -1 : Math.max(p95, hedgeMinDelayNanos);
+    }
+
+    /**
+     * @return el plazo de la operacion en milisegundos, o 0 si no tiene
+     */
+    private long deadlineMillis(String operation) {
+        return deadlines.computeIfAbsent(operation, op -> {
+            String timeout = environment.getProperty("elasticsearch.resilience.timeouts." + op);
+            return timeout == null ? 0L : millis(timeout, "elasticsearch.resilience.timeouts." + op);
+        });
+    }
+
+    /**
+     * Opciones de peticion con el timeout de la operacion, si lo tiene configurado. Como la configuracion de la
+     * peticion sustituye entera a la del cliente, se repiten tambien los timeouts de conexion.
+     */
+    private RequestOptions options(String operation) {
+        return requestOptions.computeIfAbsent(operation, op -> {
+            String timeout = environment.getProperty("elasticsearch.resilience.timeouts." + op);
+            if (timeout == null) {
+                return RequestOptions.DEFAULT;
+            }
+            RequestConfig requestConfig = RequestConfig.custom()
+                    .setConnectTimeout((int) millis(environment.getProperty("elasticsearch.client.connect-timeout", "1s"), "elasticsearch.client.connect-timeout"))
+                    .setConnectionRequestTimeout((int) millis(environment.getProperty("elasticsearch.client.connection-request-timeout", "1s"), "elasticsearch.client.connection-request-timeout"))
+                    .setSocketTimeout((int) millis(timeout, "elasticsearch.resilience.timeouts." + op))
+                    .build();
+            return RequestOptions.DEFAULT.toBuilder().setRequestConfig(requestConfig).build();
+        });
+    }
+
+    /**
+     * @return si el error es del cluster (red, timeout, plazo vencido, 5xx o 429) y no de la propia peticion. Son los
+     * que cuentan para abrir el circuit breaker.
+     */
+    public static boolean isClusterFailure(Throwable error) {
+        Throwable cause = unwrap(error);
+        if (cause instanceof ElasticsearchStatusException statusException) {
+            return statusException.status().getStatus() >= 500 || statusException.status() == RestStatus.TOO_MANY_REQUESTS;
+        }
+        return cause instanceof IOException || cause instanceof TimeoutException || cause instanceof DataAccessResourceFailureException;
+    }
+
+    /**
+     * @return si el cluster no ha podido atender la llamada, por un error suyo o porque se ha rechazado antes de
+     * enviarla. En esos casos tiene sentido responder con datos cacheados.
+     */
+    public static boolean isUnavailable(Throwable error) {
+        Throwable cause = unwrap(error);
+        return cause instanceof CallNotPermittedException || cause instanceof BulkheadFullException || isClusterFailure(cause);
+    }
+
+    private static Throwable unwrap(Throwable error) {
+        Throwable cause = error;
+        while ((cause instanceof CompletionException || cause instanceof ExecutionException) && cause.getCause() != null) {
+            cause = cause.getCause();
+        }
+        return cause;
+    }
+
+    private static long millis(String value, String setting) {
+        return TimeValue.parseTimeValue(value, setting).millis();
+    }
+
+    @PreDestroy
+    public void close() {
+        scheduler.shutdownNow();
+    }
+}
@@ -0,0 +1,94 @@
+package com.unir.products.data;
+
+import com.unir.products.model.pojo.Product;
+import org.springframework.data.elasticsearch.core.ElasticsearchOperations;
+import org.springframework.data.elasticsearch.core.mapping.ElasticsearchPersistentEntity;
+import org.springframework.data.elasticsearch.core.mapping.ElasticsearchPersistentProperty;
+import org.springframework.data.mapping.PropertyHandler;
+import org.springframework.stereotype.Component;
+
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Locale;
+import java.util.Map;
+
+/**
+ * Traduce las propiedades del producto, tal y como las usa el API (sin distinguir mayusculas), a los nombres de
+ * campo del documento en Elasticsearch. Tambien resuelve las proyecciones predefinidas del parametro fields.
+ */
+@Component
+public class ProductFields {
+
+    //Listados y autocompletado: nombre, precio e imagen
+    private static final List<String> SUMMARY = List.of("codigo", "nombre", "precio", "imagen");
+    //Tarjeta de producto en los listados con filtros
+    private static final List<String> CARD = List.of("codigo", "nombre", "categoria", "empresaAsociada", "descripcionCorta",
+            "precio", "cantidadDisponible", "puntuacion", "imagen");
+
+    private final Map<String, String> fieldNames;
+
+    public ProductFields(ElasticsearchOperations elasticClient) {
+        ElasticsearchPersistentEntity<?> entity = elasticClient.getElasticsearchConverter().getMappingContext()
+                .getRequiredPersistentEntity(Product.class);
+        Map<String, String> names = new HashMap<>();
+        entity.doWithProperties((PropertyHandler<ElasticsearchPersistentProperty>) property -> {
+            if (property.isWritable() && !property.isIdProperty() && !property.isSeqNoPrimaryTermProperty()) {
+                names.put(property.getName().toLowerCase(Locale.ROOT), property.getFieldName());
+            }
+        });
+        this.fieldNames = Collections.unmodifiableMap(names);
+    }
+
+    /**
+     * @param property - nombre de la propiedad del producto
+     * @return nombre del campo en Elasticsearch, o null si la propiedad no se guarda en el _source
+     */
+    public String fieldName(String property) {
+        return fieldNames.get(property.toLowerCase(Locale.ROOT));
+    }
+
+    /**
+     * Campos del _source a pedir para el parametro fields: una proyeccion (summary, card o full) o una lista de
+     * propiedades separadas por comas. El id se devuelve siempre, no forma parte del _source.
+     *
+     * @param fields - valor del parametro, o null
+     * @return los campos a incluir, o null para el documento completo
+     * @throws IllegalArgumentException si alguna propiedad no existe
+     */
+    public String[] includes(String fields) {
+        if (fields == null || fields.isBlank()) {
+            return null;
+        }
+        return switch (fields.trim().toLowerCase(Locale.ROOT)) {
+            case "full" -> null;
+            case "summary" -> includes(SUMMARY);
+            case "card" -> includes(CARD);
+            default -> includes(Arrays.asList(fields.split(",")));
+        };
+    }
+
+    /**
+     * @param properties - propiedades del producto a devolver, o null para el documento completo
+     * @return los campos a incluir, o null para el documento completo
+     * @throws IllegalArgumentException si alguna propiedad no existe
+     */
+    public String[] includes(List<String> properties) {
+        if (properties == null) {
+            return null;
+        }
+        return properties.stream()
+                .map(String::trim)
+                .filter(property -> !property.isEmpty())
+                .map(property -> {
+                    String fieldName = fieldName(property);
+                    if (fieldName == null) {
+                        throw new IllegalArgumentException("Campo no valido: " + property);
+                    }
+                    return fieldName;
+                })
+                .distinct()
+                .toArray(String[]::new);
+    }
+}
@@ -0,0 +1,744 @@
+package com.unir.products.data;
+
+import com.fasterxml.jackson.databind.ObjectMapper;
+import com.unir.products.model.pojo.Product;
+import com.unir.products.model.response.ReindexResult;
+import com.unir.products.model.response.ReindexTask;
+import lombok.SneakyThrows;
+import lombok.extern.slf4j.Slf4j;
+import org.elasticsearch.ElasticsearchStatusException;
+import org.elasticsearch.action.DocWriteRequest;
+import org.elasticsearch.action.DocWriteResponse;
+import org.elasticsearch.action.admin.cluster.health.ClusterHealthRequest;
+import org.elasticsearch.action.admin.cluster.health.ClusterHealthResponse;
+import org.elasticsearch.action.admin.indices.alias.IndicesAliasesRequest;
+import org.elasticsearch.action.admin.indices.alias.IndicesAliasesRequest.AliasActions;
+import org.elasticsearch.action.admin.indices.alias.get.GetAliasesRequest;
+import org.elasticsearch.action.admin.indices.delete.DeleteIndexRequest;
+import org.elasticsearch.action.admin.indices.refresh.RefreshRequest;
+import org.elasticsearch.action.admin.indices.settings.put.UpdateSettingsRequest;
+import org.elasticsearch.action.bulk.BulkRequest;
+import org.elasticsearch.action.bulk.BulkResponse;
+import org.elasticsearch.action.delete.DeleteRequest;
+import org.elasticsearch.action.get.GetRequest;
+import org.elasticsearch.action.get.GetResponse;
+import org.elasticsearch.action.get.MultiGetItemResponse;
+import org.elasticsearch.action.get.MultiGetRequest;
+import org.elasticsearch.action.index.IndexRequest;
+import org.elasticsearch.action.index.IndexResponse;
+import org.elasticsearch.action.ingest.PutPipelineRequest;
+import org.elasticsearch.action.search.SearchRequest;
+import org.elasticsearch.client.Request;
+import org.elasticsearch.client.RequestOptions;
+import org.elasticsearch.client.Response;
+import org.elasticsearch.client.RestHighLevelClient;
+import org.elasticsearch.client.indices.CreateIndexRequest;
+import org.elasticsearch.client.indices.GetIndexRequest;
+import org.elasticsearch.client.tasks.TaskSubmissionResponse;
+import org.elasticsearch.cluster.health.ClusterHealthStatus;
+import org.elasticsearch.common.UUIDs;
+import org.elasticsearch.common.bytes.BytesArray;
+import org.elasticsearch.common.settings.Settings;
+import org.elasticsearch.common.unit.TimeValue;
+import org.elasticsearch.common.xcontent.XContentHelper;
+import org.elasticsearch.common.xcontent.XContentType;
+import org.elasticsearch.common.xcontent.json.JsonXContent;
+import org.elasticsearch.index.VersionType;
+import org.elasticsearch.index.query.QueryBuilders;
+import org.elasticsearch.index.reindex.AbstractBulkByScrollRequest;
+import org.elasticsearch.index.reindex.ReindexRequest;
+import org.elasticsearch.rest.RestStatus;
+import org.elasticsearch.script.Script;
+import org.elasticsearch.script.ScriptType;
+import org.elasticsearch.search.SearchHit;
+import org.elasticsearch.search.builder.SearchSourceBuilder;
+import org.elasticsearch.search.fetch.subphase.FetchSourceContext;
+import org.elasticsearch.search.sort.SortBuilders;
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.core.io.ClassPathResource;
+import org.springframework.dao.ConcurrencyFailureException;
+import org.springframework.data.elasticsearch.core.ElasticsearchOperations;
+import org.springframework.data.elasticsearch.core.IndexOperations;
+import org.springframework.stereotype.Component;
+import org.springframework.util.StreamUtils;
+
+import javax.annotation.PostConstruct;
+import javax.annotation.PreDestroy;
+import java.io.IOException;
+import java.io.InputStream;
+import java.nio.charset.StandardCharsets;
+import java.time.ZoneOffset;
+import java.time.ZonedDateTime;
+import java.time.format.DateTimeFormatter;
+import java.util.Arrays;
+import java.util.List;
+import java.util.Map;
+import java.util.Optional;
+import java.util.concurrent.CompletionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ScheduledFuture;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Gestiona el indice de productos detras de dos alias, para poder cambiar mappings y settings sin cortar el servicio:
+ * <ul>
+ *     <li>Alias de lectura, con el nombre del indice de {@link Product} ("products"): busquedas y lecturas por id.</li>
+ *     <li>Alias de escritura (elasticsearch.index.write-alias): altas, modificaciones y borrados.</li>
+ * </ul>
+ * Los indices fisicos llevan la fecha de creacion en el nombre (products-20240101-120000). Si el alias de lectura no
+ * existe al arrancar se crea el primer indice con los dos alias. Si lo que existe es un indice "products" de antes
+ * de usar alias, se sigue usando y solo se le añade el alias de escritura; la primera reindexacion lo sustituye.
+ * <p>
+ * Tambien crea el indice de marcas de borrado (elasticsearch.changes.tombstone-index) del feed de cambios, que
+ * no se reindexa: solo guarda el id y la marca de escritura de cada producto borrado. La marca de las altas y los
+ * borrados la pone el pipeline de ingesta elasticsearch.changes.pipeline (elasticsearch/change-stamp-pipeline.json)
+ * con el reloj del cluster, asi que no depende del reloj de cada instancia del servicio.
+ * <p>
+ * Las reindexaciones se coordinan entre todas las instancias del servicio con el indice de administracion
+ * (elasticsearch.reindex.admin-index): el bloqueo que impide lanzar dos a la vez es un documento creado con
+ * op_type=create, y el estado de cada reindexacion se guarda ahi, para consultarlo desde cualquier instancia.
+ */
+@Component
+@Slf4j
+public class ProductIndexManager {
+
+    private static final DateTimeFormatter INDEX_SUFFIX = DateTimeFormatter.ofPattern("yyyyMMdd-HHmmss");
+    private static final String UPDATED_AT = "updatedAt";
+    private static final String LOCK_ID = "reindex-lock";
+    private static final String TASK_PREFIX = "task-";
+    private static final ObjectMapper MAPPER = new ObjectMapper();
+
+    @Value("${elasticsearch.index.write-alias:products-write}")
+    private String writeAlias;
+
+    @Value("${elasticsearch.changes.tombstone-index:products-tombstones}")
+    private String tombstoneIndex;
+
+    @Value("${elasticsearch.changes.pipeline:products-change-stamp}")
+    private String changeStampPipeline;
+
+    // Margen de las marcas updatedAt, el mismo que el del feed de cambios
+    @Value("${elasticsearch.changes.settle:5s}")
+    private String changesSettle;
+
+    @Value("${elasticsearch.index.shards:1}")
+    private int shards;
+
+    @Value("${elasticsearch.index.replicas:1}")
+    private int replicas;
+
+    @Value("${elasticsearch.index.refresh-interval:1s}")
+    private String refreshInterval;
+
+    @Value("${elasticsearch.reindex.slices:auto}")
+    private String slices;
+
+    @Value("${elasticsearch.reindex.batch-size:1000}")
+    private int batchSize;
+
+    // Documentos por segundo; -1 sin limite
+    @Value("${elasticsearch.reindex.requests-per-second:-1}")
+    private float requestsPerSecond;
+
+    @Value("${elasticsearch.reindex.poll-interval:2s}")
+    private String pollInterval;
+
+    @Value("${elasticsearch.reindex.wait-for-status:yellow}")
+    private String waitForStatus;
+
+    @Value("${elasticsearch.reindex.health-timeout:5m}")
+    private String healthTimeout;
+
+    @Value("${elasticsearch.reindex.admin-index:products-admin}")
+    private String adminIndex;
+
+    // Si la instancia que reindexa deja de renovar el bloqueo (p.ej. porque se ha caido), caduca pasado este tiempo
+    @Value("${elasticsearch.reindex.lock-ttl:2m}")
+    private String lockTtl;
+
+    private final RestHighLevelClient elasticsearchClient;
+    private final ElasticsearchOperations elasticClient;
+    private final ProductsQueryCache queryCache;
+    private final ProductsByIdCache productCache;
+    private final ExecutorService reindexExecutor = Executors.newSingleThreadExecutor(runnable -> {
+        Thread thread = new Thread(runnable, "products-reindex");
+        thread.setDaemon(true);
+        return thread;
+    });
+    private final ScheduledExecutorService lockRenewer = Executors.newSingleThreadScheduledExecutor(runnable -> {
+        Thread thread = new Thread(runnable, "products-reindex-lock");
+        thread.setDaemon(true);
+        return thread;
+    });
+    // Version del documento de bloqueo escrita por esta instancia mientras reindexa: solo se renueva o se borra si
+    // sigue igual. Se leen y cambian con el monitor de la clase, para no renovar un bloqueo que se esta liberando
+    private boolean locked;
+    private long lockSeqNo;
+    private long lockPrimaryTerm;
+    private volatile Thread reindexThread;
+
+    public ProductIndexManager(RestHighLevelClient elasticsearchClient, ElasticsearchOperations elasticClient,
+                               ProductsQueryCache queryCache, ProductsByIdCache productCache) {
+        this.elasticsearchClient = elasticsearchClient;
+        this.elasticClient = elasticClient;
+        this.queryCache = queryCache;
+        this.productCache = productCache;
+    }
+
+    @PostConstruct
+    @SneakyThrows
+    public void createIndices() {
+        //El pipeline se registra siempre: si cambia su definicion, la nueva sustituye a la anterior
+        String pipeline = StreamUtils.copyToString(new ClassPathResource("elasticsearch/change-stamp-pipeline.json").getInputStream(), StandardCharsets.UTF_8);
+        elasticsearchClient.ingest().putPipeline(new PutPipelineRequest(changeStampPipeline, new BytesArray(pipeline), XContentType.JSON),
+                RequestOptions.DEFAULT);
+
+        String readAlias = readAlias();
+        if (!elasticsearchClient.indices().exists(new GetIndexRequest(readAlias), RequestOptions.DEFAULT)) {
+            String index = newIndexName();
+            createIndex(index, Settings.EMPTY);
+            elasticsearchClient.indices().updateAliases(new IndicesAliasesRequest()
+                    .addAliasAction(AliasActions.add().index(index).alias(readAlias))
+                    .addAliasAction(AliasActions.add().index(index).alias(writeAlias).writeIndex(true)), RequestOptions.DEFAULT);
+            log.info("Creado el indice {} con los alias {} y {}", index, readAlias, writeAlias);
+        } else if (!elasticsearchClient.indices().existsAlias(new GetAliasesRequest(writeAlias), RequestOptions.DEFAULT)) {
+            String index = currentIndex();
+            elasticsearchClient.indices().updateAliases(new IndicesAliasesRequest()
+                    .addAliasAction(AliasActions.add().index(index).alias(writeAlias).writeIndex(true)), RequestOptions.DEFAULT);
+            log.info("Añadido el alias {} al indice {}", writeAlias, index);
+        }
+
+        if (!elasticsearchClient.indices().exists(new GetIndexRequest(tombstoneIndex), RequestOptions.DEFAULT)) {
+            elasticsearchClient.indices().create(new CreateIndexRequest(tombstoneIndex)
+                    .settings(Settings.builder()
+                            .put("index.number_of_shards", 1)
+                            .put("index.number_of_replicas", replicas))
+                    .mapping("{\"dynamic\":false,\"properties\":{\"id\":{\"type\":\"keyword\"},\"updatedAt\":{\"type\":\"long\"}}}",
+                            XContentType.JSON), RequestOptions.DEFAULT);
+            log.info("Creado el indice de borrados {}", tombstoneIndex);
+        }
+
+        if (!elasticsearchClient.indices().exists(new GetIndexRequest(adminIndex), RequestOptions.DEFAULT)) {
+            elasticsearchClient.indices().create(new CreateIndexRequest(adminIndex)
+                    .settings(Settings.builder()
+                            .put("index.number_of_shards", 1)
+                            .put("index.number_of_replicas", replicas))
+                    .mapping("{\"dynamic\":false,\"properties\":{}}", XContentType.JSON), RequestOptions.DEFAULT);
+            log.info("Creado el indice de administracion {}", adminIndex);
+        }
+    }
+
+    public String getWriteAlias() {
+        return writeAlias;
+    }
+
+    public String getTombstoneIndex() {
+        return tombstoneIndex;
+    }
+
+    public String getChangeStampPipeline() {
+        return changeStampPipeline;
+    }
+
+    /**
+     * Lanza la reindexacion ({@link #reindex}) en segundo plano. Puede durar mucho, asi que no se espera a que
+     * termine: se consulta su estado con {@link #getReindexTask(String)}, desde esta o cualquier otra instancia.
+     *
+     * @param deletePrevious - borrar el indice anterior al terminar
+     * @return la tarea, en curso
+     * @throws ConcurrencyFailureException si ya hay una reindexacion en curso, lanzada por cualquier instancia
+     */
+    @SneakyThrows
+    public ReindexTask startReindex(boolean deletePrevious) {
+        ReindexTask task = new ReindexTask(UUIDs.base64UUID(), ReindexTask.Status.RUNNING, deletePrevious,
+                System.currentTimeMillis(), null, null, null);
+        acquireLock(task.getId());
+        ScheduledFuture<?> renewal = null;
+        try {
+            saveTask(task);
+            long renewMillis = Math.max(getLockTtl().millis() / 3, 1);
+            renewal = lockRenewer.scheduleAtFixedRate(() -> renewLock(task.getId()), renewMillis, renewMillis, TimeUnit.MILLISECONDS);
+            ScheduledFuture<?> scheduled = renewal;
+            reindexExecutor.execute(() -> {
+                reindexThread = Thread.currentThread();
+                try {
+                    ReindexResult result = reindex(deletePrevious);
+                    task.setResult(result);
+                    task.setStatus(ReindexTask.Status.COMPLETED);
+                } catch (Exception e) {
+                    log.error("Reindexacion {} fallida", task.getId(), e);
+                    task.setError(e.getMessage());
+                    task.setStatus(ReindexTask.Status.FAILED);
+                } finally {
+                    reindexThread = null;
+                    scheduled.cancel(false);
+                    task.setFinishedAt(System.currentTimeMillis());
+                    try {
+                        saveTask(task);
+                    } catch (Exception e) {
+                        log.error("No se ha podido guardar el estado final de la reindexacion {}", task.getId(), e);
+                    }
+                    releaseLock();
+                }
+            });
+        } catch (Exception e) {
+            if (renewal != null) {
+                renewal.cancel(false);
+            }
+            releaseLock();
+            throw e;
+        }
+        return task;
+    }
+
+    /**
+     * @return la reindexacion, lanzada por esta o cualquier otra instancia
+     */
+    @SneakyThrows
+    public Optional<ReindexTask> getReindexTask(String id) {
+        GetResponse response;
+        try {
+            response = elasticsearchClient.get(new GetRequest(adminIndex, TASK_PREFIX + id), RequestOptions.DEFAULT);
+        } catch (ElasticsearchStatusException e) {
+            if (e.status() == RestStatus.NOT_FOUND) {
+                return Optional.empty();
+            }
+            throw e;
+        }
+        return response.isExists() ? Optional.of(MAPPER.readValue(response.getSourceAsBytes(), ReindexTask.class)) : Optional.empty();
+    }
+
+    @PreDestroy
+    public void close() {
+        //Si se interrumpe a medias, reindex desbloquea el indice anterior y deja los alias como estaban
+        reindexExecutor.shutdownNow();
+        lockRenewer.shutdownNow();
+    }
+
+    /**
+     * Toma el bloqueo de reindexacion del cluster: crea su documento con op_type=create, que falla si ya existe.
+     * Si existe pero ha caducado, la instancia que lo tenia ha dejado de renovarlo; se toma en su lugar (solo si
+     * nadie lo ha cambiado mientras tanto) y su reindexacion se da por fallida.
+     *
+     * @throws ConcurrencyFailureException si otra reindexacion tiene el bloqueo
+     */
+    private void acquireLock(String taskId) throws IOException {
+        while (true) {
+            try {
+                IndexResponse created = elasticsearchClient.index(lockRequest(taskId).opType(DocWriteRequest.OpType.CREATE),
+                        RequestOptions.DEFAULT);
+                lockAcquired(created);
+                return;
+            } catch (ElasticsearchStatusException e) {
+                if (e.status() != RestStatus.CONFLICT) {
+                    throw e;
+                }
+            }
+
+            GetResponse current = elasticsearchClient.get(new GetRequest(adminIndex, LOCK_ID), RequestOptions.DEFAULT);
+            if (!current.isExists()) {
+                //Se acaba de liberar: se vuelve a intentar crearlo
+                continue;
+            }
+            Map<String, Object> lock = current.getSourceAsMap();
+            if (((Number) lock.get("expiresAt")).longValue() > System.currentTimeMillis()) {
+                throw new ConcurrencyFailureException("Ya hay una reindexacion en curso: " + lock.get("task"));
+            }
+            try {
+                IndexResponse taken = elasticsearchClient.index(lockRequest(taskId)
+                        .setIfSeqNo(current.getSeqNo())
+                        .setIfPrimaryTerm(current.getPrimaryTerm()), RequestOptions.DEFAULT);
+                lockAcquired(taken);
+            } catch (ElasticsearchStatusException e) {
+                if (e.status() == RestStatus.CONFLICT) {
+                    throw new ConcurrencyFailureException("Ya hay una reindexacion en curso", e);
+                }
+                throw e;
+            }
+            log.warn("Bloqueo de la reindexacion {} caducado, se da por fallida", lock.get("task"));
+            abandonTask((String) lock.get("task"));
+            return;
+        }
+    }
+
+    private IndexRequest lockRequest(String taskId) {
+        //La caducidad la pone el reloj de cada instancia: lock-ttl tiene que cubrir tambien la diferencia entre ellos
+        return new IndexRequest(adminIndex).id(LOCK_ID)
+                .source(Map.of("task", taskId, "expiresAt", System.currentTimeMillis() + getLockTtl().millis()));
+    }
+
+    private synchronized void lockAcquired(IndexResponse response) {
+        locked = true;
+        lockSeqNo = response.getSeqNo();
+        lockPrimaryTerm = response.getPrimaryTerm();
+    }
+
+    /**
+     * Renueva la caducidad del bloqueo mientras dura la reindexacion. Si otra instancia lo ha tomado (porque esta
+     * ha tardado en renovarlo mas que lock-ttl), se interrumpe la reindexacion para no tener dos a la vez.
+     */
+    private synchronized void renewLock(String taskId) {
+        if (!locked) {
+            return;
+        }
+        try {
+            lockAcquired(elasticsearchClient.index(lockRequest(taskId)
+                    .setIfSeqNo(lockSeqNo)
+                    .setIfPrimaryTerm(lockPrimaryTerm), RequestOptions.DEFAULT));
+        } catch (ElasticsearchStatusException e) {
+            if (e.status() == RestStatus.CONFLICT) {
+                log.error("Otra instancia ha tomado el bloqueo de la reindexacion {}, se interrumpe", taskId);
+                locked = false;
+                Thread thread = reindexThread;
+                if (thread != null) {
+                    thread.interrupt();
+                }
+            } else {
+                log.warn("No se ha podido renovar el bloqueo de la reindexacion {}: {}", taskId, e.toString());
+            }
+        } catch (Exception e) {
+            log.warn("No se ha podido renovar el bloqueo de la reindexacion {}: {}", taskId, e.toString());
+        }
+    }
+
+    private synchronized void releaseLock() {
+        if (!locked) {
+            return;
+        }
+        locked = false;
+        try {
+            elasticsearchClient.delete(new DeleteRequest(adminIndex, LOCK_ID)
+                    .setIfSeqNo(lockSeqNo)
+                    .setIfPrimaryTerm(lockPrimaryTerm), RequestOptions.DEFAULT);
+        } catch (ElasticsearchStatusException e) {
+            //Si lo ha tomado otra instancia, es suyo
+            if (e.status() != RestStatus.CONFLICT) {
+                log.error("No se ha podido liberar el bloqueo de reindexacion; caducara pasado {}", lockTtl, e);
+            }
+        } catch (Exception e) {
+            log.error("No se ha podido liberar el bloqueo de reindexacion; caducara pasado {}", lockTtl, e);
+        }
+    }
+
+    private void saveTask(ReindexTask task) throws IOException {
+        elasticsearchClient.index(new IndexRequest(adminIndex).id(TASK_PREFIX + task.getId())
+                .source(MAPPER.writeValueAsBytes(task), XContentType.JSON), RequestOptions.DEFAULT);
+    }
+
+    /**
+     * Marca como fallida la reindexacion de una instancia que dejo de renovar su bloqueo.
+     */
+    private void abandonTask(String taskId) {
+        try {
+            Optional<ReindexTask> abandoned = getReindexTask(taskId);
+            if (abandoned.isPresent() && abandoned.get().getStatus() == ReindexTask.Status.RUNNING) {
+                ReindexTask task = abandoned.get();
+                task.setStatus(ReindexTask.Status.FAILED);
+                task.setError("La instancia que la ejecutaba dejo de renovar el bloqueo de reindexacion");
+                task.setFinishedAt(System.currentTimeMillis());
+                saveTask(task);
+            }
+        } catch (Exception e) {
+            log.warn("No se ha podido marcar como fallida la reindexacion {}: {}", taskId, e.toString());
+        }
+    }
+
+    private TimeValue getLockTtl() {
+        return TimeValue.parseTimeValue(lockTtl, "elasticsearch.reindex.lock-ttl");
+    }
+
+    /**
+     * Copia los productos a un indice nuevo, creado con los mappings y settings actuales de {@link Product}, y lo pone
+     * detras de los dos alias. Las busquedas y las escrituras siguen yendo al indice anterior hasta el cambio final de
+     * los dos alias, que se hace en una sola peticion (atomica). Pasos:
+     * <ol>
+     *     <li>Crear el indice nuevo sin replicas y sin refresh, que es como mas rapido se indexa.</li>
+     *     <li>Reindexar en paralelo (slices), conservando la version de cada documento (version_type external).</li>
+     *     <li>Restaurar replicas y refresh y esperar a que el indice este sano.</li>
+     *     <li>Primera puesta al dia: copiar lo escrito (updatedAt) desde que empezo la copia. Las escrituras siguen
+     *     entrando en el indice anterior.</li>
+     *     <li>Bloquear las escrituras en el indice anterior (index.blocks.write) y hacer la puesta al dia final con lo
+     *     escrito desde la anterior, y quitar del indice nuevo lo que se ha borrado (marcas de borrado) desde que
+     *     empezo la copia. Como nadie escribe aun en el indice nuevo, las versiones externas solo pueden traer
+     *     cambios del anterior.</li>
+     *     <li>Pasar los dos alias al indice nuevo y, si se pide, borrar el anterior; si no, desbloquearlo.</li>
+     * </ol>
+     * Mientras dura el bloqueo las escrituras esperan: el repositorio reintenta las directas (ver
+     * {@link #isWriteBlocked}) y la escritura diferida las vuelve a encolar. Las cargas masivas que coincidan con el
+     * bloqueo devuelven esos productos como fallidos (403) y hay que reenviarlos. Las marcas de tiempo se comparan
+     * con un margen de elasticsearch.changes.settle, el mismo que usa el feed de cambios.
+     *
+     * @param deletePrevious - borrar el indice anterior al terminar
+     * @return resumen de la reindexacion
+     * @throws IllegalStateException       si la copia falla o el indice nuevo no llega a estar sano; los alias no se
+     *                                     cambian, el indice anterior se desbloquea y el nuevo se deja para poder
+     *                                     revisarlo
+     */
+    @SneakyThrows
+    private ReindexResult reindex(boolean deletePrevious) {
+        String previous = null;
+        boolean blocked = false;
+        try {
+            long start = System.nanoTime();
+            long settleMillis = TimeValue.parseTimeValue(changesSettle, "elasticsearch.changes.settle").millis();
+            String readAlias = readAlias();
+            previous = currentIndex();
+            //Un indice creado antes de usar alias se llama igual que el alias de lectura: hay que borrarlo al cambiarlo
+            boolean legacy = previous.equals(readAlias);
+            String index = newIndexName();
+
+            Settings restored = restoredSettings();
+            createIndex(index, Settings.builder()
+                    .put("index.number_of_replicas", 0)
+                    .put("index.refresh_interval", "-1")
+                    .build());
+            log.info("Reindexando {} en {}", previous, index);
+            long copyStart = System.currentTimeMillis() - settleMillis;
+            Map<String, Object> copy = copy(previous, index, null);
+
+            UpdateSettingsRequest restore = new UpdateSettingsRequest(index).settings(restored);
+            elasticsearchClient.indices().putSettings(restore, RequestOptions.DEFAULT);
+            elasticsearchClient.indices().refresh(new RefreshRequest(index), RequestOptions.DEFAULT);
+            ClusterHealthResponse health = elasticsearchClient.cluster().health(new ClusterHealthRequest(index)
+                    .waitForStatus(ClusterHealthStatus.fromString(waitForStatus))
+                    .timeout(TimeValue.parseTimeValue(healthTimeout, "elasticsearch.reindex.health-timeout")), RequestOptions.DEFAULT);
+            if (health.isTimedOut()) {
+                throw new IllegalStateException("El indice " + index + " no ha llegado a estado " + waitForStatus
+                        + " (esta en " + health.getStatus() + "); los alias no se han cambiado");
+            }
+
+            //Con las escrituras abiertas se recoge casi todo; la pasada con el indice bloqueado queda corta
+            long catchUpStart = System.currentTimeMillis() - settleMillis;
+            Map<String, Object> catchUp = copy(previous, index, copyStart);
+            setWriteBlock(previous, true);
+            blocked = true;
+            //La copia y las marcas de borrado se leen buscando: lo ultimo escrito tiene que ser visible
+            elasticsearchClient.indices().refresh(new RefreshRequest(previous, tombstoneIndex), RequestOptions.DEFAULT);
+            Map<String, Object> finalCatchUp = copy(previous, index, catchUpStart);
+            long deleted = applyDeletes(previous, index, copyStart);
+            elasticsearchClient.indices().refresh(new RefreshRequest(index), RequestOptions.DEFAULT);
+
+            IndicesAliasesRequest swap = new IndicesAliasesRequest();
+            if (legacy) {
+                swap.addAliasAction(AliasActions.removeIndex().index(previous));
+            } else {
+                swap.addAliasAction(AliasActions.remove().index(previous).alias(readAlias));
+                swap.addAliasAction(AliasActions.remove().index(previous).alias(writeAlias));
+            }
+            swap.addAliasAction(AliasActions.add().index(index).alias(readAlias));
+            swap.addAliasAction(AliasActions.add().index(index).alias(writeAlias).writeIndex(true));
+            elasticsearchClient.indices().updateAliases(swap, RequestOptions.DEFAULT);
+            boolean previousDeleted = legacy;
+            if (deletePrevious && !legacy) {
+                elasticsearchClient.indices().delete(new DeleteIndexRequest(previous), RequestOptions.DEFAULT);
+                previousDeleted = true;
+            }
+            blocked = !previousDeleted;
+
+            //Las versiones (_seq_no/_primary_term) del indice nuevo no tienen nada que ver con las del anterior
+            queryCache.invalidateAll();
+            productCache.invalidateAll();
+            log.info("Alias {} y {} movidos de {} a {}", readAlias, writeAlias, previous, index);
+
+            return new ReindexResult(previous, index,
+                    count(copy, "total"), count(copy, "created"), count(copy, "version_conflicts"),
+                    count(catchUp, "created") + count(catchUp, "updated") + count(finalCatchUp, "created") + count(finalCatchUp, "updated"),
+                    deleted, previousDeleted, (System.nanoTime() - start) / 1_000_000);
+        } finally {
+            if (blocked) {
+                try {
+                    setWriteBlock(previous, false);
+                } catch (Exception e) {
+                    log.error("No se ha podido desbloquear el indice {}; hay que quitar index.blocks.write a mano", previous, e);
+                }
+            }
+        }
+    }
+
+    /**
+     * @return si la escritura se ha rechazado porque el indice esta bloqueado al final de una reindexacion. Hay que
+     * reintentarla: en cuanto acabe ira al indice nuevo por el alias de escritura
+     */
+    public static boolean isWriteBlocked(Throwable error) {
+        Throwable cause = error instanceof CompletionException && error.getCause() != null ? error.getCause() : error;
+        return cause instanceof ElasticsearchStatusException statusException
+                && isWriteBlocked(statusException.status(), statusException.getMessage());
+    }
+
+    /**
+     * Lo mismo para un elemento de un bulk.
+     */
+    public static boolean isWriteBlocked(RestStatus status, String message) {
+        return status == RestStatus.FORBIDDEN && message != null && message.contains("cluster_block_exception");
+    }
+
+    private String readAlias() {
+        return elasticClient.getIndexCoordinatesFor(Product.class).getIndexName();
+    }
+
+    private String newIndexName() {
+        return readAlias() + "-" + ZonedDateTime.now(ZoneOffset.UTC).format(INDEX_SUFFIX);
+    }
+
+    /**
+     * @return el indice fisico detras del alias de lectura (o el propio indice, si aun no se usan alias)
+     */
+    @SneakyThrows
+    private String currentIndex() {
+        String[] indices = elasticsearchClient.indices().get(new GetIndexRequest(readAlias()), RequestOptions.DEFAULT).getIndices();
+        if (indices.length != 1) {
+            throw new IllegalStateException("El alias " + readAlias() + " apunta a " + indices.length + " indices");
+        }
+        return indices[0];
+    }
+
+    /**
+     * Crea el indice con los mappings y settings de {@link Product}, sobrescribiendo los settings indicados.
+     */
+    @SneakyThrows
+    private void createIndex(String index, Settings overrides) {
+        IndexOperations productIndex = elasticClient.indexOps(Product.class);
+        elasticsearchClient.indices().create(new CreateIndexRequest(index)
+                .settings(Settings.builder().put(productSettings()).put(overrides))
+                .mapping(productIndex.createMapping()), RequestOptions.DEFAULT);
+    }
+
+    /**
+     * Settings de {@link Product} (elasticsearch/product-settings.json) con los shards, replicas y refresh de la
+     * configuracion, que dependen del entorno.
+     */
+    private Settings productSettings() {
+        return Settings.builder()
+                .loadFromMap(elasticClient.indexOps(Product.class).createSettings())
+                .normalizePrefix("index.")
+                .put("index.number_of_shards", shards)
+                .put("index.number_of_replicas", replicas)
+                .put("index.refresh_interval", refreshInterval)
+                .build();
+    }
+
+    /**
+     * Replicas y refresh con los que debe quedar el indice nuevo una vez copiado.
+     */
+    private Settings restoredSettings() {
+        return productSettings().filter(setting -> setting.equals("index.number_of_replicas") || setting.equals("index.refresh_interval"));
+    }
+
+    @SneakyThrows
+    private void setWriteBlock(String index, boolean blocked) {
+        elasticsearchClient.indices().putSettings(new UpdateSettingsRequest(index)
+                .settings(Settings.builder().put("index.blocks.write", blocked)), RequestOptions.DEFAULT);
+        log.info("Escrituras {} en {}", blocked ? "bloqueadas" : "desbloqueadas", index);
+    }
+
+    /**
+     * Reindexacion como tarea del cluster, esperando a que termine.
+     *
+     * @param since - copiar solo lo escrito desde esta marca (updatedAt), o null para copiarlo todo
+     * @return el resultado de la tarea (total, created, updated, version_conflicts...)
+     */
+    @SneakyThrows
+    private Map<String, Object> copy(String source, String destination, Long since) {
+        ReindexRequest request = new ReindexRequest()
+                .setSourceIndices(source)
+                .setDestIndex(destination)
+                .setDestVersionType(VersionType.EXTERNAL)
+                .setAbortOnVersionConflict(false)
+                .setSourceBatchSize(batchSize)
+                .setSlices("auto".equalsIgnoreCase(slices) ? AbstractBulkByScrollRequest.AUTO_SLICES : Integer.parseInt(slices))
+                .setRequestsPerSecond(requestsPerSecond > 0 ? requestsPerSecond : Float.POSITIVE_INFINITY);
+        if (since != null) {
+            request.setSourceQuery(QueryBuilders.rangeQuery(UPDATED_AT).gte(since));
+        }
+        //Los productos indexados antes de que el id se guardara tambien en el documento lo reciben al copiarlos
+        request.setScript(new Script(ScriptType.INLINE, "painless", "if (ctx._source.id == null) { ctx._source.id = ctx._id; }", Map.of()));
+        TaskSubmissionResponse task = elasticsearchClient.submitReindexTask(request, RequestOptions.DEFAULT);
+        Map<String, Object> result = awaitTask(task.getTask());
+
+        List<?> failures = (List<?>) result.get("failures");
+        if (failures != null && !failures.isEmpty()) {
+            throw new IllegalStateException("La reindexacion de " + source + " en " + destination + " ha fallado: " + failures.get(0));
+        }
+        return result;
+    }
+
+    /**
+     * Quita del indice nuevo los productos borrados del anterior desde la marca indicada: los que tienen marca de
+     * borrado y ya no estan en el indice anterior (si estan, se volvieron a crear). Solo es exacto con el indice
+     * anterior bloqueado.
+     *
+     * @return documentos quitados
+     */
+    private long applyDeletes(String previous, String index, long since) throws IOException {
+        long deleted = 0;
+        Object[] after = null;
+        while (true) {
+            SearchSourceBuilder source = new SearchSourceBuilder()
+                    .query(QueryBuilders.rangeQuery(UPDATED_AT).gte(since))
+                    .fetchSource(false)
+                    .sort(SortBuilders.fieldSort("id"))
+                    .size(batchSize);
+            if (after != null) {
+                source.searchAfter(after);
+            }
+            SearchHit[] tombstones = elasticsearchClient.search(new SearchRequest(tombstoneIndex).source(source), RequestOptions.DEFAULT)
+                    .getHits().getHits();
+            if (tombstones.length == 0) {
+                return deleted;
+            }
+
+            MultiGetRequest existing = new MultiGetRequest();
+            for (SearchHit tombstone : tombstones) {
+                existing.add(new MultiGetRequest.Item(previous, tombstone.getId()).fetchSourceContext(FetchSourceContext.DO_NOT_FETCH_SOURCE));
+            }
+            BulkRequest deletes = new BulkRequest();
+            for (MultiGetItemResponse item : elasticsearchClient.mget(existing, RequestOptions.DEFAULT).getResponses()) {
+                if (!item.isFailed() && !item.getResponse().isExists()) {
+                    deletes.add(new DeleteRequest(index, item.getId()));
+                }
+            }
+            if (deletes.numberOfActions() > 0) {
+                BulkResponse response = elasticsearchClient.bulk(deletes, RequestOptions.DEFAULT);
+                if (response.hasFailures()) {
+                    throw new IllegalStateException("No se han podido quitar los productos borrados de " + index + ": "
+                            + response.buildFailureMessage());
+                }
+                deleted += Arrays.stream(response.getItems())
+                        .filter(item -> item.getResponse().getResult() == DocWriteResponse.Result.DELETED).count();
+            }
+            after = tombstones[tombstones.length - 1].getSortValues();
+        }
+    }
+
+    /**
+     * El cliente de alto nivel de la version 7.10 no devuelve el resultado de las tareas, por lo que las consultamos
+     * con el cliente de bajo nivel.
+     */
+    @SuppressWarnings("unchecked")
+    private Map<String, Object> awaitTask(String taskId) throws Exception {
+        long pollMillis = TimeValue.parseTimeValue(pollInterval, "elasticsearch.reindex.poll-interval").millis();
+        while (true) {
+            Response response = elasticsearchClient.getLowLevelClient().performRequest(new Request("GET", "/_tasks/" + taskId));
+            Map<String, Object> task;
+            try (InputStream content = response.getEntity().getContent()) {
+                task = XContentHelper.convertToMap(JsonXContent.jsonXContent, content, false);
+            }
+            if (Boolean.TRUE.equals(task.get("completed"))) {
+                if (task.get("error") != null) {
+                    throw new IllegalStateException("La tarea " + taskId + " ha fallado: " + task.get("error"));
+                }
+                return (Map<String, Object>) task.get("response");
+            }
+            Map<String, Object> status = (Map<String, Object>) ((Map<String, Object>) task.get("task")).get("status");
+            log.info("Reindexando: {} de {} documentos", status == null ? "?" : status.get("created"), status == null ? "?" : status.get("total"));
+            Thread.sleep(pollMillis);
+        }
+    }
+
+    private static long count(Map<String, Object> result, String field) {
+        Object value = result.get(field);
+        return value == null ? 0 : ((Number) value).longValue();
+    }
+}
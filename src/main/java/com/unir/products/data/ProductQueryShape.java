@@ -0,0 +1,96 @@
+package com.unir.products.data;
+
+import com.unir.products.model.request.ProductSearchCriteria;
+import org.apache.commons.lang.StringUtils;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.StringJoiner;
+
+/**
+ * Forma de una busqueda de productos: que criterios de texto y de categoria lleva y si pide agregaciones, sin
+ * sus valores. Todas las busquedas de la misma forma generan la misma consulta salvo los valores y los filtros
+ * exactos (empresa, puntuacion, precio), asi que cada forma tiene su plantilla de busqueda
+ * ({@link ProductSearchTemplates}) y sus propias metricas de latencia.
+ */
+final class ProductQueryShape {
+
+    private static final String[] DIMENSIONS = {"nombre", "categoria", "descripcionCorta", "descripcionLarga", "aggregate"};
+    private static final int NOMBRE = 1;
+    private static final int CATEGORIA = 1 << 1;
+    private static final int DESCRIPCION_CORTA = 1 << 2;
+    private static final int DESCRIPCION_LARGA = 1 << 3;
+    private static final int AGGREGATE = 1 << 4;
+
+    private static final List<ProductQueryShape> ALL = new ArrayList<>();
+
+    static {
+        for (int mask = 0; mask < 1 << DIMENSIONS.length; mask++) {
+            ALL.add(new ProductQueryShape(mask));
+        }
+    }
+
+    private final int mask;
+    private final String name;
+
+    private ProductQueryShape(int mask) {
+        this.mask = mask;
+        StringJoiner name = new StringJoiner("+");
+        for (int i = 0; i < DIMENSIONS.length; i++) {
+            if ((mask & 1 << i) != 0) {
+                name.add(DIMENSIONS[i]);
+            }
+        }
+        //Sin criterios de texto ni categoria la consulta es un match_all, con o sin agregaciones
+        this.name = (mask & ~AGGREGATE) == 0 ? (mask == 0 ? "match_all" : "match_all+aggregate") : name.toString();
+    }
+
+    /**
+     * @param criteria - criterios de una primera pagina: con cursor no se agrega nada, asi que no cuenta aggregate
+     */
+    static ProductQueryShape of(ProductSearchCriteria criteria) {
+        int mask = 0;
+        mask |= StringUtils.isEmpty(criteria.getNombre()) ? 0 : NOMBRE;
+        mask |= StringUtils.isEmpty(criteria.getCategoria()) ? 0 : CATEGORIA;
+        mask |= StringUtils.isEmpty(criteria.getDescripcionCorta()) ? 0 : DESCRIPCION_CORTA;
+        mask |= StringUtils.isEmpty(criteria.getDescripcionLarga()) ? 0 : DESCRIPCION_LARGA;
+        mask |= Boolean.TRUE.equals(criteria.getAggregate()) && StringUtils.isEmpty(criteria.getCursor()) ? AGGREGATE : 0;
+        return ALL.get(mask);
+    }
+
+    static List<ProductQueryShape> all() {
+        return ALL;
+    }
+
+    boolean hasNombre() {
+        return (mask & NOMBRE) != 0;
+    }
+
+    boolean hasCategoria() {
+        return (mask & CATEGORIA) != 0;
+    }
+
+    boolean hasDescripcionCorta() {
+        return (mask & DESCRIPCION_CORTA) != 0;
+    }
+
+    boolean hasDescripcionLarga() {
+        return (mask & DESCRIPCION_LARGA) != 0;
+    }
+
+    boolean hasAggregate() {
+        return (mask & AGGREGATE) != 0;
+    }
+
+    /**
+     * @return nombre de la forma, por ejemplo nombre+categoria+aggregate. Es la etiqueta shape de las metricas
+     */
+    String getName() {
+        return name;
+    }
+
+    @Override
+    public String toString() {
+        return name;
+    }
+}
@@ -0,0 +1,291 @@
+package com.unir.products.data;
+
+import com.unir.products.model.request.ProductSearchCriteria;
+import org.apache.commons.lang.StringUtils;
+import org.elasticsearch.common.Strings;
+import org.elasticsearch.index.query.BoolQueryBuilder;
+import org.elasticsearch.index.query.MultiMatchQueryBuilder.Type;
+import org.elasticsearch.index.query.Operator;
+import org.elasticsearch.index.query.QueryBuilder;
+import org.elasticsearch.index.query.QueryBuilders;
+import org.elasticsearch.index.query.RangeQueryBuilder;
+import org.elasticsearch.search.aggregations.AggregationBuilders;
+import org.elasticsearch.search.builder.SearchSourceBuilder;
+import org.elasticsearch.search.fetch.subphase.FetchSourceContext;
+import org.elasticsearch.search.sort.SortBuilders;
+import org.elasticsearch.search.sort.SortOrder;
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.stereotype.Component;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * Traduce los criterios de busqueda de productos a la consulta de Elasticsearch.
+ * No depende del cliente, de modo que se puede medir de forma aislada (ver src/jmh).
+ */
+@Component
+public class ProductSearchQueryFactory {
+
+    //Nombres de las agregaciones, que son tambien los nombres de los parametros de busqueda por los que filtran
+    static final String FACET_CATEGORIA = "categoria";
+    static final String FACET_EMPRESA = "empresaAsociada";
+    static final String FACET_PRECIO = "precio";
+    static final String FACET_PUNTUACION = "puntuacion";
+
+    //Marcadores de las variables de las plantillas que no van entre comillas
+    private static final String TEMPLATE_MARKER = "__template__";
+    private static final int TEMPLATE_SIZE = 918273645;
+
+    private final String[] nombreSearchFields = {"nombre", "nombre._2gram", "nombre._3gram"};
+    private final String[] descripcioncortaSearchFields = {"descripcionCorta", "descripcionCorta._2gram", "descripcionCorta._3gram"};
+    private final String[] descripcionlargaSearchFields = {"descripcionLarga", "descripcionLarga._2gram", "descripcionLarga._3gram"};
+
+    private final int categoriaFacetSize;
+    private final int empresaFacetSize;
+    private final int puntuacionFacetSize;
+    private final long precioInterval;
+
+    public ProductSearchQueryFactory(@Value("${elasticsearch.search.facets.categoria-size:100}") int categoriaFacetSize,
+                                     @Value("${elasticsearch.search.facets.empresa-size:50}") int empresaFacetSize,
+                                     @Value("${elasticsearch.search.facets.puntuacion-size:10}") int puntuacionFacetSize,
+                                     @Value("${elasticsearch.search.facets.precio-interval:1000}") long precioInterval) {
+        this.categoriaFacetSize = categoriaFacetSize;
+        this.empresaFacetSize = empresaFacetSize;
+        this.puntuacionFacetSize = puntuacionFacetSize;
+        this.precioInterval = precioInterval;
+    }
+
+    /**
+     * Construye el cuerpo de la busqueda, sin paginacion por cursor (search_after y point in time los añade
+     * el repositorio). La pagina de productos y las agregaciones van en la misma busqueda.
+     *
+     * @param criteria - criterios de busqueda
+     * @param pageSize - tamaño de pagina ya validado
+     * @param facets   - incluir las agregaciones
+     * @return el cuerpo de la busqueda
+     */
+    public SearchSourceBuilder buildSearch(ProductSearchCriteria criteria, int pageSize, boolean facets) {
+
+        //Ordenacion estable: relevancia, codigo y, para desempatar, el id, que es lo unico unico (el codigo no lo
+        //garantiza nadie y la 7.10 no tiene _shard_doc). Es imprescindible para que search_after no repita ni salte
+        //documentos entre paginas. Sin criterios de texto todos los productos puntuan igual, asi que se ordena como
+        //el indice (categoria, precio, codigo, id): cada segmento ya esta en ese orden y Elasticsearch deja de
+        //recorrerlo en cuanto tiene la pagina completa.
+        SearchSourceBuilder sourceBuilder = new SearchSourceBuilder()
+                .query(buildQuery(criteria))
+                .trackTotalHits(false)
+                .size(pageSize);
+        if (hasTextCriteria(criteria)) {
+            sourceBuilder.sort(SortBuilders.scoreSort());
+        } else {
+            sourceBuilder.sort(SortBuilders.fieldSort("categoria").order(SortOrder.ASC));
+            sourceBuilder.sort(SortBuilders.fieldSort("precio").order(SortOrder.ASC));
+        }
+        sourceBuilder.sort(SortBuilders.fieldSort("codigo").order(SortOrder.ASC));
+        sourceBuilder.sort(SortBuilders.fieldSort("id").order(SortOrder.ASC));
+
+        if (facets) {
+            sourceBuilder.aggregation(AggregationBuilders.terms(FACET_CATEGORIA).field("categoria").size(categoriaFacetSize));
+            sourceBuilder.aggregation(AggregationBuilders.terms(FACET_EMPRESA).field("empresaAsociada").size(empresaFacetSize));
+            sourceBuilder.aggregation(AggregationBuilders.histogram(FACET_PRECIO).field("precio").interval(precioInterval).minDocCount(1));
+            sourceBuilder.aggregation(AggregationBuilders.terms(FACET_PUNTUACION).field("puntuacion").size(puntuacionFacetSize));
+        }
+        return sourceBuilder;
+    }
+
+    /**
+     * Busqueda de autocompletado sobre nombre. Con bool_prefix el ultimo termino tecleado se resuelve como un term
+     * sobre el subcampo nombre._index_prefix, que ya indexa los prefijos de cada palabra, en lugar de expandirse
+     * como una prefix query. Solo se trae el nombre del _source y no se cuentan los resultados.
+     *
+     * @param prefix - texto tecleado
+     * @param size   - numero de sugerencias
+     * @return el cuerpo de la busqueda
+     */
+    public SearchSourceBuilder buildSuggest(String prefix, int size) {
+        return new SearchSourceBuilder()
+                .query(QueryBuilders.multiMatchQuery(prefix, nombreSearchFields).type(Type.BOOL_PREFIX).operator(Operator.AND))
+                .fetchSource(new String[]{"nombre"}, null)
+                .size(size)
+                .trackTotalHits(false);
+    }
+
+    private static boolean hasTextCriteria(ProductSearchCriteria criteria) {
+        return !StringUtils.isEmpty(criteria.getNombre())
+                || !StringUtils.isEmpty(criteria.getDescripcionCorta())
+                || !StringUtils.isEmpty(criteria.getDescripcionLarga());
+    }
+
+    public long getPrecioInterval() {
+        return precioInterval;
+    }
+
+    /**
+     * Construye la consulta. Los criterios de texto van en contexto must porque deben puntuar; los criterios
+     * exactos (categoria, empresa, puntuacion y precio) van en contexto filter: no calculan score y Elasticsearch
+     * puede cachear sus bitsets entre peticiones.
+     *
+     * @param criteria - criterios de busqueda
+     * @return la consulta bool
+     */
+    public BoolQueryBuilder buildQuery(ProductSearchCriteria criteria) {
+
+        BoolQueryBuilder querySpec = buildShapeQuery(criteria);
+        buildFilters(criteria).forEach(querySpec::filter);
+
+        //Si no he recibido ningun parametro, busco todos los elementos.
+        if (!querySpec.hasClauses()) {
+            querySpec.must(QueryBuilders.matchAllQuery());
+        }
+
+        //Filtro implicito
+        //No le pido al usuario que lo introduzca pero lo aplicamos proactivamente en todas las peticiones
+        //En este caso, que los productos sean visibles (estado correcto de la entidad)
+        //querySpec.must(QueryBuilders.termQuery("visible", true));
+
+        return querySpec;
+    }
+
+    /**
+     * Clausulas de los criterios que determinan la forma de la busqueda ({@link ProductQueryShape}): los de texto
+     * y la categoria.
+     */
+    private BoolQueryBuilder buildShapeQuery(ProductSearchCriteria criteria) {
+
+        String nombre = criteria.getNombre();
+        String categoria = criteria.getCategoria();
+        String descripcionCorta = criteria.getDescripcionCorta();
+        String descripcionLarga = criteria.getDescripcionLarga();
+
+        BoolQueryBuilder querySpec = QueryBuilders.boolQuery();
+
+        if (!StringUtils.isEmpty(nombre)) {
+            querySpec.must(QueryBuilders.multiMatchQuery(nombre, nombreSearchFields).type(Type.BOOL_PREFIX));
+        }
+
+        if (!StringUtils.isEmpty(categoria)) {
+            querySpec.filter(QueryBuilders.termQuery("categoria", categoria));
+        }
+
+        if (!StringUtils.isEmpty(descripcionCorta)) {
+            querySpec.must(QueryBuilders.multiMatchQuery(descripcionCorta, descripcioncortaSearchFields).type(Type.BOOL_PREFIX));
+        }
+
+        if (!StringUtils.isEmpty(descripcionLarga)) {
+            querySpec.must(QueryBuilders.multiMatchQuery(descripcionLarga, descripcionlargaSearchFields).type(Type.BOOL_PREFIX));
+        }
+
+        return querySpec;
+    }
+
+    /**
+     * Filtros exactos que no forman parte de la forma de la busqueda: empresa, puntuacion y precio.
+     */
+    private List<QueryBuilder> buildFilters(ProductSearchCriteria criteria) {
+
+        List<QueryBuilder> filters = new ArrayList<>();
+
+        if (!StringUtils.isEmpty(criteria.getEmpresaAsociada())) {
+            filters.add(QueryBuilders.termQuery("empresaAsociada", criteria.getEmpresaAsociada()));
+        }
+
+        if (criteria.getPuntuacion() != null) {
+            filters.add(QueryBuilders.termQuery("puntuacion", criteria.getPuntuacion()));
+        }
+
+        //indValorUnitario: 1 -> menor o igual, 2 -> mayor o igual, cualquier otro valor -> igual
+        if (criteria.getValorunitario() != null) {
+            RangeQueryBuilder valorUnitario = QueryBuilders.rangeQuery("precio");
+            Integer indicador = criteria.getIndValorUnitario();
+            if (Integer.valueOf(1).equals(indicador)) {
+                valorUnitario.lte(criteria.getValorunitario());
+            } else if (Integer.valueOf(2).equals(indicador)) {
+                valorUnitario.gte(criteria.getValorunitario());
+            } else {
+                valorUnitario.gte(criteria.getValorunitario()).lte(criteria.getValorunitario());
+            }
+            filters.add(valorUnitario);
+        }
+
+        if (criteria.getPrecioMin() != null || criteria.getPrecioMax() != null) {
+            filters.add(QueryBuilders.rangeQuery("precio").gte(criteria.getPrecioMin()).lte(criteria.getPrecioMax()));
+        }
+
+        return filters;
+    }
+
+    /**
+     * Plantilla mustache de la busqueda de una forma. Se genera a partir de {@link #buildSearch} con los valores
+     * sustituidos por variables, de modo que la busqueda por plantilla y la directa no pueden divergir. Los filtros
+     * exactos, que varian dentro de la forma, se añaden en un bool exterior que no altera la puntuacion.
+     * <p>
+     * Variables: nombre, categoria, descripcionCorta y descripcionLarga (las de la forma), size, filters (lista de
+     * consultas) y source (includes y excludes del _source). Ver {@link #buildTemplateParams}.
+     *
+     * @param shape - forma de la busqueda
+     * @return el codigo de la plantilla. No es JSON valido hasta renderizarla
+     */
+    String buildSearchTemplate(ProductQueryShape shape) {
+
+        ProductSearchCriteria prototype = ProductSearchCriteria.builder()
+                .nombre(shape.hasNombre() ? "{{nombre}}" : null)
+                .categoria(shape.hasCategoria() ? "{{categoria}}" : null)
+                .descripcionCorta(shape.hasDescripcionCorta() ? "{{descripcionCorta}}" : null)
+                .descripcionLarga(shape.hasDescripcionLarga() ? "{{descripcionLarga}}" : null)
+                .build();
+        SearchSourceBuilder sourceBuilder = buildSearch(prototype, TEMPLATE_SIZE, shape.hasAggregate());
+
+        //Marcadores de las variables que no son texto, que se sustituyen una vez generado el JSON
+        QueryBuilder filters = QueryBuilders.termQuery(TEMPLATE_MARKER, TEMPLATE_MARKER);
+        FetchSourceContext source = new FetchSourceContext(true, new String[]{TEMPLATE_MARKER}, null);
+        sourceBuilder.query(QueryBuilders.boolQuery().must(sourceBuilder.query()).filter(filters)).fetchSource(source);
+
+        String template = Strings.toString(sourceBuilder);
+        template = replaceMarker(template, "\"size\":" + TEMPLATE_SIZE, "\"size\":{{size}}");
+        template = replaceMarker(template, "[" + Strings.toString(filters) + "]", "{{#toJson}}filters{{/toJson}}");
+        template = replaceMarker(template, Strings.toString(source), "{{#toJson}}source{{/toJson}}");
+        return template;
+    }
+
+    /**
+     * Parametros de la plantilla de la forma de los criterios. Los filtros se pasan como consultas y el cliente los
+     * escribe directamente en el cuerpo de la peticion.
+     *
+     * @param criteria - criterios de busqueda
+     * @param pageSize - tamaño de pagina ya validado
+     * @param includes - campos del _source a devolver, o null para todos
+     * @param excludes - campos del _source a omitir, o null
+     * @return los parametros de la plantilla
+     */
+    public Map<String, Object> buildTemplateParams(ProductSearchCriteria criteria, int pageSize, String[] includes, String[] excludes) {
+        Map<String, Object> params = new HashMap<>();
+        putIfNotEmpty(params, "nombre", criteria.getNombre());
+        putIfNotEmpty(params, "categoria", criteria.getCategoria());
+        putIfNotEmpty(params, "descripcionCorta", criteria.getDescripcionCorta());
+        putIfNotEmpty(params, "descripcionLarga", criteria.getDescripcionLarga());
+        params.put("size", pageSize);
+        params.put("filters", buildFilters(criteria));
+        params.put("source", Map.of(
+                "includes", includes == null ? List.of() : Arrays.asList(includes),
+                "excludes", excludes == null ? List.of() : Arrays.asList(excludes)));
+        return params;
+    }
+
+    private static void putIfNotEmpty(Map<String, Object> params, String name, String value) {
+        if (!StringUtils.isEmpty(value)) {
+            params.put(name, value);
+        }
+    }
+
+    private static String replaceMarker(String template, String marker, String replacement) {
+        int start = template.indexOf(marker);
+        if (start < 0) {
+            throw new IllegalStateException("No se encuentra " + marker + " en la plantilla " + template);
+        }
+        return template.substring(0, start) + replacement + template.substring(start + marker.length());
+    }
+}
@@ -0,0 +1,269 @@
+package com.unir.products.data;
+
+import com.unir.products.model.pojo.Product;
+import com.unir.products.model.pojo.ProjectedProduct;
+import com.unir.products.model.request.ProductSearchCriteria;
+import com.unir.products.model.response.AggregationDetails;
+import com.unir.products.model.response.ProductSuggestion;
+import lombok.SneakyThrows;
+import org.apache.commons.lang.StringUtils;
+import org.elasticsearch.action.search.SearchResponse;
+import org.elasticsearch.common.bytes.BytesReference;
+import org.elasticsearch.common.xcontent.ToXContent;
+import org.elasticsearch.common.xcontent.XContentBuilder;
+import org.elasticsearch.common.xcontent.XContentHelper;
+import org.elasticsearch.common.xcontent.XContentType;
+import org.elasticsearch.common.xcontent.json.JsonXContent;
+import org.elasticsearch.search.SearchHit;
+import org.elasticsearch.search.aggregations.Aggregations;
+import org.elasticsearch.search.aggregations.bucket.histogram.Histogram;
+import org.elasticsearch.search.aggregations.bucket.terms.Terms;
+import org.elasticsearch.search.profile.ProfileShardResult;
+import org.elasticsearch.search.profile.SearchProfileShardResults;
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.data.elasticsearch.core.ElasticsearchOperations;
+import org.springframework.data.elasticsearch.core.convert.ElasticsearchConverter;
+import org.springframework.data.elasticsearch.core.document.DocumentAdapters;
+import org.springframework.stereotype.Component;
+
+import java.net.URLEncoder;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Locale;
+import java.util.Map;
+import java.util.Set;
+
+import static com.unir.products.data.ProductSearchQueryFactory.FACET_CATEGORIA;
+import static com.unir.products.data.ProductSearchQueryFactory.FACET_EMPRESA;
+import static com.unir.products.data.ProductSearchQueryFactory.FACET_PRECIO;
+import static com.unir.products.data.ProductSearchQueryFactory.FACET_PUNTUACION;
+
+/**
+ * Convierte las respuestas de busqueda de Elasticsearch en productos y agregaciones del API.
+ */
+@Component
+public class ProductSearchResultMapper {
+
+    private final String serverFullAddress;
+    private final ElasticsearchConverter converter;
+    private final long precioInterval;
+
+    public ProductSearchResultMapper(@Value("${server.fullAddress}") String serverFullAddress,
+                                     ElasticsearchOperations elasticClient,
+                                     ProductSearchQueryFactory queryFactory) {
+        this.serverFullAddress = serverFullAddress;
+        this.converter = elasticClient.getElasticsearchConverter();
+        this.precioInterval = queryFactory.getPrecioInterval();
+    }
+
+    public List<Product> toProducts(SearchHit[] hits) {
+        return toProducts(hits, false);
+    }
+
+    /**
+     * @param projected - la busqueda solo ha pedido algunos campos (parametro fields): los productos se leen como
+     *                  {@link ProjectedProduct}, que no serializa los que faltan
+     */
+    public List<Product> toProducts(SearchHit[] hits, boolean projected) {
+        List<Product> products = new ArrayList<>(hits.length);
+        for (SearchHit hit : hits) {
+            products.add(toProduct(hit, projected));
+        }
+        return products;
+    }
+
+    /**
+     * Productos de la respuesta ligera: se serializan copiando el _source de cada hit, sin pasar por {@link Product}.
+     * La busqueda debe excluir {@link ProductSourceList#SOURCE_EXCLUDES} del _source.
+     */
+    public List<Product> toProductSources(SearchHit[] hits) {
+        return new ProductSourceList(hits, this);
+    }
+
+    public Product toProduct(SearchHit hit) {
+        return toProduct(hit, false);
+    }
+
+    public Product toProduct(SearchHit hit, boolean projected) {
+        Class<? extends Product> type = projected ? ProjectedProduct.class : Product.class;
+        return converter.read(type, DocumentAdapters.from(hit));
+    }
+
+    /**
+     * Sugerencias de autocompletado. El resaltado se calcula aqui en lugar de con el highlighter de Elasticsearch:
+     * solo hay que marcar el prefijo de cada palabra que coincide con lo tecleado, y asi la busqueda se ahorra
+     * la fase de highlight.
+     *
+     * @param hits   - resultados de la busqueda de sugerencias
+     * @param prefix - texto tecleado, en minusculas
+     * @return id, nombre y nombre resaltado de cada producto
+     */
+    public List<ProductSuggestion> toSuggestions(SearchHit[] hits, String prefix) {
+        String[] terms = prefix.split(" ");
+        List<ProductSuggestion> suggestions = new ArrayList<>(hits.length);
+        for (SearchHit hit : hits) {
+            Object nombre = hit.getSourceAsMap().get("nombre");
+            String text = nombre == null ? null : nombre.toString();
+            suggestions.add(new ProductSuggestion(hit.getId(), text, text == null ? null : highlight(text, terms)));
+        }
+        return suggestions;
+    }
+
+    private static String highlight(String text, String[] terms) {
+        StringBuilder highlighted = new StringBuilder(text.length() + 16);
+        int i = 0;
+        while (i < text.length()) {
+            if (!Character.isLetterOrDigit(text.charAt(i))) {
+                highlighted.append(text.charAt(i++));
+                continue;
+            }
+            int end = i;
+            while (end < text.length() && Character.isLetterOrDigit(text.charAt(end))) {
+                end++;
+            }
+            String word = text.substring(i, end);
+            String lowerCaseWord = word.toLowerCase(Locale.ROOT);
+            int matched = 0;
+            for (String term : terms) {
+                if (term.length() > matched && lowerCaseWord.startsWith(term)) {
+                    matched = term.length();
+                }
+            }
+            if (matched > 0) {
+                highlighted.append("<em>").append(word, 0, matched).append("</em>").append(word, matched, word.length());
+            } else {
+                highlighted.append(word);
+            }
+            i = end;
+        }
+        return highlighted.toString();
+    }
+
+    /**
+     * Desglose del Profile API por shard (consultas, colectores y agregaciones), con el mismo formato que devuelve
+     * Elasticsearch bajo "profile".
+     *
+     * @param result - respuesta de Elasticsearch
+     * @return el perfil de la busqueda, o null si no se pidio
+     */
+    @SneakyThrows
+    public Map<String, Object> toProfile(SearchResponse result) {
+        Map<String, ProfileShardResult> shards = result.getProfileResults();
+        if (shards == null || shards.isEmpty()) {
+            return null;
+        }
+        try (XContentBuilder builder = JsonXContent.contentBuilder()) {
+            builder.startObject();
+            new SearchProfileShardResults(shards).toXContent(builder, ToXContent.EMPTY_PARAMS);
+            builder.endObject();
+            @SuppressWarnings("unchecked")
+            Map<String, Object> profile = (Map<String, Object>) XContentHelper.convertToMap(
+                    BytesReference.bytes(builder), false, XContentType.JSON).v2().get("profile");
+            return profile;
+        }
+    }
+
+    /**
+     * Agregaciones de la busqueda. Cada bucket lleva la URI que repite la busqueda filtrando por ese valor.
+     * La parte comun de las URIs se compone una sola vez por agregacion; por bucket solo se añade su valor.
+     *
+     * @param criteria - criterios de la busqueda original
+     * @param result   - respuesta de Elasticsearch
+     * @return los buckets de cada agregacion, o un mapa vacio si la busqueda no pedia agregaciones
+     */
+    public Map<String, List<AggregationDetails>> toFacets(ProductSearchCriteria criteria, SearchResponse result) {
+        Aggregations aggregations = result.getAggregations();
+        if (aggregations == null) {
+            return Collections.emptyMap();
+        }
+
+        Map<String, String> queryParams = getQueryParams(criteria);
+        Map<String, List<AggregationDetails>> facets = new LinkedHashMap<>();
+        facets.put(FACET_CATEGORIA, toTermsFacet(aggregations.get(FACET_CATEGORIA), uriPrefix(queryParams, Set.of(FACET_CATEGORIA), FACET_CATEGORIA)));
+        facets.put(FACET_EMPRESA, toTermsFacet(aggregations.get(FACET_EMPRESA), uriPrefix(queryParams, Set.of(FACET_EMPRESA), FACET_EMPRESA)));
+        facets.put(FACET_PRECIO, toPrecioFacet(aggregations.get(FACET_PRECIO), criteria,
+                uriPrefix(queryParams, Set.of("precioMin", "precioMax"), "precioMin")));
+        facets.put(FACET_PUNTUACION, toTermsFacet(aggregations.get(FACET_PUNTUACION), uriPrefix(queryParams, Set.of(FACET_PUNTUACION), FACET_PUNTUACION)));
+        return facets;
+    }
+
+    private List<AggregationDetails> toTermsFacet(Terms terms, String uriPrefix) {
+        if (terms == null) {
+            return Collections.emptyList();
+        }
+        List<AggregationDetails> buckets = new ArrayList<>(terms.getBuckets().size());
+        for (Terms.Bucket bucket : terms.getBuckets()) {
+            String key = bucket.getKeyAsString();
+            buckets.add(new AggregationDetails(key, (int) bucket.getDocCount(), uriPrefix + encode(key)));
+        }
+        return buckets;
+    }
+
+    /**
+     * Cada bucket del histograma de precio es un rango [key, key + intervalo). La URI lo acota ademas con el
+     * rango de precio de la busqueda original, si lo habia.
+     */
+    private List<AggregationDetails> toPrecioFacet(Histogram histogram, ProductSearchCriteria criteria, String uriPrefix) {
+        if (histogram == null) {
+            return Collections.emptyList();
+        }
+        List<AggregationDetails> buckets = new ArrayList<>(histogram.getBuckets().size());
+        for (Histogram.Bucket bucket : histogram.getBuckets()) {
+            long from = ((Number) bucket.getKey()).longValue();
+            long to = from + precioInterval - 1;
+            long uriFrom = criteria.getPrecioMin() == null ? from : Math.max(from, (long) Math.ceil(criteria.getPrecioMin()));
+            long uriTo = criteria.getPrecioMax() == null ? to : Math.min(to, (long) Math.floor(criteria.getPrecioMax()));
+            buckets.add(new AggregationDetails(from + "-" + to, (int) bucket.getDocCount(),
+                    uriPrefix + uriFrom + "&precioMax=" + uriTo));
+        }
+        return buckets;
+    }
+
+    /**
+     * URI de la busqueda original sin los parametros que sustituye la agregacion, terminada en "param=".
+     */
+    private String uriPrefix(Map<String, String> queryParams, Set<String> replaced, String param) {
+        StringBuilder uri = new StringBuilder(serverFullAddress).append("/products?");
+        queryParams.forEach((name, value) -> {
+            if (!replaced.contains(name)) {
+                uri.append(name).append('=').append(value).append('&');
+            }
+        });
+        return uri.append(param).append('=').toString();
+    }
+
+    /**
+     * Parametros de la busqueda original que no vienen vacios, con sus valores ya codificados para la URI.
+     *
+     * @param criteria - criterios de la busqueda original
+     * @return nombre y valor de cada parametro, en el orden en que se componen las URIs
+     */
+    Map<String, String> getQueryParams(ProductSearchCriteria criteria) {
+        Map<String, String> params = new LinkedHashMap<>();
+        putParam(params, "nombre", criteria.getNombre());
+        putParam(params, "categoria", criteria.getCategoria());
+        putParam(params, "descripcionCorta", criteria.getDescripcionCorta());
+        putParam(params, "descripcionLarga", criteria.getDescripcionLarga());
+        putParam(params, "valorunitario", criteria.getValorunitario());
+        putParam(params, "indValorUnitario", criteria.getIndValorUnitario());
+        putParam(params, "precioMin", criteria.getPrecioMin());
+        putParam(params, "precioMax", criteria.getPrecioMax());
+        putParam(params, "empresaAsociada", criteria.getEmpresaAsociada());
+        putParam(params, "puntuacion", criteria.getPuntuacion());
+        putParam(params, "fields", criteria.getFields());
+        return params;
+    }
+
+    private static void putParam(Map<String, String> params, String name, Object value) {
+        if (value != null && !StringUtils.isEmpty(value.toString())) {
+            params.put(name, encode(value.toString()));
+        }
+    }
+
+    private static String encode(String value) {
+        return URLEncoder.encode(value, StandardCharsets.UTF_8);
+    }
+}
@@ -0,0 +1,355 @@
+package com.unir.products.data;
+
+import com.unir.products.model.request.ProductSearchCriteria;
+import lombok.SneakyThrows;
+import lombok.extern.slf4j.Slf4j;
+import org.apache.http.HttpEntity;
+import org.apache.http.entity.ContentType;
+import org.apache.http.nio.entity.NByteArrayEntity;
+import org.elasticsearch.ElasticsearchException;
+import org.elasticsearch.ElasticsearchStatusException;
+import org.elasticsearch.action.ActionListener;
+import org.elasticsearch.action.admin.cluster.storedscripts.DeleteStoredScriptRequest;
+import org.elasticsearch.action.admin.cluster.storedscripts.PutStoredScriptRequest;
+import org.elasticsearch.action.search.MultiSearchResponse;
+import org.elasticsearch.action.search.SearchRequest;
+import org.elasticsearch.action.search.SearchResponse;
+import org.elasticsearch.action.support.GroupedActionListener;
+import org.elasticsearch.client.Cancellable;
+import org.elasticsearch.client.Request;
+import org.elasticsearch.client.RequestOptions;
+import org.elasticsearch.client.Response;
+import org.elasticsearch.client.ResponseException;
+import org.elasticsearch.client.ResponseListener;
+import org.elasticsearch.client.RestClient;
+import org.elasticsearch.client.RestHighLevelClient;
+import org.elasticsearch.common.CheckedFunction;
+import org.elasticsearch.common.ParseField;
+import org.elasticsearch.common.Strings;
+import org.elasticsearch.common.bytes.BytesReference;
+import org.elasticsearch.common.hash.MessageDigests;
+import org.elasticsearch.common.xcontent.DeprecationHandler;
+import org.elasticsearch.common.xcontent.NamedXContentRegistry;
+import org.elasticsearch.common.xcontent.XContentBuilder;
+import org.elasticsearch.common.xcontent.XContentHelper;
+import org.elasticsearch.common.xcontent.XContentParser;
+import org.elasticsearch.common.xcontent.XContentType;
+import org.elasticsearch.common.xcontent.json.JsonXContent;
+import org.elasticsearch.rest.BytesRestResponse;
+import org.elasticsearch.rest.RestStatus;
+import org.elasticsearch.script.ScriptType;
+import org.elasticsearch.script.mustache.MultiSearchTemplateRequest;
+import org.elasticsearch.script.mustache.SearchTemplateRequest;
+import org.elasticsearch.search.aggregations.Aggregation;
+import org.elasticsearch.search.aggregations.bucket.histogram.HistogramAggregationBuilder;
+import org.elasticsearch.search.aggregations.bucket.histogram.ParsedHistogram;
+import org.elasticsearch.search.aggregations.bucket.terms.DoubleTerms;
+import org.elasticsearch.search.aggregations.bucket.terms.LongTerms;
+import org.elasticsearch.search.aggregations.bucket.terms.ParsedDoubleTerms;
+import org.elasticsearch.search.aggregations.bucket.terms.ParsedLongTerms;
+import org.elasticsearch.search.aggregations.bucket.terms.ParsedStringTerms;
+import org.elasticsearch.search.aggregations.bucket.terms.StringTerms;
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.stereotype.Component;
+
+import javax.annotation.PostConstruct;
+import java.io.IOException;
+import java.io.InputStream;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.HashMap;
+import java.util.LinkedHashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+
+/**
+ * Plantillas de busqueda (stored scripts mustache) de GET /products, una por forma de busqueda
+ * ({@link ProductQueryShape}). Con elasticsearch.search.templates.enabled las primeras paginas se piden con el id de
+ * la plantilla y sus parametros, en lugar de construir y enviar la consulta completa en cada busqueda: el cluster
+ * compila cada plantilla una vez y la cachea.
+ * <p>
+ * El id de cada plantilla lleva un hash de su codigo, asi que si cambia la consulta se registra una plantilla nueva
+ * sin pisar la que siguen usando las instancias de la version anterior durante un despliegue. Al arrancar se borran
+ * las plantillas de productos que no son de esta version, para que no se acumulen en el estado del cluster con cada
+ * despliegue; si una instancia de la version anterior se encuentra sin la suya, la vuelve a registrar y repite la
+ * busqueda. Asi solo sobreviven a un despliegue las de la version anterior que se sigan usando hasta el final.
+ * <p>
+ * Las busquedas por plantilla no se envian con searchTemplateAsync del cliente de alto nivel: en la version 7.10
+ * parsea la respuesta a un mapa, la vuelve a serializar y la parsea otra vez como SearchResponse, y eso cuesta mas
+ * que lo que se ahorra al no construir la consulta. Se envian con {@link TemplateClient}, que parsea la respuesta
+ * directamente como la de una busqueda normal.
+ */
+@Component
+@Slf4j
+public class ProductSearchTemplates {
+
+    private static final String ID_PREFIX = "products-search-";
+
+    /**
+     * Envia las busquedas por plantilla con el cliente de bajo nivel (mismas conexiones que el de alto nivel) y
+     * parsea la respuesta como la de una busqueda normal. Un estado de error llega como
+     * ElasticsearchStatusException, igual que con el cliente de alto nivel.
+     */
+    private static class TemplateClient {
+
+        //El cliente de alto nivel no expone su registro de parsers; registramos solo los de las agregaciones que usamos
+        private static final NamedXContentRegistry REGISTRY = new NamedXContentRegistry(List.of(
+                new NamedXContentRegistry.Entry(Aggregation.class, new ParseField(StringTerms.NAME),
+                        (parser, name) -> ParsedStringTerms.fromXContent(parser, (String) name)),
+                new NamedXContentRegistry.Entry(Aggregation.class, new ParseField(LongTerms.NAME),
+                        (parser, name) -> ParsedLongTerms.fromXContent(parser, (String) name)),
+                new NamedXContentRegistry.Entry(Aggregation.class, new ParseField(DoubleTerms.NAME),
+                        (parser, name) -> ParsedDoubleTerms.fromXContent(parser, (String) name)),
+                new NamedXContentRegistry.Entry(Aggregation.class, new ParseField(HistogramAggregationBuilder.NAME),
+                        (parser, name) -> ParsedHistogram.fromXContent(parser, (String) name))));
+
+        private final RestClient restClient;
+
+        TemplateClient(RestClient restClient) {
+            this.restClient = restClient;
+        }
+
+        Cancellable searchParsedAsync(SearchTemplateRequest templateRequest, RequestOptions options,
+                                      ActionListener<SearchResponse> listener) {
+            Request request = new Request("GET", "/" + String.join(",", templateRequest.getRequest().indices()) + "/_search/template");
+            //Sin typed_keys no se pueden parsear las agregaciones
+            request.addParameter("typed_keys", "true");
+            request.setJsonEntity(Strings.toString(templateRequest));
+            return performAsync(request, options, SearchResponse::fromXContent, listener);
+        }
+
+        @SneakyThrows
+        Cancellable msearchParsedAsync(MultiSearchTemplateRequest templateRequest, RequestOptions options,
+                                       ActionListener<MultiSearchResponse> listener) {
+            Request request = new Request("POST", "/_msearch/template");
+            request.addParameter("typed_keys", "true");
+            request.setEntity(new NByteArrayEntity(MultiSearchTemplateRequest.writeMultiLineFormat(templateRequest, JsonXContent.jsonXContent),
+                    ContentType.APPLICATION_JSON));
+            return performAsync(request, options, MultiSearchResponse::fromXContext, listener);
+        }
+
+        private <T> Cancellable performAsync(Request request, RequestOptions options,
+                                             CheckedFunction<XContentParser, T, IOException> parser, ActionListener<T> listener) {
+            request.setOptions(options);
+            return restClient.performRequestAsync(request, new ResponseListener() {
+                @Override
+                public void onSuccess(Response response) {
+                    T parsed;
+                    try {
+                        parsed = parse(response.getEntity(), parser);
+                    } catch (Exception e) {
+                        listener.onFailure(e);
+                        return;
+                    }
+                    listener.onResponse(parsed);
+                }
+
+                @Override
+                public void onFailure(Exception exception) {
+                    listener.onFailure(exception instanceof ResponseException responseException
+                            ? toStatusException(responseException) : exception);
+                }
+            });
+        }
+
+        /**
+         * Como el cliente de alto nivel: el error que describe el cuerpo de la respuesta, con el estado HTTP.
+         */
+        private static ElasticsearchStatusException toStatusException(ResponseException exception) {
+            RestStatus status = RestStatus.fromCode(exception.getResponse().getStatusLine().getStatusCode());
+            HttpEntity entity = exception.getResponse().getEntity();
+            if (entity != null) {
+                try {
+                    ElasticsearchStatusException error = parse(entity, BytesRestResponse::errorFromXContent);
+                    error.addSuppressed(exception);
+                    return error;
+                } catch (Exception e) {
+                    ElasticsearchStatusException error = new ElasticsearchStatusException("Unable to parse response body", status, exception);
+                    error.addSuppressed(e);
+                    return error;
+                }
+            }
+            return new ElasticsearchStatusException(exception.getMessage(), status, exception);
+        }
+
+        private static <T> T parse(HttpEntity entity, CheckedFunction<XContentParser, T, IOException> parser) throws IOException {
+            try (InputStream content = entity.getContent();
+                 XContentParser contentParser = JsonXContent.jsonXContent.createParser(REGISTRY, DeprecationHandler.IGNORE_DEPRECATIONS, content)) {
+                return parser.apply(contentParser);
+            }
+        }
+    }
+
+    private final RestHighLevelClient elasticsearchClient;
+    private final TemplateClient templateClient;
+    private final ProductSearchQueryFactory queryFactory;
+    private final boolean enabled;
+    // Codigo de cada plantilla, por id, e id de la plantilla de cada forma
+    private final Map<String, String> sources = new HashMap<>();
+    private final Map<ProductQueryShape, String> ids = new HashMap<>();
+
+    public ProductSearchTemplates(RestHighLevelClient elasticsearchClient,
+                                  ProductSearchQueryFactory queryFactory,
+                                  @Value("${elasticsearch.search.templates.enabled:true}") boolean enabled) {
+        this.elasticsearchClient = elasticsearchClient;
+        this.templateClient = enabled ? new TemplateClient(elasticsearchClient.getLowLevelClient()) : null;
+        this.queryFactory = queryFactory;
+        this.enabled = enabled;
+        for (ProductQueryShape shape : ProductQueryShape.all()) {
+            String source = queryFactory.buildSearchTemplate(shape);
+            String hash = MessageDigests.toHexString(MessageDigests.sha256().digest(source.getBytes(StandardCharsets.UTF_8)));
+            String id = ID_PREFIX + shape.getName().replace('+', '-') + "-" + hash.substring(0, 12);
+            sources.put(id, source);
+            ids.put(shape, id);
+        }
+    }
+
+    /**
+     * Registra las plantillas en el cluster al arrancar y borra las de productos que no son de esta version.
+     * Registrar una que ya existe solo la sobrescribe con el mismo codigo.
+     */
+    @PostConstruct
+    @SneakyThrows
+    public void registerTemplates() {
+        if (!enabled) {
+            return;
+        }
+        for (String id : sources.keySet()) {
+            elasticsearchClient.putScript(putScriptRequest(id), RequestOptions.DEFAULT);
+        }
+        log.info("Registradas {} plantillas de busqueda de productos", sources.size());
+        deleteStaleTemplates();
+    }
+
+    /**
+     * Borra las plantillas de productos de versiones anteriores. Si falla solo se avisa: las plantillas que sobran
+     * no estorban a las busquedas y se borraran en el siguiente arranque.
+     */
+    private void deleteStaleTemplates() {
+        try {
+            Request request = new Request("GET", "/_cluster/state/metadata");
+            request.addParameter("filter_path", "metadata.stored_scripts.*.lang");
+            Response response = elasticsearchClient.getLowLevelClient().performRequest(request);
+            Map<String, Object> state;
+            try (InputStream content = response.getEntity().getContent()) {
+                state = XContentHelper.convertToMap(JsonXContent.jsonXContent, content, false);
+            }
+            List<String> stale = new ArrayList<>();
+            if (state.get("metadata") instanceof Map<?, ?> metadata && metadata.get("stored_scripts") instanceof Map<?, ?> scripts) {
+                scripts.keySet().stream().map(String::valueOf)
+                        .filter(id -> id.startsWith(ID_PREFIX) && !sources.containsKey(id))
+                        .forEach(stale::add);
+            }
+            for (String id : stale) {
+                try {
+                    elasticsearchClient.deleteScript(new DeleteStoredScriptRequest(id), RequestOptions.DEFAULT);
+                } catch (ElasticsearchStatusException e) {
+                    //Otra instancia que arranca a la vez ya la ha borrado
+                    if (e.status() != RestStatus.NOT_FOUND) {
+                        throw e;
+                    }
+                }
+            }
+            if (!stale.isEmpty()) {
+                log.info("Borradas {} plantillas de busqueda de productos de versiones anteriores", stale.size());
+            }
+        } catch (Exception e) {
+            log.warn("No se han podido borrar las plantillas de busqueda de versiones anteriores", e);
+        }
+    }
+
+    private PutStoredScriptRequest putScriptRequest(String id) throws IOException {
+        XContentBuilder content = JsonXContent.contentBuilder()
+                .startObject()
+                .startObject("script")
+                .field("lang", "mustache")
+                .field("source", sources.get(id))
+                .endObject()
+                .endObject();
+        return new PutStoredScriptRequest().id(id).content(BytesReference.bytes(content), XContentType.JSON);
+    }
+
+    /**
+     * Vuelve a registrar las plantillas indicadas, que ha borrado otra instancia (de una version posterior).
+     */
+    private void registerAgain(Collection<String> missing, ActionListener<Void> listener) {
+        log.warn("Plantillas de busqueda borradas del cluster, se vuelven a registrar: {}", missing);
+        GroupedActionListener<Object> registered = new GroupedActionListener<>(
+                ActionListener.wrap(responses -> listener.onResponse(null), listener::onFailure), missing.size());
+        for (String id : missing) {
+            try {
+                elasticsearchClient.putScriptAsync(putScriptRequest(id), RequestOptions.DEFAULT, ActionListener.map(registered, response -> response));
+            } catch (IOException e) {
+                registered.onFailure(e);
+            }
+        }
+    }
+
+    private static boolean isMissingScript(Exception e) {
+        return e instanceof ElasticsearchException && e.getMessage() != null && e.getMessage().contains("unable to find script");
+    }
+
+    public boolean isEnabled() {
+        return enabled;
+    }
+
+    /**
+     * Busqueda por plantilla equivalente a la de {@link ProductSearchQueryFactory#buildSearch} con los mismos
+     * criterios, para primeras paginas sin perfilado.
+     *
+     * @param index    - indice o alias sobre el que buscar
+     * @param criteria - criterios de busqueda
+     * @param pageSize - tamaño de pagina ya validado
+     * @param includes - campos del _source a devolver, o null para todos
+     * @param excludes - campos del _source a omitir, o null
+     * @return la peticion, con el id de la plantilla y sus parametros
+     */
+    public SearchTemplateRequest buildRequest(String index, ProductSearchCriteria criteria, int pageSize,
+                                              String[] includes, String[] excludes) {
+        SearchTemplateRequest request = new SearchTemplateRequest(new SearchRequest(index));
+        request.setScriptType(ScriptType.STORED);
+        request.setScript(ids.get(ProductQueryShape.of(criteria)));
+        request.setScriptParams(queryFactory.buildTemplateParams(criteria, pageSize, includes, excludes));
+        return request;
+    }
+
+    /**
+     * Como {@link RestHighLevelClient#searchTemplateAsync}, pero con la respuesta ya como SearchResponse. Si la
+     * plantilla ya no esta en el cluster se vuelve a registrar y se repite la busqueda una vez; la repeticion no se
+     * puede cancelar con el Cancellable devuelto.
+     */
+    public Cancellable searchAsync(SearchTemplateRequest request, RequestOptions options, ActionListener<SearchResponse> listener) {
+        return templateClient.searchParsedAsync(request, options, ActionListener.wrap(listener::onResponse, e -> {
+            if (!isMissingScript(e)) {
+                listener.onFailure(e);
+                return;
+            }
+            registerAgain(List.of(request.getScript()), ActionListener.wrap(
+                    registered -> templateClient.searchParsedAsync(request, options, listener), listener::onFailure));
+        }));
+    }
+
+    /**
+     * Como {@link RestHighLevelClient#msearchTemplateAsync}, pero con cada respuesta ya como SearchResponse. Si
+     * falta alguna plantilla en el cluster se hace como en {@link #searchAsync}.
+     */
+    public Cancellable msearchAsync(MultiSearchTemplateRequest request, RequestOptions options, ActionListener<MultiSearchResponse> listener) {
+        return templateClient.msearchParsedAsync(request, options, ActionListener.wrap(response -> {
+            Set<String> missing = new LinkedHashSet<>();
+            MultiSearchResponse.Item[] items = response.getResponses();
+            for (int i = 0; i < items.length; i++) {
+                if (items[i].isFailure() && isMissingScript(items[i].getFailure())) {
+                    missing.add(request.requests().get(i).getScript());
+                }
+            }
+            if (missing.isEmpty()) {
+                listener.onResponse(response);
+                return;
+            }
+            registerAgain(missing, ActionListener.wrap(
+                    registered -> templateClient.msearchParsedAsync(request, options, listener), listener::onFailure));
+        }, listener::onFailure));
+    }
+}
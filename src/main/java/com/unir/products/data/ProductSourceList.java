@@ -0,0 +1,228 @@
+package com.unir.products.data;
+
+import com.fasterxml.jackson.core.JsonGenerator;
+import com.fasterxml.jackson.core.SerializableString;
+import com.fasterxml.jackson.databind.SerializerProvider;
+import com.fasterxml.jackson.databind.annotation.JsonSerialize;
+import com.fasterxml.jackson.databind.ser.std.StdSerializer;
+import com.unir.products.model.pojo.Product;
+import org.apache.lucene.util.BytesRef;
+import org.apache.lucene.util.BytesRefIterator;
+import org.elasticsearch.common.bytes.BytesReference;
+import org.elasticsearch.search.SearchHit;
+
+import java.io.IOException;
+import java.io.OutputStream;
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+import java.util.AbstractList;
+
+/**
+ * Pagina de productos de la respuesta ligera (lean=true). Al serializarla se copia el _source de cada hit tal y
+ * como llega de Elasticsearch, precedido del id, sin convertirlo en {@link Product} ni volver a generar su JSON.
+ * Los campos llevan por tanto el nombre que tienen en el indice.
+ * <p>
+ * Como lista de productos, cada elemento se convierte al pedirlo; la serializacion no lo hace nunca.
+ */
+@JsonSerialize(using = ProductSourceList.Serializer.class)
+class ProductSourceList extends AbstractList<Product> {
+
+    //Campos del _source que no son del producto. Se excluyen en la busqueda, ya que el _source se copia entero
+    static final String[] SOURCE_EXCLUDES = {"_class", "id"};
+
+    private final SearchHit[] hits;
+    private final ProductSearchResultMapper mapper;
+
+    ProductSourceList(SearchHit[] hits, ProductSearchResultMapper mapper) {
+        this.hits = hits;
+        this.mapper = mapper;
+    }
+
+    @Override
+    public Product get(int index) {
+        return mapper.toProduct(hits[index]);
+    }
+
+    @Override
+    public int size() {
+        return hits.length;
+    }
+
+    public static class Serializer extends StdSerializer<ProductSourceList> {
+
+        public Serializer() {
+            super(ProductSourceList.class);
+        }
+
+        @Override
+        public void serialize(ProductSourceList products, JsonGenerator generator, SerializerProvider provider) throws IOException {
+            generator.writeStartArray(products, products.size());
+            RawUtf8 raw = new RawUtf8();
+            for (int i = 0; i < products.hits.length; i++) {
+                SearchHit hit = products.hits[i];
+                BytesReference source = hit.getSourceRef();
+                if (source != null && !isObject(source)) {
+                    //Como el resto de la salida ligera, sin los campos que no estan en el _source
+                    provider.defaultSerializeValue(products.mapper.toProduct(hit, true), generator);
+                    continue;
+                }
+                generator.writeStartObject();
+                generator.writeStringField("id", hit.getId());
+                if (source != null && hasFields(source)) {
+                    writeFields(generator, raw, source.slice(1, source.length() - 2));
+                }
+                generator.writeEndObject();
+            }
+            generator.writeEndArray();
+        }
+
+        /**
+         * El cliente vuelve a generar el _source al parsear la respuesta, asi que llega compacto: un objeto sin
+         * espacios alrededor. Lo que hay entre sus llaves se escribe a continuacion del id.
+         */
+        private static boolean isObject(BytesReference source) {
+            return source.length() >= 2 && source.get(0) == '{' && source.get(source.length() - 1) == '}';
+        }
+
+        /**
+         * Un objeto vacio puede llegar como {} o con espacios entre las llaves; en ninguno de los dos casos hay que
+         * añadir la coma tras el id.
+         */
+        private static boolean hasFields(BytesReference source) {
+            for (int i = 1; i < source.length() - 1; i++) {
+                byte b = source.get(i);
+                if (b != ' ' && b != '\t' && b != '\n' && b != '\r') {
+                    return true;
+                }
+            }
+            return false;
+        }
+
+        /**
+         * Se escriben en bruto a traves del generador, que es quien lleva el buffer y el estado de la salida;
+         * escribir en su OutputStream por debajo se saltaria cualquier envoltorio o codificacion que aplique.
+         */
+        private static void writeFields(JsonGenerator generator, RawUtf8 raw, BytesReference fields) throws IOException {
+            generator.writeRaw(',');
+            BytesRefIterator chunks = fields.iterator();
+            for (BytesRef chunk = chunks.next(); chunk != null; chunk = chunks.next()) {
+                raw.reset(chunk);
+                while (raw.hasRemaining()) {
+                    generator.writeRaw(raw);
+                }
+            }
+        }
+    }
+
+    /**
+     * Bytes UTF-8 ya codificados que el generador copia tal cual en su buffer, sin pasar por un String: con la
+     * salida en UTF-8 (la respuesta HTTP) writeRaw(SerializableString) llama a {@link #appendUnquotedUTF8}.
+     * <p>
+     * No es un SerializableString normal: se va consumiendo a medida que se escribe y cada llamada escribe lo que
+     * cabe en el buffer, asi que hay que llamar a writeRaw mientras quede algo. Con el buffer lleno el generador
+     * escribe en su lugar lo que devuelve {@link #asUnquotedUTF8}, un solo byte, y eso le obliga a vaciarlo antes.
+     * Con otras salidas (writeValueAsString) se escribe de una vez como texto.
+     */
+    private static final class RawUtf8 implements SerializableString {
+
+        private final byte[] next = new byte[1];
+        private byte[] bytes;
+        private int offset;
+        private int end;
+
+        void reset(BytesRef ref) {
+            this.bytes = ref.bytes;
+            this.offset = ref.offset;
+            this.end = ref.offset + ref.length;
+        }
+
+        boolean hasRemaining() {
+            return offset < end;
+        }
+
+        @Override
+        public int appendUnquotedUTF8(byte[] buffer, int bufferOffset) {
+            int length = Math.min(end - offset, buffer.length - bufferOffset);
+            if (length <= 0) {
+                return -1;
+            }
+            System.arraycopy(bytes, offset, buffer, bufferOffset, length);
+            offset += length;
+            return length;
+        }
+
+        @Override
+        public byte[] asUnquotedUTF8() {
+            next[0] = bytes[offset++];
+            return next;
+        }
+
+        @Override
+        public String getValue() {
+            String value = new String(bytes, offset, end - offset, StandardCharsets.UTF_8);
+            offset = end;
+            return value;
+        }
+
+        @Override
+        public int appendUnquoted(char[] buffer, int bufferOffset) {
+            return -1;
+        }
+
+        @Override
+        public int writeUnquotedUTF8(OutputStream out) throws IOException {
+            int length = end - offset;
+            out.write(bytes, offset, length);
+            offset = end;
+            return length;
+        }
+
+        @Override
+        public int putUnquotedUTF8(ByteBuffer buffer) {
+            int length = end - offset;
+            if (length > buffer.remaining()) {
+                return -1;
+            }
+            buffer.put(bytes, offset, length);
+            offset = end;
+            return length;
+        }
+
+        //Nunca se escribe como cadena entre comillas
+
+        @Override
+        public int charLength() {
+            throw new UnsupportedOperationException();
+        }
+
+        @Override
+        public char[] asQuotedChars() {
+            throw new UnsupportedOperationException();
+        }
+
+        @Override
+        public byte[] asQuotedUTF8() {
+            throw new UnsupportedOperationException();
+        }
+
+        @Override
+        public int appendQuotedUTF8(byte[] buffer, int bufferOffset) {
+            throw new UnsupportedOperationException();
+        }
+
+        @Override
+        public int appendQuoted(char[] buffer, int bufferOffset) {
+            throw new UnsupportedOperationException();
+        }
+
+        @Override
+        public int writeQuotedUTF8(OutputStream out) {
+            throw new UnsupportedOperationException();
+        }
+
+        @Override
+        public int putQuotedUTF8(ByteBuffer buffer) {
+            throw new UnsupportedOperationException();
+        }
+    }
+}
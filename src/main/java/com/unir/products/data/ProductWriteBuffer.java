@@ -0,0 +1,330 @@
+package com.unir.products.data;
+
+import lombok.extern.slf4j.Slf4j;
+import org.elasticsearch.action.DocWriteRequest;
+import org.elasticsearch.action.bulk.BulkItemResponse;
+import org.elasticsearch.action.bulk.BulkRequest;
+import org.elasticsearch.action.bulk.BulkResponse;
+import org.elasticsearch.action.support.WriteRequest;
+import org.elasticsearch.client.RestHighLevelClient;
+import org.elasticsearch.common.unit.TimeValue;
+import org.elasticsearch.rest.RestStatus;
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.dao.TransientDataAccessResourceException;
+import org.springframework.stereotype.Component;
+
+import javax.annotation.PreDestroy;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.Executors;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Escritura diferida (write-behind) de altas y borrados de productos, con elasticsearch.write-behind.enabled.
+ * <p>
+ * Las escrituras se acumulan en memoria y se envian juntas en una peticion bulk cada flush-interval, o antes si
+ * llegan a max-actions. Si un mismo documento se escribe varias veces antes del envio solo se envia la ultima
+ * escritura (gana la ultima). Los bulk se envian sin refresh (RefreshPolicy.NONE): los cambios se ven en las
+ * busquedas con el refresh periodico del indice, sin forzar segmentos nuevos en cada escritura.
+ * <p>
+ * Las escrituras que necesitan leerse justo despues piden esperar al refresh: su bulk sale en ese momento, con
+ * RefreshPolicy.WAIT_UNTIL, junto con lo que hubiera pendiente. Los envios se hacen de uno en uno y en orden, asi
+ * que una escritura nunca llega al cluster detras de otra anterior del mismo documento.
+ * <p>
+ * Lo que el cluster no puede atender (caido, saturado, o el indice bloqueado al final de una reindexacion) se vuelve
+ * a encolar y sale en el siguiente envio. Para que eso no acabe con la memoria, el buffer admite como mucho
+ * max-pending documentos distintos: pasado ese limite las escrituras nuevas se rechazan con
+ * {@link TransientDataAccessResourceException} (503) hasta que el cluster vuelva a aceptarlas. Lo reencolado
+ * no cuenta contra el limite, porque ya se habia aceptado.
+ * <p>
+ * Al parar la aplicacion se dejan de aceptar escrituras y se vacia el buffer antes de cerrar el cliente; lo que no
+ * se consiga enviar en drain-timeout se da por fallido. Lo que este pendiente en una caida de la instancia se
+ * pierde: es el precio de responder antes de escribir.
+ */
+@Component
+@Slf4j
+public class ProductWriteBuffer {
+
+    private static class PendingWrite {
+        final DocWriteRequest<?> request;
+        final CompletableFuture<Void> written;
+
+        PendingWrite(DocWriteRequest<?> request, CompletableFuture<Void> written) {
+            this.request = request;
+            this.written = written;
+        }
+    }
+
+    private final RestHighLevelClient elasticsearchClient;
+    private final ElasticsearchResilience resilience;
+    private final ElasticsearchMetrics metrics;
+    private final ProductsQueryCache queryCache;
+    private final ProductsByIdCache productCache;
+    private final boolean enabled;
+    private final int maxActions;
+    private final int maxPending;
+    private final long drainTimeoutMillis;
+    // Escrituras pendientes por indice y id, en orden de llegada
+    private final Map<String, PendingWrite> pending = new LinkedHashMap<>();
+    // Escrituras del envio en curso, por indice e id
+    private final Map<String, PendingWrite> sending = new HashMap<>();
+    private boolean waitForRefresh;
+    // Hay un envio encargado que aun no ha empezado: no hace falta encargar otro
+    private boolean flushScheduled;
+    private boolean draining;
+    private final ScheduledExecutorService flusher = Executors.newSingleThreadScheduledExecutor(runnable -> {
+        Thread thread = new Thread(runnable, "elasticsearch-write-behind");
+        thread.setDaemon(true);
+        return thread;
+    });
+
+    public ProductWriteBuffer(RestHighLevelClient elasticsearchClient,
+                              ElasticsearchResilience resilience,
+                              ElasticsearchMetrics metrics,
+                              ProductsQueryCache queryCache,
+                              ProductsByIdCache productCache,
+                              @Value("${elasticsearch.write-behind.enabled:false}") boolean enabled,
+                              @Value("${elasticsearch.write-behind.flush-interval:1s}") String flushInterval,
+                              @Value("${elasticsearch.write-behind.max-actions:1000}") int maxActions,
+                              @Value("${elasticsearch.write-behind.max-pending:10000}") int maxPending,
+                              @Value("${elasticsearch.write-behind.drain-timeout:30s}") String drainTimeout) {
+        this.elasticsearchClient = elasticsearchClient;
+        this.resilience = resilience;
+        this.metrics = metrics;
+        this.queryCache = queryCache;
+        this.productCache = productCache;
+        this.enabled = enabled;
+        this.maxActions = maxActions;
+        this.maxPending = maxPending;
+        this.drainTimeoutMillis = TimeValue.parseTimeValue(drainTimeout, "elasticsearch.write-behind.drain-timeout").millis();
+        if (enabled) {
+            long intervalMillis = TimeValue.parseTimeValue(flushInterval, "elasticsearch.write-behind.flush-interval").millis();
+            flusher.scheduleWithFixedDelay(this::flush, intervalMillis, intervalMillis, TimeUnit.MILLISECONDS);
+        }
+    }
+
+    public boolean isEnabled() {
+        return enabled;
+    }
+
+    /**
+     * Encola una escritura. Si ya habia otra pendiente sobre el mismo documento la sustituye, y la anterior se da
+     * por escrita.
+     *
+     * @param request        - alta o borrado, con indice e id
+     * @param waitForRefresh - enviar ya y esperar a que la escritura sea visible en las busquedas
+     * @return se completa cuando la escritura (o una posterior del mismo documento) esta en el cluster
+     * @throws TransientDataAccessResourceException si el buffer esta lleno o la aplicacion se esta parando
+     */
+    public CompletableFuture<Void> write(DocWriteRequest<?> request, boolean waitForRefresh) {
+        return write(List.of(request), waitForRefresh);
+    }
+
+    /**
+     * Encola varias escrituras que van juntas (p.ej. un borrado y su marca de borrado): se aceptan todas o ninguna.
+     *
+     * @param requests       - altas o borrados, con indice e id
+     * @param waitForRefresh - enviar ya y esperar a que las escrituras sean visibles en las busquedas
+     * @return se completa cuando todas las escrituras estan en el cluster
+     * @throws TransientDataAccessResourceException si el buffer esta lleno o la aplicacion se esta parando
+     */
+    public CompletableFuture<Void> write(List<DocWriteRequest<?>> requests, boolean waitForRefresh) {
+        List<CompletableFuture<Void>> written = new ArrayList<>(requests.size());
+        boolean flushNow;
+        synchronized (this) {
+            if (draining) {
+                throw new TransientDataAccessResourceException("Escritura diferida cerrada: la aplicacion se esta parando");
+            }
+            long added = requests.stream().map(ProductWriteBuffer::key).filter(key -> !pending.containsKey(key)).count();
+            if (added > 0 && pending.size() + added > maxPending) {
+                throw new TransientDataAccessResourceException("Escritura diferida llena: " + pending.size() + " documentos pendientes de enviar");
+            }
+            for (DocWriteRequest<?> request : requests) {
+                CompletableFuture<Void> future = new CompletableFuture<>();
+                PendingWrite previous = pending.put(key(request), new PendingWrite(request, future));
+                if (previous != null) {
+                    previous.written.complete(null);
+                }
+                written.add(future);
+            }
+            this.waitForRefresh |= waitForRefresh;
+            flushNow = !flushScheduled && (waitForRefresh || pending.size() >= maxActions);
+            flushScheduled |= flushNow;
+        }
+        if (flushNow) {
+            scheduleFlush();
+        }
+        return written.size() == 1 ? written.get(0) : CompletableFuture.allOf(written.toArray(CompletableFuture[]::new));
+    }
+
+    /**
+     * Espera a que no quede ninguna escritura pendiente ni en curso del documento. Las actualizaciones directas
+     * (PATCH, PUT, stock) pasan por aqui antes de ir al cluster: si no, sobre un alta aun encolada darian 404, o
+     * se aplicarian y el alta las pisaria al enviarse. Si hay una pendiente se envia ya, sin esperar a
+     * flush-interval.
+     *
+     * @param index - indice de la escritura
+     * @param id    - id del documento
+     * @return se completa, siempre sin error, cuando el documento no tiene escrituras por enviar: si alguna falla
+     * lo que cuenta es lo que haya en el cluster
+     */
+    public CompletableFuture<Void> awaitPending(String index, String id) {
+        String key = index + "/" + id;
+        PendingWrite write;
+        boolean flushNow = false;
+        synchronized (this) {
+            write = pending.get(key);
+            if (write != null) {
+                flushNow = !flushScheduled && !draining;
+                flushScheduled |= flushNow;
+            } else {
+                write = sending.get(key);
+            }
+        }
+        //Las del envio en curso ya respondidas siguen en sending hasta que termina el envio
+        if (write == null || write.written.isDone()) {
+            return CompletableFuture.completedFuture(null);
+        }
+        if (flushNow) {
+            scheduleFlush();
+        }
+        //Puede haberse sustituido por otra posterior o haberse vuelto a encolar
+        return write.written.handle((written, error) -> null).thenCompose(ignored -> awaitPending(index, id));
+    }
+
+    private void scheduleFlush() {
+        try {
+            flusher.execute(this::flush);
+        } catch (RejectedExecutionException e) {
+            //Se esta parando justo ahora: drain() envia lo pendiente
+            log.debug("Envio de escritura diferida no encargado, el buffer se esta vaciando");
+        }
+    }
+
+    /**
+     * Envia lo pendiente en un bulk. Solo se ejecuta en el hilo del buffer, de modo que los envios no se solapan.
+     */
+    private void flush() {
+        List<PendingWrite> writes;
+        boolean refresh;
+        synchronized (this) {
+            flushScheduled = false;
+            if (pending.isEmpty()) {
+                return;
+            }
+            writes = new ArrayList<>(pending.values());
+            refresh = waitForRefresh;
+            sending.putAll(pending);
+            pending.clear();
+            waitForRefresh = false;
+        }
+        try {
+            send(writes, refresh);
+        } finally {
+            synchronized (this) {
+                sending.clear();
+            }
+        }
+    }
+
+    private void send(List<PendingWrite> writes, boolean refresh) {
+        BulkRequest request = new BulkRequest()
+                .setRefreshPolicy(refresh ? WriteRequest.RefreshPolicy.WAIT_UNTIL : WriteRequest.RefreshPolicy.NONE);
+        writes.forEach(write -> request.add(write.request));
+        BulkResponse response;
+        try {
+            response = resilience.execute("write_behind", (options, listener) ->
+                    elasticsearchClient.bulkAsync(request, options, metrics.timed("write_behind", false, listener)));
+        } catch (Exception e) {
+            if (ElasticsearchResilience.isUnavailable(e) || ProductIndexManager.isWriteBlocked(e)) {
+                log.warn("No se ha podido enviar la escritura diferida de {} documentos, se reintenta: {}", writes.size(), e.toString());
+                writes.forEach(write -> requeue(write, refresh));
+            } else {
+                log.error("Escritura diferida de {} documentos fallida", writes.size(), e);
+                writes.forEach(write -> fail(write, e));
+            }
+            return;
+        }
+
+        BulkItemResponse[] items = response.getItems();
+        for (int i = 0; i < items.length; i++) {
+            PendingWrite write = writes.get(i);
+            BulkItemResponse item = items[i];
+            if (!item.isFailed()) {
+                write.written.complete(null);
+            } else if (item.status() == RestStatus.TOO_MANY_REQUESTS || item.status().getStatus() >= 500
+                    || ProductIndexManager.isWriteBlocked(item.status(), item.getFailureMessage())) {
+                requeue(write, refresh);
+            } else {
+                log.error("Escritura diferida de {} fallida: {}", item.getId(), item.getFailureMessage());
+                fail(write, item.getFailure().getCause());
+            }
+        }
+        queryCache.invalidateAll();
+    }
+
+    /**
+     * Vuelve a encolar una escritura fallida, salvo que ya haya otra posterior del mismo documento.
+     */
+    private synchronized void requeue(PendingWrite write, boolean refresh) {
+        PendingWrite newer = pending.putIfAbsent(key(write.request), write);
+        if (newer != null) {
+            write.written.complete(null);
+        } else {
+            waitForRefresh |= refresh;
+        }
+    }
+
+    private void fail(PendingWrite write, Exception e) {
+        productCache.evict(write.request.id());
+        write.written.completeExceptionally(e);
+    }
+
+    private static String key(DocWriteRequest<?> request) {
+        return request.index() + "/" + request.id();
+    }
+
+    /**
+     * Deja de aceptar escrituras y vacia el buffer antes de que se cierre el cliente, reintentando mientras el
+     * cluster no responda y quede tiempo. Todo el proceso, incluida la espera al envio en curso, cabe en
+     * drain-timeout; lo que quede pendiente entonces se da por fallido.
+     */
+    @PreDestroy
+    public void drain() throws InterruptedException {
+        long deadline = System.currentTimeMillis() + drainTimeoutMillis;
+        synchronized (this) {
+            draining = true;
+        }
+        flusher.shutdown();
+        //Si el envio en curso no termina a tiempo no se puede enviar nada mas: se solaparia con el
+        boolean idle = flusher.awaitTermination(drainTimeoutMillis, TimeUnit.MILLISECONDS);
+        while (idle && hasPending() && System.currentTimeMillis() < deadline) {
+            flush();
+            if (hasPending()) {
+                Thread.sleep(Math.min(500, Math.max(0, deadline - System.currentTimeMillis())));
+            }
+        }
+
+        List<PendingWrite> lost;
+        synchronized (this) {
+            lost = new ArrayList<>(pending.values());
+            pending.clear();
+        }
+        if (!lost.isEmpty()) {
+            log.error("Se pierden {} escrituras diferidas que no se han podido enviar", lost.size());
+            TransientDataAccessResourceException e =
+                    new TransientDataAccessResourceException("Escritura diferida no enviada antes de parar la aplicacion");
+            lost.forEach(write -> fail(write, e));
+        }
+    }
+
+    private synchronized boolean hasPending() {
+        return !pending.isEmpty();
+    }
+}
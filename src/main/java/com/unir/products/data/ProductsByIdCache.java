@@ -0,0 +1,106 @@
+package com.unir.products.data;
+
+import com.github.benmanes.caffeine.cache.Cache;
+import com.github.benmanes.caffeine.cache.Caffeine;
+import com.unir.products.model.pojo.Product;
+import io.micrometer.core.instrument.MeterRegistry;
+import io.micrometer.core.instrument.binder.cache.CaffeineCacheMetrics;
+import lombok.AllArgsConstructor;
+import lombok.Getter;
+import org.elasticsearch.common.unit.TimeValue;
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.data.elasticsearch.core.query.SeqNoPrimaryTerm;
+import org.springframework.stereotype.Component;
+
+import java.time.Duration;
+
+/**
+ * Near-cache de productos por id, local a cada instancia.
+ * <p>
+ * Se actualiza con cada escritura que pasa por esta instancia y se invalida al borrar. Como otras instancias
+ * pueden modificar el producto, opcionalmente se revalidan las entradas con cierta antigüedad comparando su
+ * _seq_no/_primary_term con los del documento, mediante un GET sin _source que es mucho mas barato que
+ * traer el documento completo.
+ * <p>
+ * Las metricas se publican como metricas de cache de Micrometer bajo el nombre {@code products.byId}.
+ */
+@Component
+public class ProductsByIdCache {
+
+    private final Cache<String, CachedProduct> cache;
+    private final boolean revalidate;
+    private final long revalidateAfterNanos;
+
+    public ProductsByIdCache(@Value("${elasticsearch.cache.product.max-size:50000}") long maxSize,
+                             @Value("${elasticsearch.cache.product.ttl:5m}") String ttl,
+                             @Value("${elasticsearch.cache.product.revalidate:false}") boolean revalidate,
+                             @Value("${elasticsearch.cache.product.revalidate-after:10s}") String revalidateAfter,
+                             MeterRegistry meterRegistry) {
+        this.cache = Caffeine.newBuilder()
+                .maximumSize(maxSize)
+                .expireAfterWrite(Duration.ofMillis(TimeValue.parseTimeValue(ttl, "elasticsearch.cache.product.ttl").millis()))
+                .recordStats()
+                .build();
+        this.revalidate = revalidate;
+        this.revalidateAfterNanos = TimeValue.parseTimeValue(revalidateAfter, "elasticsearch.cache.product.revalidate-after").nanos();
+        CaffeineCacheMetrics.monitor(meterRegistry, cache, "products.byId");
+    }
+
+    public CachedProduct get(String id) {
+        return cache.getIfPresent(id);
+    }
+
+    /**
+     * Guarda una copia del producto. Si no se conoce su version (_seq_no/_primary_term) la primera
+     * revalidacion lo tratara como desactualizado.
+     */
+    public void put(Product product) {
+        if (product.getId() != null) {
+            cache.put(product.getId(), new CachedProduct(product.toBuilder().build(), System.nanoTime()));
+        }
+    }
+
+    public void evict(String id) {
+        if (id != null) {
+            cache.invalidate(id);
+        }
+    }
+
+    public void invalidateAll() {
+        cache.invalidateAll();
+    }
+
+    /**
+     * @return true si la entrada debe revalidarse contra Elasticsearch antes de servirla
+     */
+    public boolean needsRevalidation(CachedProduct entry) {
+        return revalidate && System.nanoTime() - entry.getValidatedAt() > revalidateAfterNanos;
+    }
+
+    /**
+     * Marca la entrada como valida tras comprobar que su version sigue siendo la actual.
+     */
+    public void revalidated(CachedProduct entry) {
+        cache.put(entry.getProduct().getId(), new CachedProduct(entry.getProduct(), System.nanoTime()));
+    }
+
+    @Getter
+    @AllArgsConstructor
+    public static class CachedProduct {
+
+        private final Product product;
+        private final long validatedAt;
+
+        /**
+         * @return una copia del producto, para que quien la reciba pueda modificarla sin alterar la cache
+         */
+        public Product copy() {
+            return product.toBuilder().build();
+        }
+
+        public boolean isVersion(long seqNo, long primaryTerm) {
+            SeqNoPrimaryTerm version = product.getSeqNoPrimaryTerm();
+            return version != null && version.getSequenceNumber() == seqNo && version.getPrimaryTerm() == primaryTerm;
+        }
+    }
+}
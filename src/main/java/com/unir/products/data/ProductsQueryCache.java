@@ -0,0 +1,173 @@
+package com.unir.products.data;
+
+import com.github.benmanes.caffeine.cache.Cache;
+import com.github.benmanes.caffeine.cache.Caffeine;
+import com.unir.products.model.request.ProductSearchCriteria;
+import com.unir.products.model.response.ProductsQueryResponse;
+import io.micrometer.core.instrument.MeterRegistry;
+import io.micrometer.core.instrument.binder.cache.CaffeineCacheMetrics;
+import org.apache.commons.lang.StringUtils;
+import org.elasticsearch.common.unit.TimeValue;
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.stereotype.Component;
+
+import java.time.Duration;
+import java.util.Locale;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.function.Function;
+
+/**
+ * Cache en memoria de las respuestas de GET /products.
+ * <p>
+ * Las entradas caducan por tiempo y por tamaño, y se invalidan todas en cuanto se escribe un producto: cualquier
+ * escritura puede cambiar el resultado de cualquier busqueda. Como Elasticsearch no hace visibles las escrituras
+ * hasta el siguiente refresh, durante un breve margen tras cada escritura no se guardan respuestas nuevas para no
+ * volver a cachear datos anteriores a la escritura.
+ * <p>
+ * Ademas agrupa las busquedas identicas concurrentes: mientras una esta en curso, las demas esperan su resultado
+ * en lugar de lanzar otra busqueda contra el cluster.
+ * <p>
+ * Aparte se guarda la ultima respuesta correcta de cada busqueda durante mas tiempo y sin invalidarla con las
+ * escrituras. No se usa en condiciones normales: es la respuesta de reserva cuando el cluster no contesta.
+ * <p>
+ * Las metricas de aciertos, fallos y desalojos se publican como metricas de cache de Micrometer bajo los nombres
+ * {@code products.search} y {@code products.search.stale}.
+ */
+@Component
+public class ProductsQueryCache {
+
+    private final Cache<ProductSearchCriteria, ProductsQueryResponse> cache;
+    private final Cache<ProductSearchCriteria, ProductsQueryResponse> staleCache;
+    private final long writeGraceNanos;
+    private final ConcurrentMap<ProductSearchCriteria, CompletableFuture<ProductsQueryResponse>> inFlight = new ConcurrentHashMap<>();
+    private volatile long lastWriteNanos = System.nanoTime();
+
+    public ProductsQueryCache(@Value("${elasticsearch.cache.search.max-size:10000}") long maxSize,
+                              @Value("${elasticsearch.cache.search.ttl:30s}") String ttl,
+                              @Value("${elasticsearch.cache.search.write-grace:1s}") String writeGrace,
+                              @Value("${elasticsearch.cache.search.stale-ttl:10m}") String staleTtl,
+                              MeterRegistry meterRegistry) {
+        this.cache = Caffeine.newBuilder()
+                .maximumSize(maxSize)
+                .expireAfterWrite(Duration.ofMillis(TimeValue.parseTimeValue(ttl, "elasticsearch.cache.search.ttl").millis()))
+                .recordStats()
+                .build();
+        this.writeGraceNanos = TimeValue.parseTimeValue(writeGrace, "elasticsearch.cache.search.write-grace").nanos();
+        this.staleCache = Caffeine.newBuilder()
+                .maximumSize(maxSize)
+                .expireAfterWrite(Duration.ofMillis(TimeValue.parseTimeValue(staleTtl, "elasticsearch.cache.search.stale-ttl").millis()))
+                .recordStats()
+                .build();
+        CaffeineCacheMetrics.monitor(meterRegistry, cache, "products.search");
+        CaffeineCacheMetrics.monitor(meterRegistry, staleCache, "products.search.stale");
+    }
+
+    /**
+     * Devuelve la respuesta cacheada para los criterios o la calcula con el loader. Si ya hay una busqueda
+     * identica en curso no se lanza otra: todas las peticiones comparten su resultado. Las busquedas que continuan
+     * una paginacion (con cursor) ni se cachean ni se comparten: dependen de un point in time propio del cliente.
+     * Tampoco las perfiladas, que tienen que ejecutarse de verdad para medir algo.
+     *
+     * @param criteria - criterios de la busqueda
+     * @param loader   - busqueda asincrona contra Elasticsearch, recibe los criterios normalizados
+     * @return la respuesta, cuando este disponible
+     */
+    public CompletableFuture<ProductsQueryResponse> get(ProductSearchCriteria criteria,
+                                                        Function<ProductSearchCriteria, CompletableFuture<ProductsQueryResponse>> loader) {
+        ProductSearchCriteria key = normalize(criteria);
+        if (key.getCursor() != null || key.getProfile()) {
+            return load(key, loader);
+        }
+
+        ProductsQueryResponse cached = cache.getIfPresent(key);
+        if (cached != null) {
+            return CompletableFuture.completedFuture(cached);
+        }
+
+        CompletableFuture<ProductsQueryResponse> running = inFlight.get(key);
+        if (running != null) {
+            return running;
+        }
+        CompletableFuture<ProductsQueryResponse> search = new CompletableFuture<>();
+        running = inFlight.putIfAbsent(key, search);
+        if (running != null) {
+            return running;
+        }
+
+        long start = System.nanoTime();
+        load(key, loader).whenComplete((response, error) -> {
+            if (error == null && start - lastWriteNanos > writeGraceNanos) {
+                cache.put(key, response);
+            }
+            if (error == null) {
+                staleCache.put(key, response);
+            }
+            inFlight.remove(key, search);
+            if (error != null) {
+                search.completeExceptionally(error);
+            } else {
+                search.complete(response);
+            }
+        });
+        return search;
+    }
+
+    /**
+     * Ultima respuesta correcta para los criterios, aunque haya caducado en la cache normal o haya habido escrituras
+     * despues. Solo para responder cuando el cluster no esta disponible.
+     *
+     * @param criteria - criterios de la busqueda
+     * @return la respuesta, o null si no hay ninguna o la busqueda continua una paginacion
+     */
+    public ProductsQueryResponse getStale(ProductSearchCriteria criteria) {
+        ProductSearchCriteria key = normalize(criteria);
+        return key.getCursor() != null ? null : staleCache.getIfPresent(key);
+    }
+
+    /**
+     * Invalida todas las respuestas cacheadas. Se llama en cada escritura de productos salvo los ajustes de stock,
+     * que no cambian que productos encuentra una busqueda.
+     */
+    public void invalidateAll() {
+        lastWriteNanos = System.nanoTime();
+        cache.invalidateAll();
+        //Las busquedas en curso pueden ser anteriores a la escritura: las peticiones nuevas no se unen a ellas
+        inFlight.clear();
+    }
+
+    private static CompletableFuture<ProductsQueryResponse> load(ProductSearchCriteria key,
+                                                                 Function<ProductSearchCriteria, CompletableFuture<ProductsQueryResponse>> loader) {
+        try {
+            return loader.apply(key);
+        } catch (RuntimeException e) {
+            return CompletableFuture.failedFuture(e);
+        }
+    }
+
+    /**
+     * Normalizamos los criterios para que peticiones equivalentes compartan entrada: textos sin espacios
+     * sobrantes y parametros vacios como ausentes.
+     */
+    private ProductSearchCriteria normalize(ProductSearchCriteria criteria) {
+        return ProductSearchCriteria.builder()
+                .nombre(StringUtils.trimToNull(criteria.getNombre()))
+                .categoria(StringUtils.trimToNull(criteria.getCategoria()))
+                .descripcionCorta(StringUtils.trimToNull(criteria.getDescripcionCorta()))
+                .descripcionLarga(StringUtils.trimToNull(criteria.getDescripcionLarga()))
+                .valorunitario(criteria.getValorunitario())
+                .indValorUnitario(criteria.getValorunitario() == null ? null : criteria.getIndValorUnitario())
+                .precioMin(criteria.getPrecioMin())
+                .precioMax(criteria.getPrecioMax())
+                .empresaAsociada(StringUtils.trimToNull(criteria.getEmpresaAsociada()))
+                .puntuacion(criteria.getPuntuacion())
+                .aggregate(Boolean.TRUE.equals(criteria.getAggregate()))
+                .size(criteria.getSize())
+                .cursor(StringUtils.trimToNull(criteria.getCursor()))
+                .fields(criteria.getFields() == null ? null : StringUtils.trimToNull(criteria.getFields().toLowerCase(Locale.ROOT)))
+                .profile(Boolean.TRUE.equals(criteria.getProfile()))
+                .lean(Boolean.TRUE.equals(criteria.getLean()))
+                .build();
+    }
+}
@@ -0,0 +1,57 @@
+package com.unir.products.data;
+
+import com.github.benmanes.caffeine.cache.AsyncCache;
+import com.github.benmanes.caffeine.cache.Caffeine;
+import com.unir.products.model.response.ProductSuggestion;
+import io.micrometer.core.instrument.MeterRegistry;
+import io.micrometer.core.instrument.binder.cache.CaffeineCacheMetrics;
+import org.elasticsearch.common.unit.TimeValue;
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.stereotype.Component;
+
+import java.time.Duration;
+import java.util.List;
+import java.util.concurrent.CompletableFuture;
+import java.util.function.Supplier;
+
+/**
+ * Cache de sugerencias para los prefijos cortos. Son los que mas se repiten al teclear (todos los usuarios pasan
+ * por "a", "ab"...) y los mas caros de resolver, porque son los que mas documentos casan.
+ * <p>
+ * Se guarda la busqueda en curso y no solo su resultado: las peticiones que llegan mientras se resuelve un prefijo
+ * esperan a esa misma busqueda. No se invalida con las escrituras; las entradas caducan a los pocos segundos,
+ * que es un retraso aceptable para el autocompletado. Las metricas se publican bajo el nombre {@code products.suggest}.
+ */
+@Component
+public class ProductsSuggestCache {
+
+    private final AsyncCache<String, List<ProductSuggestion>> cache;
+    private final int maxPrefixLength;
+
+    public ProductsSuggestCache(@Value("${elasticsearch.suggest.cache.max-size:10000}") long maxSize,
+                                @Value("${elasticsearch.suggest.cache.ttl:30s}") String ttl,
+                                @Value("${elasticsearch.suggest.cache.max-prefix-length:3}") int maxPrefixLength,
+                                MeterRegistry meterRegistry) {
+        this.cache = Caffeine.newBuilder()
+                .maximumSize(maxSize)
+                .expireAfterWrite(Duration.ofMillis(TimeValue.parseTimeValue(ttl, "elasticsearch.suggest.cache.ttl").millis()))
+                .recordStats()
+                .buildAsync();
+        this.maxPrefixLength = maxPrefixLength;
+        CaffeineCacheMetrics.monitor(meterRegistry, cache, "products.suggest");
+    }
+
+    /**
+     * @param prefix - texto tecleado, ya normalizado
+     * @param size   - numero de sugerencias
+     * @param loader - busqueda contra Elasticsearch
+     * @return las sugerencias, cuando esten disponibles
+     */
+    public CompletableFuture<List<ProductSuggestion>> get(String prefix, int size, Supplier<CompletableFuture<List<ProductSuggestion>>> loader) {
+        if (prefix.length() > maxPrefixLength) {
+            return loader.get();
+        }
+        //Si la busqueda falla Caffeine descarta la entrada
+        return cache.get(size + ":" + prefix, (key, executor) -> loader.get());
+    }
+}
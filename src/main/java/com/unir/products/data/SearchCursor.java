@@ -0,0 +1,58 @@
+package com.unir.products.data;
+
+import com.fasterxml.jackson.databind.ObjectMapper;
+import lombok.AllArgsConstructor;
+import lombok.Getter;
+import lombok.NoArgsConstructor;
+import lombok.Setter;
+
+import java.io.IOException;
+import java.io.UncheckedIOException;
+import java.util.Base64;
+
+/**
+ * Cursor opaco que se entrega al cliente para pedir la siguiente pagina de resultados.
+ * Contiene los valores de ordenacion del ultimo hit devuelto (search_after) y, a partir de la
+ * segunda pagina, el identificador del point in time sobre el que se esta paginando.
+ * El cursor de la primera pagina no lleva point in time (tampoco el de las servidas desde cache), asi que el paso
+ * de la primera a la segunda pagina no es consistente frente a escrituras intermedias; el resto si.
+ */
+@Getter
+@Setter
+@AllArgsConstructor
+@NoArgsConstructor
+class SearchCursor {
+
+    private static final ObjectMapper MAPPER = new ObjectMapper();
+
+    private String pit;
+    private Object[] after;
+
+    String encode() {
+        try {
+            return Base64.getUrlEncoder().withoutPadding().encodeToString(MAPPER.writeValueAsBytes(this));
+        } catch (IOException e) {
+            throw new UncheckedIOException(e);
+        }
+    }
+
+    /**
+     * Decodifica un cursor recibido del cliente.
+     *
+     * @param cursor - cursor en base64 devuelto en una respuesta anterior
+     * @return el cursor decodificado
+     * @throws IllegalArgumentException si el cursor no es valido
+     */
+    static SearchCursor decode(String cursor) {
+        SearchCursor decoded;
+        try {
+            decoded = MAPPER.readValue(Base64.getUrlDecoder().decode(cursor), SearchCursor.class);
+        } catch (IOException | IllegalArgumentException e) {
+            throw new IllegalArgumentException("Cursor no valido", e);
+        }
+        if (decoded.getAfter() == null || decoded.getAfter().length == 0) {
+            throw new IllegalArgumentException("Cursor no valido");
+        }
+        return decoded;
+    }
+}
@@ -1,6 +1,7 @@
 package com.unir.products.model.pojo;
 
 
+import com.fasterxml.jackson.annotation.JsonIgnore;
 import lombok.AllArgsConstructor;
 import lombok.Builder;
 import lombok.Getter;
@@ -10,14 +11,24 @@ import lombok.ToString;
 import org.springframework.data.elasticsearch.annotations.Field;
 import org.springframework.data.elasticsearch.annotations.FieldType;
 import org.springframework.data.elasticsearch.annotations.Document;
+import org.springframework.data.elasticsearch.annotations.Mapping;
+import org.springframework.data.elasticsearch.annotations.Setting;
+import org.springframework.data.elasticsearch.core.query.SeqNoPrimaryTerm;
 import org.springframework.data.annotation.Id;
 
-@Document(indexName = "products", createIndex = true)
+import java.util.LinkedHashMap;
+import java.util.Map;
+
+//"products" es el alias de lectura; el indice fisico y el alias de escritura los gestiona ProductIndexManager
+@Document(indexName = "products", createIndex = false)
+//Mappings y settings de cada indice fisico; replicas, shards y refresh se añaden desde elasticsearch.index.*
+@Setting(settingPath = "/elasticsearch/product-settings.json")
+@Mapping(mappingPath = "/elasticsearch/product-mapping.json")
 @Getter
 @Setter
 @AllArgsConstructor
 @NoArgsConstructor
-@Builder
+@Builder(toBuilder = true)
 @ToString
 public class Product {
 
@@ -33,7 +44,8 @@ public class Product {
 	@Field(type = FieldType.Keyword, name = "categoria")
 	private String categoria;
 
-	@Field(type = FieldType.Text, name = "empresaAsociada")
+	//Solo se filtra y agrega por valor exacto, nunca se busca por texto
+	@Field(type = FieldType.Keyword, name = "empresaAsociada")
 	private String empresaAsociada;
 
 	@Field(type = FieldType.Search_As_You_Type, name = "descripcionCorta")
@@ -42,22 +54,30 @@ public class Product {
 	@Field(type = FieldType.Search_As_You_Type, name = "descripcionLarga")
 	private String descripcionLarga;
 
-	@Field(type = FieldType.Text, name = "Producto")
+	//Campos que solo se muestran: se guardan en el _source pero no se indexan
+	@Field(type = FieldType.Text, name = "Producto", index = false)
 	private String Producto;
 
 	@Field(type = FieldType.Long, name = "precio")
 	private Long precio;
 
-	@Field(type = FieldType.Long, name = "cantidadDisponible")
+	@Field(type = FieldType.Long, name = "cantidadDisponible", index = false, docValues = false)
 	private Long cantidadDisponible;
 
 	@Field(type = FieldType.Long, name = "puntuacion")
 	private Long puntuacion;
 
-	@Field(type = FieldType.Text, name = "imagen")
+	@Field(type = FieldType.Keyword, name = "imagen", index = false, docValues = false)
 	private String imagen;
-	
 
+	//Marca de la ultima escritura (milisegundos desde epoch). La pone el cluster en cada escritura (pipeline de
+	//ingesta o ctx._now) y ordena el feed de cambios (GET /products/_changes)
+	@Field(type = FieldType.Long, name = "updatedAt")
+	private Long updatedAt;
+
+	//Version del documento en Elasticsearch. No se guarda en el _source ni se serializa: se expone como ETag.
+	@JsonIgnore
+	private SeqNoPrimaryTerm seqNoPrimaryTerm;
 
 	public void update(ProductDto productDto) {
 		this.descripcionCorta = productDto.getDescripcionCorta();
@@ -72,4 +92,23 @@ public class Product {
 		this.empresaAsociada=productDto.getEmpresaAsociada();
 	}
 
+	/**
+	 * Cambios que aplica {@link #update(ProductDto)}, como documento parcial para el API update de Elasticsearch.
+	 * Las claves son los nombres de las propiedades del producto.
+	 */
+	public static Map<String, Object> changesFrom(ProductDto productDto) {
+		Map<String, Object> changes = new LinkedHashMap<>();
+		changes.put("descripcionCorta", productDto.getDescripcionCorta());
+		changes.put("descripcionLarga", productDto.getDescripcionLarga());
+		changes.put("precio", productDto.getPrecio());
+		changes.put("cantidadDisponible", productDto.getCantidadDisponible());
+		changes.put("Producto", productDto.getProducto());
+		changes.put("nombre", productDto.getNombre());
+		changes.put("codigo", productDto.getCodigo());
+		changes.put("categoria", productDto.getCategoria());
+		changes.put("puntuacion", productDto.getPuntuacion());
+		changes.put("empresaAsociada", productDto.getEmpresaAsociada());
+		return changes;
+	}
+
 }
@@ -0,0 +1,13 @@
+package com.unir.products.model.pojo;
+
+import com.fasterxml.jackson.annotation.JsonInclude;
+import lombok.NoArgsConstructor;
+
+/**
+ * Producto leido con una proyeccion (parametro fields distinto de full). Solo trae los campos pedidos, asi que los
+ * vacios no se serializan; el producto completo devuelve siempre todas sus claves, aunque sean null.
+ */
+@NoArgsConstructor
+@JsonInclude(JsonInclude.Include.NON_NULL)
+public class ProjectedProduct extends Product {
+}
@@ -0,0 +1,21 @@
+package com.unir.products.model.request;
+
+import com.fasterxml.jackson.annotation.JsonProperty;
+import lombok.AllArgsConstructor;
+import lombok.Getter;
+import lombok.NoArgsConstructor;
+import lombok.Setter;
+
+import java.util.List;
+
+@Getter
+@Setter
+@AllArgsConstructor
+@NoArgsConstructor
+public class ProductMultiGetRequest {
+
+	private List<String> ids;
+	//Campos del producto a devolver. Si no se indica se devuelve el producto completo
+	@JsonProperty("_source")
+	private List<String> source;
+}
@@ -0,0 +1,46 @@
+package com.unir.products.model.request;
+
+import lombok.AllArgsConstructor;
+import lombok.Builder;
+import lombok.EqualsAndHashCode;
+import lombok.Getter;
+import lombok.NoArgsConstructor;
+import lombok.Setter;
+import lombok.ToString;
+
+/**
+ * Criterios de busqueda de productos. Agrupa los parametros que acepta GET /products para no arrastrar
+ * una lista creciente de argumentos por el controlador, el servicio y el repositorio.
+ */
+@Getter
+@Setter
+@AllArgsConstructor
+@NoArgsConstructor
+@Builder
+@ToString
+@EqualsAndHashCode
+public class ProductSearchCriteria {
+
+	private String nombre;
+	private String categoria;
+	private String descripcionCorta;
+	private String descripcionLarga;
+	private Double valorunitario;
+	private Integer indValorUnitario;
+	private Double precioMin;
+	private Double precioMax;
+	private String empresaAsociada;
+	private Long puntuacion;
+	@Builder.Default
+	private Boolean aggregate = Boolean.FALSE;
+	private Integer size;
+	private String cursor;
+	//Proyeccion (summary, card, full) o lista de campos a devolver de cada producto
+	private String fields;
+	//Devolver el desglose del Profile API de Elasticsearch. Solo si esta habilitado en la configuracion
+	@Builder.Default
+	private Boolean profile = Boolean.FALSE;
+	//Respuesta ligera: cada producto es su _source tal cual, sin pasar por el modelo
+	@Builder.Default
+	private Boolean lean = Boolean.FALSE;
+}
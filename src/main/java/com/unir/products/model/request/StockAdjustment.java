@@ -0,0 +1,18 @@
+package com.unir.products.model.request;
+
+import lombok.AllArgsConstructor;
+import lombok.Getter;
+import lombok.NoArgsConstructor;
+import lombok.Setter;
+
+@Getter
+@Setter
+@AllArgsConstructor
+@NoArgsConstructor
+public class StockAdjustment {
+
+	//Solo se usa en el ajuste por lotes; en el ajuste individual el producto va en la URL
+	private String productId;
+	//Unidades a sumar (positivo) o restar (negativo) a cantidadDisponible
+	private Long delta;
+}
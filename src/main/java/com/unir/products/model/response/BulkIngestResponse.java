@@ -0,0 +1,22 @@
+package com.unir.products.model.response;
+
+import lombok.AllArgsConstructor;
+import lombok.Getter;
+import lombok.NoArgsConstructor;
+import lombok.Setter;
+
+import java.util.List;
+
+@AllArgsConstructor
+@NoArgsConstructor
+@Getter
+@Setter
+public class BulkIngestResponse {
+
+    private Integer total;
+    private Integer failed;
+    private Long took;
+    private String error;
+    // Solo los productos que han fallado, con su posicion en la entrada: los correctos se cuentan en total
+    private List<BulkItemResult> items;
+}
@@ -0,0 +1,23 @@
+package com.unir.products.model.response;
+
+import com.fasterxml.jackson.annotation.JsonInclude;
+import com.unir.products.model.pojo.Product;
+import lombok.AllArgsConstructor;
+import lombok.Getter;
+import lombok.NoArgsConstructor;
+import lombok.Setter;
+
+@AllArgsConstructor
+@NoArgsConstructor
+@Getter
+@Setter
+public class ProductChange {
+
+    private String id;
+    // El producto se ha borrado: no lleva producto
+    private boolean deleted;
+    // Marca de la escritura (milisegundos desde epoch). Null en productos escritos antes de existir el feed de cambios
+    private Long updatedAt;
+    @JsonInclude(JsonInclude.Include.NON_NULL)
+    private Product product;
+}
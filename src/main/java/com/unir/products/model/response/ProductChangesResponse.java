@@ -0,0 +1,20 @@
+package com.unir.products.model.response;
+
+import lombok.AllArgsConstructor;
+import lombok.Getter;
+import lombok.NoArgsConstructor;
+import lombok.Setter;
+
+import java.util.List;
+
+@AllArgsConstructor
+@NoArgsConstructor
+@Getter
+@Setter
+public class ProductChangesResponse {
+
+    // Cambios en el orden en que se escribieron. Si un producto cambio varias veces solo aparece su ultimo estado
+    private List<ProductChange> changes;
+    // Token para pedir los cambios siguientes (since). Si no hay cambios nuevos es el mismo que se recibio
+    private String next;
+}
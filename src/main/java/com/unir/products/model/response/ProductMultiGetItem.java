@@ -0,0 +1,19 @@
+package com.unir.products.model.response;
+
+import com.unir.products.model.pojo.Product;
+import lombok.AllArgsConstructor;
+import lombok.Getter;
+import lombok.NoArgsConstructor;
+import lombok.Setter;
+
+@AllArgsConstructor
+@NoArgsConstructor
+@Getter
+@Setter
+public class ProductMultiGetItem {
+
+    private String id;
+    private boolean found;
+    private Product product;
+    private String error;
+}
@@ -0,0 +1,18 @@
+package com.unir.products.model.response;
+
+import lombok.AllArgsConstructor;
+import lombok.Getter;
+import lombok.NoArgsConstructor;
+import lombok.Setter;
+
+@AllArgsConstructor
+@NoArgsConstructor
+@Getter
+@Setter
+public class ProductMultiSearchItem {
+
+    // Estado HTTP de esta busqueda: 200, 400 si sus criterios no son validos, 503 si el cluster no ha respondido...
+    private int status;
+    private ProductsQueryResponse response;
+    private String error;
+}
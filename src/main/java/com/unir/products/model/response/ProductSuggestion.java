@@ -0,0 +1,18 @@
+package com.unir.products.model.response;
+
+import lombok.AllArgsConstructor;
+import lombok.Getter;
+import lombok.NoArgsConstructor;
+import lombok.Setter;
+
+@AllArgsConstructor
+@NoArgsConstructor
+@Getter
+@Setter
+public class ProductSuggestion {
+
+    private String id;
+    private String nombre;
+    // nombre con los prefijos que coinciden con lo tecleado entre <em></em>
+    private String highlight;
+}
@@ -1,5 +1,6 @@
 package com.unir.products.model.response;
 
+import com.fasterxml.jackson.annotation.JsonInclude;
 import com.unir.products.model.pojo.Product;
 import lombok.AllArgsConstructor;
 import lombok.Getter;
@@ -16,6 +17,13 @@ import java.util.Map;
 public class ProductsQueryResponse {
 
     private List<Product> products;
+    // Agregacion por categoria. Se mantiene por compatibilidad: es la misma que facets.categoria
     private List<AggregationDetails> aggs;
+    // Agregaciones por categoria, empresaAsociada, precio y puntuacion (solo con aggregate=true y sin cursor)
+    private Map<String, List<AggregationDetails>> facets;
+    private String cursor;
+    // Desglose por shard de la busqueda segun el Profile API de Elasticsearch (solo con profile=true)
+    @JsonInclude(JsonInclude.Include.NON_NULL)
+    private Map<String, Object> profile;
 
 }
\ No newline at end of file
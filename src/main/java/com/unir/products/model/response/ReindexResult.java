@@ -0,0 +1,26 @@
+package com.unir.products.model.response;
+
+import lombok.AllArgsConstructor;
+import lombok.Getter;
+import lombok.NoArgsConstructor;
+import lombok.Setter;
+
+@AllArgsConstructor
+@NoArgsConstructor
+@Getter
+@Setter
+public class ReindexResult {
+
+    private String previousIndex;
+    private String index;
+    // Documentos leidos y creados en la primera pasada
+    private Long total;
+    private Long created;
+    private Long versionConflicts;
+    // Documentos copiados en las pasadas de puesta al dia: los que cambiaron mientras se hacia la primera
+    private Long caughtUp;
+    // Documentos borrados del indice anterior mientras se copiaba, y quitados tambien del nuevo
+    private Long deleted;
+    private Boolean previousIndexDeleted;
+    private Long took;
+}
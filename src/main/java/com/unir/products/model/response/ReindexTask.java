@@ -0,0 +1,29 @@
+package com.unir.products.model.response;
+
+import lombok.AllArgsConstructor;
+import lombok.Getter;
+import lombok.NoArgsConstructor;
+import lombok.Setter;
+
+@AllArgsConstructor
+@NoArgsConstructor
+@Getter
+@Setter
+public class ReindexTask {
+
+    public enum Status {
+        RUNNING, COMPLETED, FAILED
+    }
+
+    private String id;
+    // Los cambia el hilo de la reindexacion y los leen las peticiones de estado
+    private volatile Status status;
+    private Boolean deletePrevious;
+    // Milisegundos desde epoch
+    private Long startedAt;
+    private volatile Long finishedAt;
+    // Resumen de la reindexacion, cuando termina bien
+    private volatile ReindexResult result;
+    // Motivo del fallo, cuando falla
+    private volatile String error;
+}
@@ -0,0 +1,18 @@
+package com.unir.products.model.response;
+
+import lombok.AllArgsConstructor;
+import lombok.Getter;
+import lombok.NoArgsConstructor;
+import lombok.Setter;
+
+@AllArgsConstructor
+@NoArgsConstructor
+@Getter
+@Setter
+public class StockAdjustmentResult {
+
+    private String productId;
+    private Long cantidadDisponible;
+    private Integer status;
+    private String error;
+}
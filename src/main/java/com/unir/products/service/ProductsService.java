@@ -3,22 +3,58 @@ package com.unir.products.service;
 import com.unir.products.model.pojo.Product;
 import com.unir.products.model.pojo.ProductDto;
 import com.unir.products.model.request.CreateProductRequest;
+import com.unir.products.model.request.ProductMultiGetRequest;
+import com.unir.products.model.request.ProductSearchCriteria;
+import com.unir.products.model.request.StockAdjustment;
+import com.unir.products.model.response.BulkIngestResponse;
+import com.unir.products.model.response.ProductChangesResponse;
+import com.unir.products.model.response.ProductMultiGetItem;
+import com.unir.products.model.response.ProductMultiSearchItem;
+import com.unir.products.model.response.ProductSuggestion;
 import com.unir.products.model.response.ProductsQueryResponse;
+import com.unir.products.model.response.ReindexTask;
+import com.unir.products.model.response.StockAdjustmentResult;
+import org.springframework.data.elasticsearch.core.query.SeqNoPrimaryTerm;
 
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.util.List;
 import java.util.Optional;
+import java.util.concurrent.CompletableFuture;
 
 public interface ProductsService {
 
-	ProductsQueryResponse getProducts(String nombre, String categoria, String descripcioncorta, String descripcionlarga, Double valorunitario, Integer indValorUnitario, Boolean aggregate);
+	CompletableFuture<ProductsQueryResponse> getProducts(ProductSearchCriteria criteria);
+
+	CompletableFuture<List<ProductMultiSearchItem>> searchProducts(List<ProductSearchCriteria> searches);
 	
-	Optional<Product> getProduct(String productId);
+	CompletableFuture<List<ProductSuggestion>> suggestProducts(String prefix, Integer size);
+
+	void exportProducts(ProductSearchCriteria criteria, OutputStream output) throws IOException;
+
+	ProductChangesResponse getProductChanges(String since, Integer size);
+
+	Optional<Product> getProduct(String productId, String fields);
+
+	List<ProductMultiGetItem> getProducts(ProductMultiGetRequest request);
 	
-	Boolean removeProduct(String productId);
+	Boolean removeProduct(String productId, boolean waitForRefresh);
 	
-	Product createProduct(CreateProductRequest request);
+	Product createProduct(CreateProductRequest request, boolean waitForRefresh);
+
+	BulkIngestResponse createProducts(InputStream products);
+
+	Product updateProduct(String productId, String updateRequest, SeqNoPrimaryTerm expectedVersion);
+
+	Product updateProduct(String productId, ProductDto updateRequest, SeqNoPrimaryTerm expectedVersion);
+
+	StockAdjustmentResult adjustStock(String productId, StockAdjustment adjustment);
+
+	List<StockAdjustmentResult> adjustStock(List<StockAdjustment> adjustments, boolean allOrNothing);
 
-	Product updateProduct(String productId, String updateRequest);
+	ReindexTask reindexProducts(boolean deletePrevious);
 
-	Product updateProduct(String productId, ProductDto updateRequest);
+	Optional<ReindexTask> getReindexTask(String taskId);
 
 }
@@ -1,24 +1,47 @@
 package com.unir.products.service;
 
 import com.fasterxml.jackson.core.JsonProcessingException;
+import com.fasterxml.jackson.core.type.TypeReference;
 import com.fasterxml.jackson.databind.JsonNode;
+import com.fasterxml.jackson.databind.MappingIterator;
 import com.fasterxml.jackson.databind.ObjectMapper;
-import com.github.fge.jsonpatch.JsonPatchException;
-import com.github.fge.jsonpatch.mergepatch.JsonMergePatch;
+import com.fasterxml.jackson.databind.SequenceWriter;
+import com.unir.products.data.BulkIngestion;
 import com.unir.products.data.DataAccessRepository;
 import com.unir.products.data.ProductRepository;
 import com.unir.products.model.pojo.ProductDto;
+import com.unir.products.model.request.ProductMultiGetRequest;
+import com.unir.products.model.request.ProductSearchCriteria;
+import com.unir.products.model.request.StockAdjustment;
+import com.unir.products.model.response.BulkIngestResponse;
+import com.unir.products.model.response.BulkItemResult;
+import com.unir.products.model.response.ProductChangesResponse;
+import com.unir.products.model.response.ProductMultiGetItem;
+import com.unir.products.model.response.ProductMultiSearchItem;
+import com.unir.products.model.response.ProductSuggestion;
 import com.unir.products.model.response.ProductsQueryResponse;
+import com.unir.products.model.response.ReindexTask;
+import com.unir.products.model.response.StockAdjustmentResult;
 import lombok.RequiredArgsConstructor;
 import lombok.extern.slf4j.Slf4j;
 import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.dao.TransientDataAccessResourceException;
+import org.springframework.data.elasticsearch.core.query.SeqNoPrimaryTerm;
 import org.springframework.stereotype.Service;
 import org.springframework.util.StringUtils;
 
 import com.unir.products.model.pojo.Product;
 import com.unir.products.model.request.CreateProductRequest;
 
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.io.UncheckedIOException;
+import java.util.List;
+import java.util.Map;
 import java.util.Optional;
+import java.util.concurrent.CompletableFuture;
 
 @Service
 @Slf4j
@@ -31,24 +54,82 @@ public class ProductsServiceImpl implements ProductsService {
 	@Autowired
 	private ObjectMapper objectMapper;
 
+	@Value("${elasticsearch.mget.max-ids:1000}")
+	private int maxMultiGetIds;
+
+	@Value("${elasticsearch.msearch.max-searches:50}")
+	private int maxMultiSearches;
+
+	@Override
+	public CompletableFuture<ProductsQueryResponse> getProducts(ProductSearchCriteria criteria){
+
+			return repositoryEslastick.findProducts(criteria);
+	}
+
+	@Override
+	public CompletableFuture<List<ProductMultiSearchItem>> searchProducts(List<ProductSearchCriteria> searches) {
+		if (searches == null || searches.isEmpty() || searches.size() > maxMultiSearches || searches.contains(null)) {
+			return null;
+		}
+		return repositoryEslastick.findProducts(searches);
+	}
+
+	@Override
+	public CompletableFuture<List<ProductSuggestion>> suggestProducts(String prefix, Integer size) {
+		if (!StringUtils.hasText(prefix)) {
+			return null;
+		}
+		return repositoryEslastick.suggest(prefix, size);
+	}
+
 	@Override
-	public ProductsQueryResponse getProducts(String nombre, String categoria, String descripcionCorta, String descripcionLarga, Double valorunitario, Integer indValorUnitario, Boolean aggregate){
+	public ProductChangesResponse getProductChanges(String since, Integer size) {
+		return repositoryEslastick.findChanges(StringUtils.hasText(since) ? since.trim() : null, size);
+	}
 
-			return repositoryEslastick.findProducts(nombre, categoria, descripcionCorta, descripcionLarga,valorunitario, indValorUnitario,aggregate );
+	@Override
+	public void exportProducts(ProductSearchCriteria criteria, OutputStream output) throws IOException {
+		//Un producto por linea (NDJSON). El SequenceWriter no cierra la salida, eso lo hace el contenedor
+		try (SequenceWriter writer = objectMapper.writer().withRootValueSeparator("\n").writeValues(output)) {
+			repositoryEslastick.exportProducts(criteria, product -> {
+				try {
+					writer.write(product);
+				} catch (IOException e) {
+					throw new UncheckedIOException(e);
+				}
+			});
+			writer.flush();
+			output.write('\n');
+		} catch (UncheckedIOException e) {
+			throw e.getCause();
+		}
 	}
 
 	@Override
-	public Optional<Product> getProduct(String productId) {
-		return repositoryEslastick.findById(productId);
+	public Optional<Product> getProduct(String productId, String fields) {
+		return repositoryEslastick.findById(productId, fields);
 	}
 
 	@Override
-	public Boolean removeProduct(String productId) {
+	public List<ProductMultiGetItem> getProducts(ProductMultiGetRequest request) {
+		if (request == null || request.getIds() == null || request.getIds().isEmpty() || request.getIds().size() > maxMultiGetIds
+				|| request.getIds().stream().anyMatch(id -> !StringUtils.hasText(id))
+				|| (request.getSource() != null && request.getSource().stream().anyMatch(field -> !StringUtils.hasText(field)))) {
+			return null;
+		}
+		return repositoryEslastick.findAllById(request.getIds(), request.getSource());
+	}
+
+	@Override
+	public Boolean removeProduct(String productId, boolean waitForRefresh) {
 
 		try {
-			Optional<Product> dto=repositoryEslastick.findById(productId);
+			Optional<Product> dto=repositoryEslastick.findById(productId, null);
 			Product product = dto.orElse(new Product());
-			return repositoryEslastick.delete(product);
+			return repositoryEslastick.delete(product, waitForRefresh);
+		} catch (TransientDataAccessResourceException e) {
+			//Escritura diferida llena o cerrando: el cliente tiene que reintentar, no es que no exista
+			throw e;
 		} catch (Exception e) {
 			e.printStackTrace();
 			return false;
@@ -56,7 +137,7 @@ public class ProductsServiceImpl implements ProductsService {
 	}
 
 	@Override
-	public Product createProduct(CreateProductRequest request) {
+	public Product createProduct(CreateProductRequest request, boolean waitForRefresh) {
 
 		if (request != null && StringUtils.hasLength(request.getCodigo().trim())
 				&& StringUtils.hasLength(request.getNombre().trim())
@@ -79,45 +160,103 @@ public class ProductsServiceImpl implements ProductsService {
 
 			log.info("Producto nuevo: {}", product );
 
-			return repositoryEslastick.save(product);
+			return repositoryEslastick.save(product, waitForRefresh);
 		} else {
 			return null;
 		}
 	}
 
 	@Override
-	public Product updateProduct(String productId, String updateRequest) {
+	public BulkIngestResponse createProducts(InputStream products) {
+		//Leemos la entrada en streaming (NDJSON o array JSON) para no cargar el catalogo completo en memoria
+		BulkIngestion ingestion = repositoryEslastick.openBulkIngestion();
+		String error = null;
+		try (MappingIterator<Product> items = objectMapper.readerFor(Product.class).readValues(products)) {
+			while (items.hasNextValue()) {
+				Product product = items.nextValue();
+				if (isValid(product)) {
+					ingestion.add(product);
+				} else {
+					ingestion.reject("Producto incompleto");
+				}
+			}
+		} catch (IOException | RuntimeException e) {
+			log.error("Error leyendo la carga masiva de productos", e);
+			error = e.getMessage();
+		}
+
+		try {
+			List<BulkItemResult> failures = ingestion.await();
+			log.info("Carga masiva terminada: {} productos, {} errores", ingestion.total(), failures.size());
+			return new BulkIngestResponse(ingestion.total(), failures.size(), ingestion.took(), error, failures);
+		} catch (InterruptedException e) {
+			Thread.currentThread().interrupt();
+			return new BulkIngestResponse(null, null, ingestion.took(), "Carga masiva interrumpida", List.of());
+		}
+	}
+
+	private boolean isValid(Product product) {
+		return product != null && StringUtils.hasText(product.getCodigo())
+				&& StringUtils.hasText(product.getNombre())
+				&& StringUtils.hasText(product.getCategoria())
+				&& StringUtils.hasText(product.getEmpresaAsociada())
+				&& StringUtils.hasText(product.getDescripcionCorta())
+				&& StringUtils.hasText(product.getDescripcionLarga())
+				&& StringUtils.hasText(product.getProducto())
+				&& StringUtils.hasText(product.getImagen())
+				&& product.getPrecio() != null && product.getCantidadDisponible() != null
+				&& product.getPuntuacion() != null;
+	}
+
+	@Override
+	public Product updateProduct(String productId, String updateRequest, SeqNoPrimaryTerm expectedVersion) {
 		//PATCH se implementa en este caso mediante Merge Patch: https://datatracker.ietf.org/doc/html/rfc7386
-		Optional<Product> dto=repositoryEslastick.findById(productId);
-		Product product = dto.orElse(null);
-		if (product != null) {
-			try {
-				JsonMergePatch jsonMergePatch = JsonMergePatch.fromJson(objectMapper.readTree(updateRequest));
-				JsonNode target = jsonMergePatch.apply(objectMapper.readTree(objectMapper.writeValueAsString(product)));
-				Product patched = objectMapper.treeToValue(target, Product.class);
-				repositoryEslastick.save(patched);
-				return patched;
-			} catch (JsonProcessingException | JsonPatchException e) {
-				log.error("Error updating product {}", productId, e);
+		//El merge lo aplica Elasticsearch (update parcial) en una sola peticion; un null vacia el campo.
+		try {
+			JsonNode patch = objectMapper.readTree(updateRequest);
+			if (patch == null || !patch.isObject()) {
+				log.error("Error updating product {}: el merge patch debe ser un objeto JSON", productId);
 				return null;
 			}
-		} else {
+			Map<String, Object> changes = objectMapper.convertValue(patch, new TypeReference<Map<String, Object>>() {});
+			return repositoryEslastick.update(productId, changes, expectedVersion).orElse(null);
+		} catch (JsonProcessingException | IllegalArgumentException e) {
+			log.error("Error updating product {}", productId, e);
 			return null;
 		}
 	}
 
 	@Override
-	public Product updateProduct(String productId, ProductDto updateRequest) {
-		Optional<Product> dto=repositoryEslastick.findById(productId);
-		Product product = dto.orElse(null);
-		if (product != null) {
-			product.update(updateRequest);
-			repositoryEslastick.save(product);
-			return product;
-		} else {
+	public Product updateProduct(String productId, ProductDto updateRequest, SeqNoPrimaryTerm expectedVersion) {
+		return repositoryEslastick.update(productId, Product.changesFrom(updateRequest), expectedVersion).orElse(null);
+	}
+
+
+	@Override
+	public StockAdjustmentResult adjustStock(String productId, StockAdjustment adjustment) {
+		if (adjustment == null || adjustment.getDelta() == null) {
+			return null;
+		}
+		return repositoryEslastick.adjustStock(productId, adjustment.getDelta());
+	}
+
+	@Override
+	public List<StockAdjustmentResult> adjustStock(List<StockAdjustment> adjustments, boolean allOrNothing) {
+		if (adjustments == null || adjustments.isEmpty() || adjustments.stream().anyMatch(
+				adjustment -> adjustment == null || !StringUtils.hasText(adjustment.getProductId()) || adjustment.getDelta() == null)) {
 			return null;
 		}
+		return repositoryEslastick.adjustStock(adjustments, allOrNothing);
+	}
+
+	@Override
+	public ReindexTask reindexProducts(boolean deletePrevious) {
+		return repositoryEslastick.startReindex(deletePrevious);
 	}
 
+	@Override
+	public Optional<ReindexTask> getReindexTask(String taskId) {
+		return repositoryEslastick.getReindexTask(taskId);
+	}
 
 }
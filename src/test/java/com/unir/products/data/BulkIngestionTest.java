@@ -0,0 +1,89 @@
+package com.unir.products.data;
+
+import com.unir.products.model.pojo.Product;
+import com.unir.products.model.response.BulkItemResult;
+import org.elasticsearch.ElasticsearchStatusException;
+import org.elasticsearch.action.DocWriteRequest;
+import org.elasticsearch.action.bulk.BulkItemResponse;
+import org.elasticsearch.action.bulk.BulkProcessor;
+import org.elasticsearch.action.bulk.BulkRequest;
+import org.elasticsearch.action.bulk.BulkResponse;
+import org.elasticsearch.action.index.IndexRequest;
+import org.elasticsearch.action.index.IndexResponse;
+import org.elasticsearch.index.shard.ShardId;
+import org.elasticsearch.rest.RestStatus;
+import org.junit.jupiter.api.Test;
+
+import java.io.IOException;
+import java.util.List;
+import java.util.Map;
+
+import static org.assertj.core.api.Assertions.assertThat;
+import static org.assertj.core.api.Assertions.tuple;
+import static org.mockito.ArgumentMatchers.any;
+import static org.mockito.ArgumentMatchers.anyLong;
+import static org.mockito.Mockito.mock;
+import static org.mockito.Mockito.when;
+
+class BulkIngestionTest {
+
+    private final BulkProcessor processor = mock(BulkProcessor.class);
+    private final BulkIngestion ingestion = new BulkIngestion(listener -> processor,
+            product -> new IndexRequest("products").id(product.getId()).source(Map.of("codigo", product.getCodigo())),
+            ids -> { }, 1000);
+
+    @Test
+    void keepsOnlyTheFailedItemsInInputOrder() throws Exception {
+        when(processor.awaitClose(anyLong(), any())).thenReturn(true);
+        ingestion.add(product("a"));
+        ingestion.reject("Producto incompleto");
+        ingestion.add(product("b"));
+        ingestion.add(product("c"));
+
+        BulkRequest second = new BulkRequest().add(index("c"));
+        ingestion.afterBulk(2, second, response(second, Map.of()));
+        BulkRequest first = new BulkRequest().add(index("a")).add(index("b"));
+        ingestion.afterBulk(1, first, response(first, Map.of("b", RestStatus.TOO_MANY_REQUESTS)));
+
+        List<BulkItemResult> failures = ingestion.await();
+
+        assertThat(ingestion.total()).isEqualTo(4);
+        assertThat(failures).extracting(BulkItemResult::getPosition, BulkItemResult::getStatus)
+                .containsExactly(tuple(1, 400), tuple(2, 429));
+    }
+
+    @Test
+    void reportsTheItemsOfAFailedBulkAndThoseWithoutResponse() throws Exception {
+        when(processor.awaitClose(anyLong(), any())).thenReturn(false);
+        ingestion.add(product("a"));
+        ingestion.add(product("b"));
+
+        ingestion.afterBulk(1, new BulkRequest().add(index("a")), new IOException("conexion rechazada"));
+        List<BulkItemResult> failures = ingestion.await();
+
+        assertThat(failures).extracting(BulkItemResult::getId, BulkItemResult::getStatus)
+                .containsExactly(tuple("a", 500), tuple("b", 408));
+    }
+
+    private static Product product(String id) {
+        return Product.builder().id(id).codigo("C-" + id).build();
+    }
+
+    private static IndexRequest index(String id) {
+        return new IndexRequest("products").id(id).source(Map.of("codigo", "C-" + id));
+    }
+
+    private static BulkResponse response(BulkRequest request, Map<String, RestStatus> failures) {
+        List<DocWriteRequest<?>> requests = request.requests();
+        BulkItemResponse[] items = new BulkItemResponse[requests.size()];
+        for (int i = 0; i < items.length; i++) {
+            String id = requests.get(i).id();
+            RestStatus failure = failures.get(id);
+            items[i] = failure != null
+                    ? new BulkItemResponse(i, DocWriteRequest.OpType.INDEX, new BulkItemResponse.Failure("products", "_doc", id,
+                    new ElasticsearchStatusException("rechazado", failure), failure))
+                    : new BulkItemResponse(i, DocWriteRequest.OpType.INDEX, new IndexResponse(new ShardId("products", "_na_", 0), "_doc", id, 1, 1, 1, true));
+        }
+        return new BulkResponse(items, 1);
+    }
+}
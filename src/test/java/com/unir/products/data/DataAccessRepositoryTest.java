@@ -0,0 +1,426 @@
+package com.unir.products.data;
+
+import com.unir.products.model.pojo.Product;
+import com.unir.products.model.request.ProductSearchCriteria;
+import com.unir.products.model.request.StockAdjustment;
+import com.unir.products.model.response.ProductChange;
+import com.unir.products.model.response.ProductChangesResponse;
+import com.unir.products.model.response.StockAdjustmentResult;
+import io.micrometer.core.instrument.simple.SimpleMeterRegistry;
+import org.apache.http.HttpHost;
+import org.apache.http.ProtocolVersion;
+import org.apache.http.entity.ContentType;
+import org.apache.http.message.BasicRequestLine;
+import org.apache.http.message.BasicStatusLine;
+import org.apache.http.nio.entity.NStringEntity;
+import org.elasticsearch.ElasticsearchStatusException;
+import org.elasticsearch.action.ActionListener;
+import org.elasticsearch.action.DocWriteRequest;
+import org.elasticsearch.action.DocWriteResponse;
+import org.elasticsearch.action.bulk.BulkItemResponse;
+import org.elasticsearch.action.bulk.BulkRequest;
+import org.elasticsearch.action.bulk.BulkResponse;
+import org.elasticsearch.action.delete.DeleteResponse;
+import org.elasticsearch.action.index.IndexResponse;
+import org.elasticsearch.action.search.SearchRequest;
+import org.elasticsearch.action.search.SearchResponse;
+import org.elasticsearch.action.support.WriteRequest;
+import org.elasticsearch.action.update.UpdateRequest;
+import org.elasticsearch.action.update.UpdateResponse;
+import org.elasticsearch.client.Request;
+import org.elasticsearch.client.RequestOptions;
+import org.elasticsearch.client.Response;
+import org.elasticsearch.client.ResponseListener;
+import org.elasticsearch.client.RestClient;
+import org.elasticsearch.client.RestHighLevelClient;
+import org.elasticsearch.common.bytes.BytesArray;
+import org.elasticsearch.common.xcontent.DeprecationHandler;
+import org.elasticsearch.common.xcontent.NamedXContentRegistry;
+import org.elasticsearch.common.xcontent.XContentParser;
+import org.elasticsearch.common.xcontent.json.JsonXContent;
+import org.elasticsearch.index.get.GetResult;
+import org.elasticsearch.index.query.BoolQueryBuilder;
+import org.elasticsearch.index.query.ConstantScoreQueryBuilder;
+import org.elasticsearch.index.query.RangeQueryBuilder;
+import org.elasticsearch.index.shard.ShardId;
+import org.elasticsearch.rest.RestStatus;
+import org.junit.jupiter.api.BeforeEach;
+import org.junit.jupiter.api.Test;
+import org.springframework.dao.OptimisticLockingFailureException;
+import org.springframework.data.elasticsearch.core.ElasticsearchOperations;
+import org.springframework.data.elasticsearch.core.ElasticsearchRestTemplate;
+import org.springframework.data.elasticsearch.core.query.SeqNoPrimaryTerm;
+import org.springframework.test.util.ReflectionTestUtils;
+
+import java.util.ArrayDeque;
+import java.util.Deque;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.TimeUnit;
+import java.util.function.Function;
+
+import static org.assertj.core.api.Assertions.assertThat;
+import static org.assertj.core.api.Assertions.assertThatThrownBy;
+import static org.assertj.core.api.Assertions.tuple;
+import static org.mockito.ArgumentMatchers.any;
+import static org.mockito.ArgumentMatchers.anyBoolean;
+import static org.mockito.ArgumentMatchers.anyString;
+import static org.mockito.Mockito.doAnswer;
+import static org.mockito.Mockito.mock;
+import static org.mockito.Mockito.never;
+import static org.mockito.Mockito.verify;
+import static org.mockito.Mockito.when;
+
+class DataAccessRepositoryTest {
+
+    private final RestHighLevelClient client = mock(RestHighLevelClient.class);
+    private final RestClient restClient = mock(RestClient.class);
+    private final ElasticsearchResilience resilience = mock(ElasticsearchResilience.class);
+    private final ProductIndexManager indexManager = mock(ProductIndexManager.class);
+    private final ProductsByIdCache productCache = mock(ProductsByIdCache.class);
+    private final List<BulkRequest> bulks = new CopyOnWriteArrayList<>();
+    // Respuesta de cada bulk, en orden
+    private final Deque<Function<BulkRequest, BulkResponse>> bulkResponses = new ArrayDeque<>();
+    private final ProductSearchQueryFactory queryFactory = new ProductSearchQueryFactory(100, 50, 10, 1000);
+    // Peticiones enviadas con el cliente de bajo nivel, como "METODO endpoint"
+    private final List<String> lowLevel = new CopyOnWriteArrayList<>();
+    private DataAccessRepository repository;
+
+    @BeforeEach
+    @SuppressWarnings("unchecked")
+    void setUp() throws Exception {
+        when(client.getLowLevelClient()).thenReturn(restClient);
+        when(indexManager.getWriteAlias()).thenReturn("products-write");
+        when(indexManager.getTombstoneIndex()).thenReturn("products-tombstones");
+        when(resilience.execute(anyString(), any())).thenAnswer(invocation -> {
+            ElasticsearchResilience.AsyncCall<Object> call = invocation.getArgument(1);
+            CompletableFuture<Object> response = new CompletableFuture<>();
+            call.send(RequestOptions.DEFAULT, ActionListener.wrap(response::complete, response::completeExceptionally));
+            try {
+                return response.get();
+            } catch (ExecutionException e) {
+                throw e.getCause();
+            }
+        });
+        doAnswer(invocation -> {
+            BulkRequest request = invocation.getArgument(0);
+            ActionListener<BulkResponse> listener = invocation.getArgument(2);
+            bulks.add(request);
+            BulkResponse response;
+            try {
+                response = bulkResponses.poll().apply(request);
+            } catch (RuntimeException e) {
+                listener.onFailure(e);
+                return null;
+            }
+            listener.onResponse(response);
+            return null;
+        }).when(client).bulkAsync(any(), any(), any());
+        when(resilience.executeAsync(anyString(), anyBoolean(), anyBoolean(), any())).thenAnswer(invocation -> {
+            ElasticsearchResilience.AsyncCall<Object> call = invocation.getArgument(3);
+            CompletableFuture<Object> response = new CompletableFuture<>();
+            call.send(RequestOptions.DEFAULT, ActionListener.wrap(response::complete, response::completeExceptionally));
+            return response;
+        });
+        doAnswer(invocation -> {
+            Request request = invocation.getArgument(0);
+            ResponseListener listener = invocation.getArgument(1);
+            lowLevel.add(request.getMethod() + " " + request.getEndpoint());
+            listener.onSuccess(response(request, "{\"id\":\"pit-1\"}"));
+            return null;
+        }).when(restClient).performRequestAsync(any(), any());
+
+        SimpleMeterRegistry meterRegistry = new SimpleMeterRegistry();
+        ElasticsearchOperations operations = new ElasticsearchRestTemplate(client);
+        ProductSearchTemplates templates = mock(ProductSearchTemplates.class);
+        repository = new DataAccessRepository(operations, client,
+                new ProductsQueryCache(100, "30s", "1s", "10m", meterRegistry),
+                productCache,
+                queryFactory,
+                new ProductSearchResultMapper("http://localhost:8088", operations, queryFactory),
+                new ProductFields(operations),
+                mock(ProductsSuggestCache.class),
+                new ElasticsearchMetrics(meterRegistry),
+                resilience,
+                indexManager,
+                mock(ProductWriteBuffer.class),
+                templates);
+        ReflectionTestUtils.setField(repository, "defaultPageSize", 10);
+        ReflectionTestUtils.setField(repository, "maxPageSize", 1000);
+        ReflectionTestUtils.setField(repository, "defaultChangesSize", 1000);
+        ReflectionTestUtils.setField(repository, "maxChangesSize", 10000);
+        ReflectionTestUtils.setField(repository, "changesSettle", "5s");
+        ReflectionTestUtils.setField(repository, "pitKeepAlive", "1m");
+        ReflectionTestUtils.setField(repository, "slowQueryThreshold", "500ms");
+        ReflectionTestUtils.setField(repository, "refreshPolicy", "wait_for");
+        ReflectionTestUtils.setField(repository, "writeBlockWait", "30s");
+    }
+
+    @Test
+    void rejectsACursorWithAnotherSortWithoutOpeningAPointInTime() {
+        ProductSearchCriteria criteria = ProductSearchCriteria.builder().build();
+        int sorts = queryFactory.buildSearch(criteria, 10, false).sorts().size();
+        criteria.setCursor(new SearchCursor(null, new Object[sorts + 1]).encode());
+
+        assertThatThrownBy(() -> repository.findProducts(criteria).get(5, TimeUnit.SECONDS))
+                .hasCauseInstanceOf(IllegalArgumentException.class)
+                .hasMessageContaining("Cursor no valido");
+        assertThat(lowLevel).isEmpty();
+    }
+
+    @Test
+    void closesThePointInTimeOpenedForASearchThatFails() {
+        ProductSearchCriteria criteria = ProductSearchCriteria.builder().build();
+        int sorts = queryFactory.buildSearch(criteria, 10, false).sorts().size();
+        criteria.setCursor(new SearchCursor(null, new Object[sorts]).encode());
+        doAnswer(invocation -> {
+            ActionListener<SearchResponse> listener = invocation.getArgument(2);
+            listener.onFailure(new ElasticsearchStatusException("fallo del cluster", RestStatus.INTERNAL_SERVER_ERROR));
+            return null;
+        }).when(client).searchAsync(any(), any(), any());
+
+        assertThatThrownBy(() -> repository.findProducts(criteria).get(5, TimeUnit.SECONDS))
+                .hasCauseInstanceOf(ElasticsearchStatusException.class);
+        assertThat(lowLevel).containsExactly("POST /products/_pit", "DELETE /_pit");
+    }
+
+    @Test
+    void deletesTheProductAndWritesItsTombstoneInOneBulk() {
+        bulkResponses.add(request -> bulkResponse(request, null));
+
+        assertThat(repository.delete(Product.builder().id("a1").build(), false)).isTrue();
+
+        assertThat(bulks).hasSize(1);
+        assertThat(bulks.get(0).requests()).extracting(DocWriteRequest::index, DocWriteRequest::id)
+                .containsExactly(tuple("products-write", "a1"), tuple("products-tombstones", "a1"));
+        assertThat(bulks.get(0).getRefreshPolicy()).isEqualTo(WriteRequest.RefreshPolicy.WAIT_UNTIL);
+    }
+
+    @Test
+    void resendsTheDeleteWhileAReindexBlocksTheProductIndex() {
+        ElasticsearchStatusException blocked = new ElasticsearchStatusException("cluster_block_exception", RestStatus.FORBIDDEN);
+        bulkResponses.add(request -> bulkResponse(request, Map.of(0, blocked)));
+        bulkResponses.add(request -> bulkResponse(request, null));
+
+        assertThat(repository.delete(Product.builder().id("a1").build(), false)).isTrue();
+
+        assertThat(bulks).hasSize(2);
+    }
+
+    @Test
+    void reportsAFailedTombstone() {
+        ElasticsearchStatusException failure = new ElasticsearchStatusException("es_rejected_execution_exception", RestStatus.TOO_MANY_REQUESTS);
+        bulkResponses.add(request -> bulkResponse(request, Map.of(1, failure)));
+
+        assertThatThrownBy(() -> repository.delete(Product.builder().id("a1").build(), false))
+                .isInstanceOf(ElasticsearchStatusException.class)
+                .satisfies(e -> assertThat(((ElasticsearchStatusException) e).status()).isEqualTo(RestStatus.TOO_MANY_REQUESTS));
+        assertThat(bulks).hasSize(1);
+    }
+
+    @Test
+    void undoesTheAppliedLinesOfABatchWithAFailedLine() {
+        bulkResponses.add(request -> new BulkResponse(new BulkItemResponse[]{
+                stockItem(0, "a", DocWriteResponse.Result.UPDATED, 3),
+                stockItem(1, "b", DocWriteResponse.Result.NOOP, 1),
+                stockItem(2, "c", DocWriteResponse.Result.UPDATED, 4)}, 1));
+        //Deshacer c no es posible: entre medias se ha vendido su stock
+        bulkResponses.add(request -> new BulkResponse(new BulkItemResponse[]{
+                stockItem(0, "a", DocWriteResponse.Result.UPDATED, 5),
+                stockItem(1, "c", DocWriteResponse.Result.NOOP, 0)}, 1));
+
+        List<StockAdjustmentResult> results = repository.adjustStock(List.of(
+                new StockAdjustment("a", -2L), new StockAdjustment("b", -5L), new StockAdjustment("c", -1L)), true);
+
+        assertThat(bulks).hasSize(2);
+        assertThat(bulks.get(1).requests()).extracting(DocWriteRequest::id, request -> ((UpdateRequest) request).script().getParams().get("delta"))
+                .containsExactly(tuple("a", 2L), tuple("c", 1L));
+        assertThat(results).extracting(StockAdjustmentResult::getProductId, StockAdjustmentResult::getStatus, StockAdjustmentResult::getCantidadDisponible)
+                .containsExactly(tuple("a", 409, 5L), tuple("b", 409, 1L), tuple("c", 500, 4L));
+        assertThat(results.get(0).getError()).contains("deshecho");
+        assertThat(results.get(1).getError()).isEqualTo("Stock insuficiente");
+        assertThat(results.get(2).getError()).contains("sigue aplicado");
+    }
+
+    @Test
+    void keepsTheAppliedLinesWhenTheRollbackCannotBeSent() {
+        bulkResponses.add(request -> new BulkResponse(new BulkItemResponse[]{
+                stockItem(0, "a", DocWriteResponse.Result.UPDATED, 3),
+                new BulkItemResponse(1, DocWriteRequest.OpType.UPDATE, new BulkItemResponse.Failure("products", "_doc", "b",
+                        new ElasticsearchStatusException("document_missing_exception", RestStatus.NOT_FOUND), RestStatus.NOT_FOUND))}, 1));
+        bulkResponses.add(request -> {
+            throw new ElasticsearchStatusException("no disponible", RestStatus.SERVICE_UNAVAILABLE);
+        });
+
+        List<StockAdjustmentResult> results = repository.adjustStock(List.of(
+                new StockAdjustment("a", -2L), new StockAdjustment("b", -1L)), true);
+
+        assertThat(results).extracting(StockAdjustmentResult::getProductId, StockAdjustmentResult::getStatus)
+                .containsExactly(tuple("a", 500), tuple("b", 404));
+    }
+
+    @Test
+    void leavesTheOtherLinesAppliedWithoutAllOrNothing() {
+        bulkResponses.add(request -> new BulkResponse(new BulkItemResponse[]{
+                stockItem(0, "a", DocWriteResponse.Result.UPDATED, 3),
+                stockItem(1, "b", DocWriteResponse.Result.NOOP, 1)}, 1));
+
+        List<StockAdjustmentResult> results = repository.adjustStock(List.of(
+                new StockAdjustment("a", -2L), new StockAdjustment("b", -5L)), false);
+
+        assertThat(bulks).hasSize(1);
+        assertThat(results).extracting(StockAdjustmentResult::getStatus).containsExactly(200, 409);
+        verify(productCache).evict("a");
+        verify(productCache, never()).evict("b");
+    }
+
+    @Test
+    void returnsNothingAndForgetsTheCachedProductWhenItNoLongerExists() {
+        failUpdates(RestStatus.NOT_FOUND, "document_missing_exception");
+
+        assertThat(repository.update("a1", Map.of("nombre", "silla"), null)).isEmpty();
+        verify(productCache).evict("a1");
+    }
+
+    @Test
+    void reportsAConcurrentModificationAsAnOptimisticLockingFailure() {
+        failUpdates(RestStatus.CONFLICT, "version_conflict_engine_exception");
+
+        assertThatThrownBy(() -> repository.update("a1", Map.of("nombre", "silla"), new SeqNoPrimaryTerm(3, 1)))
+                .isInstanceOf(OptimisticLockingFailureException.class)
+                .hasMessageContaining("a1");
+        verify(productCache, never()).put(any());
+    }
+
+    @Test
+    void rejectsAChangeTheMappingDoesNotAccept() {
+        failUpdates(RestStatus.BAD_REQUEST, "mapper_parsing_exception");
+
+        assertThatThrownBy(() -> repository.update("a1", Map.of("precio", "gratis"), null))
+                .isInstanceOf(IllegalArgumentException.class)
+                .hasMessageContaining("mapper_parsing_exception");
+    }
+
+    @Test
+    void startsTheFeedWithUnstampedProductsAndReturnsTombstonesAsDeletions() {
+        List<SearchRequest> searches = answerSearches("{\"took\":1,\"timed_out\":false,\"_shards\":{\"total\":1,\"successful\":1,\"skipped\":0,\"failed\":0},\"hits\":{\"hits\":["
+                + "{\"_index\":\"products\",\"_id\":\"a\",\"_source\":{\"nombre\":\"silla\"},\"sort\":[" + Long.MIN_VALUE + ",\"a\"]},"
+                + "{\"_index\":\"products-tombstones\",\"_id\":\"b\",\"_source\":{},\"sort\":[1000,\"b\"]}]}}");
+
+        ProductChangesResponse response = repository.findChanges(null, null);
+
+        SearchRequest request = searches.get(0);
+        assertThat(request.indices()).containsExactly("products", "products-tombstones");
+        assertThat(request.source().size()).isEqualTo(1000);
+        assertThat(request.source().searchAfter()).isNull();
+        assertThat(((BoolQueryBuilder) ((ConstantScoreQueryBuilder) request.source().query()).innerQuery()).should()).hasSize(2);
+        assertThat(response.getChanges()).extracting(ProductChange::getId, ProductChange::isDeleted, ProductChange::getUpdatedAt)
+                .containsExactly(tuple("a", false, null), tuple("b", true, 1000L));
+        assertThat(response.getChanges().get(0).getProduct().getNombre()).isEqualTo("silla");
+        assertThat(response.getChanges().get(1).getProduct()).isNull();
+        assertThat(SearchCursor.decode(response.getNext()).getAfter()).containsExactly(1000, "b");
+    }
+
+    @Test
+    void continuesAfterTheTokenAndKeepsItWhenThereAreNoNewChanges() {
+        List<SearchRequest> searches = answerSearches("{\"took\":1,\"timed_out\":false,\"_shards\":{\"total\":1,\"successful\":1,\"skipped\":0,\"failed\":0},\"hits\":{\"hits\":[]}}");
+        String token = new SearchCursor(null, new Object[]{1000, "b"}).encode();
+
+        ProductChangesResponse response = repository.findChanges(token, 50_000);
+
+        SearchRequest request = searches.get(0);
+        assertThat(request.source().size()).isEqualTo(10000);
+        assertThat(request.source().searchAfter()).containsExactly(1000L, "b");
+        BoolQueryBuilder query = (BoolQueryBuilder) ((ConstantScoreQueryBuilder) request.source().query()).innerQuery();
+        assertThat(query.should()).isEmpty();
+        assertThat(query.filter()).singleElement()
+                .satisfies(filter -> assertThat(((RangeQueryBuilder) filter).from()).isEqualTo(1000L));
+        assertThat(response.getChanges()).isEmpty();
+        assertThat(response.getNext()).isEqualTo(token);
+    }
+
+    @Test
+    void rejectsATokenThatIsNotAChangesToken() {
+        String cursor = new SearchCursor(null, new Object[]{1.5, "b", 3}).encode();
+
+        assertThatThrownBy(() -> repository.findChanges(cursor, null))
+                .isInstanceOf(IllegalArgumentException.class)
+                .hasMessage("Token no valido");
+        assertThatThrownBy(() -> repository.findChanges("no-es-un-token", null))
+                .isInstanceOf(IllegalArgumentException.class);
+        assertThatThrownBy(() -> repository.findChanges(null, 0))
+                .isInstanceOf(IllegalArgumentException.class);
+    }
+
+    /**
+     * Todas las busquedas responden con el json indicado.
+     *
+     * @return las busquedas recibidas
+     */
+    private List<SearchRequest> answerSearches(String json) {
+        List<SearchRequest> searches = new CopyOnWriteArrayList<>();
+        doAnswer(invocation -> {
+            searches.add(invocation.getArgument(0));
+            ActionListener<SearchResponse> listener = invocation.getArgument(2);
+            try (XContentParser parser = JsonXContent.jsonXContent.createParser(NamedXContentRegistry.EMPTY,
+                    DeprecationHandler.THROW_UNSUPPORTED_OPERATION, json)) {
+                listener.onResponse(SearchResponse.fromXContent(parser));
+            }
+            return null;
+        }).when(client).searchAsync(any(), any(), any());
+        return searches;
+    }
+
+    /**
+     * Todas las actualizaciones fallan con el estado indicado.
+     */
+    private void failUpdates(RestStatus status, String message) {
+        doAnswer(invocation -> {
+            ActionListener<UpdateResponse> listener = invocation.getArgument(2);
+            listener.onFailure(new ElasticsearchStatusException(message, status));
+            return null;
+        }).when(client).updateAsync(any(), any(), any());
+    }
+
+    /**
+     * Elemento de un bulk de ajustes de stock, con el stock que devuelve el cluster.
+     */
+    private static BulkItemResponse stockItem(int position, String id, DocWriteResponse.Result result, long stock) {
+        UpdateResponse response = new UpdateResponse(new ShardId("products", "_na_", 0), "_doc", id, 1, 1, 2, result);
+        response.setGetResult(new GetResult("products", "_doc", id, 1, 1, 2, true,
+                new BytesArray("{\"cantidadDisponible\":" + stock + "}"), null, null));
+        return new BulkItemResponse(position, DocWriteRequest.OpType.UPDATE, response);
+    }
+
+    /**
+     * Respuesta del bulk con cada elemento escrito, salvo los fallidos indicados por posicion.
+     */
+    private static BulkResponse bulkResponse(BulkRequest request, Map<Integer, ElasticsearchStatusException> failures) {
+        List<DocWriteRequest<?>> requests = request.requests();
+        BulkItemResponse[] items = new BulkItemResponse[requests.size()];
+        for (int i = 0; i < items.length; i++) {
+            DocWriteRequest<?> item = requests.get(i);
+            ElasticsearchStatusException failure = failures == null ? null : failures.get(i);
+            ShardId shard = new ShardId(item.index(), "_na_", 0);
+            items[i] = failure != null
+                    ? new BulkItemResponse(i, item.opType(), new BulkItemResponse.Failure(item.index(), "_doc", item.id(), failure, failure.status()))
+                    : new BulkItemResponse(i, item.opType(), item.opType() == DocWriteRequest.OpType.DELETE
+                    ? new DeleteResponse(shard, "_doc", item.id(), 1, 1, 2, true)
+                    : new IndexResponse(shard, "_doc", item.id(), 1, 1, 1, true));
+        }
+        return new BulkResponse(items, 1);
+    }
+
+    private static Response response(Request request, String body) {
+        ProtocolVersion http = new ProtocolVersion("HTTP", 1, 1);
+        Response response = mock(Response.class);
+        when(response.getRequestLine()).thenReturn(new BasicRequestLine(request.getMethod(), request.getEndpoint(), http));
+        when(response.getHost()).thenReturn(new HttpHost("localhost", 9200));
+        when(response.getStatusLine()).thenReturn(new BasicStatusLine(http, 200, "OK"));
+        when(response.getEntity()).thenReturn(new NStringEntity(body, ContentType.APPLICATION_JSON));
+        return response;
+    }
+}
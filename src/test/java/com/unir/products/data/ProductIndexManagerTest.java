@@ -0,0 +1,116 @@
+package com.unir.products.data;
+
+import com.unir.products.model.response.ReindexTask;
+import org.elasticsearch.ElasticsearchStatusException;
+import org.elasticsearch.action.DocWriteRequest;
+import org.elasticsearch.action.get.GetRequest;
+import org.elasticsearch.action.get.GetResponse;
+import org.elasticsearch.action.index.IndexRequest;
+import org.elasticsearch.action.index.IndexResponse;
+import org.elasticsearch.client.RestHighLevelClient;
+import org.elasticsearch.common.bytes.BytesArray;
+import org.elasticsearch.index.get.GetResult;
+import org.elasticsearch.index.shard.ShardId;
+import org.elasticsearch.rest.RestStatus;
+import org.junit.jupiter.api.AfterEach;
+import org.junit.jupiter.api.BeforeEach;
+import org.junit.jupiter.api.Test;
+import org.springframework.dao.ConcurrencyFailureException;
+import org.springframework.data.elasticsearch.core.ElasticsearchOperations;
+import org.springframework.test.util.ReflectionTestUtils;
+
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.CopyOnWriteArrayList;
+
+import static org.assertj.core.api.Assertions.assertThat;
+import static org.assertj.core.api.Assertions.assertThatThrownBy;
+import static org.mockito.ArgumentMatchers.any;
+import static org.mockito.Mockito.mock;
+import static org.mockito.Mockito.when;
+
+class ProductIndexManagerTest {
+
+    private final RestHighLevelClient client = mock(RestHighLevelClient.class);
+    private final List<IndexRequest> indexed = new CopyOnWriteArrayList<>();
+    // Documentos del indice de administracion, por id
+    private final Map<String, GetResponse> documents = new ConcurrentHashMap<>();
+    private ProductIndexManager manager;
+
+    @BeforeEach
+    void setUp() throws Exception {
+        when(client.index(any(), any())).thenAnswer(invocation -> {
+            IndexRequest request = invocation.getArgument(0);
+            indexed.add(request);
+            GetResponse current = documents.get(request.id());
+            boolean conflict = request.opType() == DocWriteRequest.OpType.CREATE ? current != null
+                    : request.ifSeqNo() >= 0 && (current == null || current.getSeqNo() != request.ifSeqNo());
+            if (conflict) {
+                throw new ElasticsearchStatusException("version_conflict_engine_exception", RestStatus.CONFLICT);
+            }
+            long seqNo = current == null ? 0 : current.getSeqNo() + 1;
+            documents.put(request.id(), document(request.id(), seqNo, request.source().utf8ToString()));
+            return new IndexResponse(new ShardId("products-admin", "_na_", 0), "_doc", request.id(), seqNo, 1, 1, current == null);
+        });
+        when(client.get(any(), any())).thenAnswer(invocation -> {
+            GetRequest request = invocation.getArgument(0);
+            GetResponse document = documents.get(request.id());
+            return document != null ? document : new GetResponse(new GetResult(request.index(), "_doc", request.id(),
+                    -2, 0, -1, false, null, null, null));
+        });
+        manager = new ProductIndexManager(client, mock(ElasticsearchOperations.class), mock(ProductsQueryCache.class),
+                mock(ProductsByIdCache.class));
+        ReflectionTestUtils.setField(manager, "adminIndex", "products-admin");
+        ReflectionTestUtils.setField(manager, "lockTtl", "2m");
+    }
+
+    @AfterEach
+    void tearDown() {
+        manager.close();
+    }
+
+    @Test
+    void refusesToStartWhileAnotherInstanceHoldsTheLock() {
+        long expiresAt = System.currentTimeMillis() + 60_000;
+        documents.put("reindex-lock", document("reindex-lock", 3, "{\"task\":\"otra\",\"expiresAt\":" + expiresAt + "}"));
+
+        assertThatThrownBy(() -> manager.startReindex(false))
+                .isInstanceOf(ConcurrencyFailureException.class)
+                .hasMessageContaining("otra");
+        assertThat(indexed).allMatch(request -> request.id().equals("reindex-lock"));
+        assertThat(documents.get("reindex-lock").getSeqNo()).isEqualTo(3);
+    }
+
+    @Test
+    void takesOverAnExpiredLockAndFailsItsTask() {
+        long expiredAt = System.currentTimeMillis() - 1;
+        documents.put("reindex-lock", document("reindex-lock", 3, "{\"task\":\"caida\",\"expiresAt\":" + expiredAt + "}"));
+        documents.put("task-caida", document("task-caida", 0, "{\"id\":\"caida\",\"status\":\"RUNNING\",\"startedAt\":1}"));
+
+        ReindexTask task = manager.startReindex(false);
+
+        assertThat(indexed).anyMatch(request -> request.id().equals("reindex-lock") && request.ifSeqNo() == 3);
+        assertThat(manager.getReindexTask("caida")).hasValueSatisfying(abandoned -> {
+            assertThat(abandoned.getStatus()).isEqualTo(ReindexTask.Status.FAILED);
+            assertThat(abandoned.getFinishedAt()).isNotNull();
+        });
+        assertThat(indexed).anyMatch(request -> request.id().equals("task-" + task.getId()));
+    }
+
+    @Test
+    void readsTasksStartedByAnyInstance() {
+        documents.put("task-remota", document("task-remota", 0, "{\"id\":\"remota\",\"status\":\"COMPLETED\",\"deletePrevious\":true,"
+                + "\"startedAt\":1,\"finishedAt\":2,\"result\":{\"index\":\"products-20240101-120000\",\"total\":5}}"));
+
+        assertThat(manager.getReindexTask("remota")).hasValueSatisfying(task -> {
+            assertThat(task.getStatus()).isEqualTo(ReindexTask.Status.COMPLETED);
+            assertThat(task.getResult().getTotal()).isEqualTo(5);
+        });
+        assertThat(manager.getReindexTask("otra")).isEmpty();
+    }
+
+    private static GetResponse document(String id, long seqNo, String source) {
+        return new GetResponse(new GetResult("products-admin", "_doc", id, seqNo, 1, seqNo + 1, true, new BytesArray(source), null, null));
+    }
+}
@@ -0,0 +1,184 @@
+package com.unir.products.data;
+
+import com.unir.products.model.request.ProductSearchCriteria;
+import org.apache.http.HttpHost;
+import org.apache.http.ProtocolVersion;
+import org.apache.http.RequestLine;
+import org.apache.http.entity.ContentType;
+import org.apache.http.message.BasicRequestLine;
+import org.apache.http.message.BasicStatusLine;
+import org.apache.http.nio.entity.NStringEntity;
+import org.elasticsearch.ElasticsearchStatusException;
+import org.elasticsearch.action.ActionListener;
+import org.elasticsearch.action.admin.cluster.storedscripts.DeleteStoredScriptRequest;
+import org.elasticsearch.action.admin.cluster.storedscripts.PutStoredScriptRequest;
+import org.elasticsearch.action.search.MultiSearchResponse;
+import org.elasticsearch.action.search.SearchResponse;
+import org.elasticsearch.action.support.master.AcknowledgedResponse;
+import org.elasticsearch.client.Request;
+import org.elasticsearch.client.RequestOptions;
+import org.elasticsearch.client.Response;
+import org.elasticsearch.client.ResponseException;
+import org.elasticsearch.client.ResponseListener;
+import org.elasticsearch.client.RestClient;
+import org.elasticsearch.client.RestHighLevelClient;
+import org.elasticsearch.rest.RestStatus;
+import org.elasticsearch.script.mustache.MultiSearchTemplateRequest;
+import org.elasticsearch.script.mustache.SearchTemplateRequest;
+import org.elasticsearch.search.aggregations.bucket.terms.Terms;
+import org.junit.jupiter.api.BeforeEach;
+import org.junit.jupiter.api.Test;
+
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.Deque;
+import java.util.List;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.TimeUnit;
+
+import static org.assertj.core.api.Assertions.assertThat;
+import static org.assertj.core.api.Assertions.assertThatThrownBy;
+import static org.mockito.ArgumentMatchers.any;
+import static org.mockito.Mockito.doAnswer;
+import static org.mockito.Mockito.mock;
+import static org.mockito.Mockito.when;
+
+class ProductSearchTemplatesClientTest {
+
+    private static final String SEARCH = "{\"took\":1,\"timed_out\":false,"
+            + "\"_shards\":{\"total\":1,\"successful\":1,\"skipped\":0,\"failed\":0},"
+            + "\"hits\":{\"max_score\":null,\"hits\":[{\"_index\":\"products\",\"_type\":\"_doc\",\"_id\":\"a1\",\"_score\":null,"
+            + "\"_source\":{\"nombre\":\"silla\"},\"sort\":[\"hogar\"]}]},"
+            + "\"aggregations\":{\"sterms#categorias\":{\"doc_count_error_upper_bound\":0,\"sum_other_doc_count\":0,"
+            + "\"buckets\":[{\"key\":\"hogar\",\"doc_count\":1}]}}}";
+    private static final String MISSING_SCRIPT = "{\"root_cause\":[{\"type\":\"resource_not_found_exception\","
+            + "\"reason\":\"unable to find script [x] in cluster state\"}],"
+            + "\"type\":\"resource_not_found_exception\",\"reason\":\"unable to find script [x] in cluster state\"}";
+
+    private final RestHighLevelClient client = mock(RestHighLevelClient.class);
+    private final RestClient restClient = mock(RestClient.class);
+    private final ProductSearchQueryFactory queryFactory = new ProductSearchQueryFactory(100, 50, 10, 1000);
+    private final List<Request> requests = new ArrayList<>();
+    private final List<String> registered = new ArrayList<>();
+    private final List<String> deleted = new ArrayList<>();
+    // Respuesta de cada peticion, en orden: cuerpo y estado
+    private final Deque<Object[]> responses = new ArrayDeque<>();
+    private ProductSearchTemplates templates;
+
+    @BeforeEach
+    void setUp() throws Exception {
+        when(client.getLowLevelClient()).thenReturn(restClient);
+        doAnswer(invocation -> {
+            Request request = invocation.getArgument(0);
+            ResponseListener listener = invocation.getArgument(1);
+            requests.add(request);
+            Object[] next = responses.poll();
+            Response response = response(request, (String) next[0], (RestStatus) next[1]);
+            if (next[1] == RestStatus.OK) {
+                listener.onSuccess(response);
+            } else {
+                listener.onFailure(new ResponseException(response));
+            }
+            return null;
+        }).when(restClient).performRequestAsync(any(), any());
+        doAnswer(invocation -> {
+            PutStoredScriptRequest request = invocation.getArgument(0);
+            ActionListener<AcknowledgedResponse> listener = invocation.getArgument(2);
+            registered.add(request.id());
+            listener.onResponse(new AcknowledgedResponse(true));
+            return null;
+        }).when(client).putScriptAsync(any(), any(), any());
+        templates = new ProductSearchTemplates(client, queryFactory, true);
+    }
+
+    @Test
+    void parsesTheSearchResponseWithItsAggregations() throws Exception {
+        responses.add(new Object[]{SEARCH, RestStatus.OK});
+
+        SearchResponse response = search(request("silla"));
+
+        assertThat(response.getHits().getHits()).extracting(hit -> hit.getId()).containsExactly("a1");
+        assertThat(response.getAggregations().<Terms>get("categorias").getBuckets()).hasSize(1);
+        assertThat(requests.get(0).getEndpoint()).isEqualTo("/products/_search/template");
+        assertThat(requests.get(0).getParameters()).containsEntry("typed_keys", "true");
+    }
+
+    @Test
+    void reportsErrorStatusesLikeTheHighLevelClient() {
+        responses.add(new Object[]{"{\"error\":{\"type\":\"parsing_exception\",\"reason\":\"consulta mal formada\"},\"status\":400}",
+                RestStatus.BAD_REQUEST});
+
+        assertThatThrownBy(() -> search(request("silla")))
+                .hasCauseInstanceOf(ElasticsearchStatusException.class)
+                .satisfies(e -> assertThat(((ElasticsearchStatusException) e.getCause()).status()).isEqualTo(RestStatus.BAD_REQUEST))
+                .hasMessageContaining("consulta mal formada");
+    }
+
+    @Test
+    void registersAMissingTemplateAgainAndRepeatsTheSearch() throws Exception {
+        SearchTemplateRequest request = request("silla");
+        responses.add(new Object[]{"{\"error\":" + MISSING_SCRIPT + ",\"status\":404}", RestStatus.NOT_FOUND});
+        responses.add(new Object[]{SEARCH, RestStatus.OK});
+
+        SearchResponse response = search(request);
+
+        assertThat(response.getHits().getHits()).hasSize(1);
+        assertThat(registered).containsExactly(request.getScript());
+        assertThat(requests).hasSize(2);
+    }
+
+    @Test
+    void registersMissingTemplatesOfAMultiSearchAgain() throws Exception {
+        MultiSearchTemplateRequest request = new MultiSearchTemplateRequest()
+                .add(request("silla"))
+                .add(request(null));
+        responses.add(new Object[]{"{\"took\":1,\"responses\":[" + SEARCH + ",{\"error\":" + MISSING_SCRIPT + ",\"status\":404}]}", RestStatus.OK});
+        responses.add(new Object[]{"{\"took\":1,\"responses\":[" + SEARCH + "," + SEARCH + "]}", RestStatus.OK});
+
+        CompletableFuture<MultiSearchResponse> response = new CompletableFuture<>();
+        templates.msearchAsync(request, RequestOptions.DEFAULT, ActionListener.wrap(response::complete, response::completeExceptionally));
+
+        assertThat(response.get(5, TimeUnit.SECONDS).getResponses()).allMatch(item -> !item.isFailure());
+        assertThat(registered).containsExactly(request.requests().get(1).getScript());
+        assertThat(requests).hasSize(2);
+    }
+
+    @Test
+    void deletesOnlyStaleProductTemplatesOnStartup() throws Exception {
+        String current = request("silla").getScript();
+        String stale = current.substring(0, current.length() - 12) + "000000000000";
+        when(restClient.performRequest(any())).thenAnswer(invocation -> response(invocation.getArgument(0),
+                "{\"metadata\":{\"stored_scripts\":{\"" + current + "\":{\"lang\":\"mustache\"},\"" + stale + "\":{\"lang\":\"mustache\"},"
+                        + "\"other-script\":{\"lang\":\"painless\"}}}}", RestStatus.OK));
+        when(client.putScript(any(), any())).thenReturn(new AcknowledgedResponse(true));
+        when(client.deleteScript(any(), any())).thenAnswer(invocation -> {
+            deleted.add(((DeleteStoredScriptRequest) invocation.getArgument(0)).id());
+            return new AcknowledgedResponse(true);
+        });
+
+        templates.registerTemplates();
+
+        assertThat(deleted).containsExactly(stale);
+    }
+
+    private SearchTemplateRequest request(String nombre) {
+        return templates.buildRequest("products", ProductSearchCriteria.builder().nombre(nombre).build(), 10, null, null);
+    }
+
+    private SearchResponse search(SearchTemplateRequest request) throws Exception {
+        CompletableFuture<SearchResponse> response = new CompletableFuture<>();
+        templates.searchAsync(request, RequestOptions.DEFAULT, ActionListener.wrap(response::complete, response::completeExceptionally));
+        return response.get(5, TimeUnit.SECONDS);
+    }
+
+    private static Response response(Request request, String body, RestStatus status) {
+        ProtocolVersion http = new ProtocolVersion("HTTP", 1, 1);
+        RequestLine requestLine = new BasicRequestLine(request.getMethod(), request.getEndpoint(), http);
+        Response response = mock(Response.class);
+        when(response.getRequestLine()).thenReturn(requestLine);
+        when(response.getHost()).thenReturn(new HttpHost("localhost", 9200));
+        when(response.getStatusLine()).thenReturn(new BasicStatusLine(http, status.getStatus(), status.name()));
+        when(response.getEntity()).thenReturn(new NStringEntity(body, ContentType.APPLICATION_JSON));
+        return response;
+    }
+}
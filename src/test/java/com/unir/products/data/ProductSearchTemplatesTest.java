@@ -0,0 +1,154 @@
+package com.unir.products.data;
+
+import com.unir.products.model.request.ProductSearchCriteria;
+import org.elasticsearch.common.Strings;
+import org.elasticsearch.common.xcontent.XContentHelper;
+import org.elasticsearch.common.xcontent.XContentType;
+import org.elasticsearch.script.TemplateScript;
+import org.elasticsearch.script.mustache.MustacheScriptEngine;
+import org.elasticsearch.script.mustache.SearchTemplateRequest;
+import org.elasticsearch.search.builder.SearchSourceBuilder;
+import org.junit.jupiter.api.Test;
+
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+
+import static org.assertj.core.api.Assertions.assertThat;
+
+class ProductSearchTemplatesTest {
+
+    private static final String[] INCLUDES = {"nombre", "precio"};
+
+    private final ProductSearchQueryFactory queryFactory = new ProductSearchQueryFactory(100, 50, 10, 1000);
+    private final ProductSearchTemplates templates = new ProductSearchTemplates(null, queryFactory, false);
+    private final MustacheScriptEngine mustache = new MustacheScriptEngine();
+
+    @Test
+    void rendersTheSameSearchAsTheDirectOneForEveryShape() {
+        for (ProductQueryShape shape : ProductQueryShape.all()) {
+            for (boolean filtered : new boolean[]{false, true}) {
+                ProductSearchCriteria criteria = criteria(shape, filtered);
+                assertThat(ProductQueryShape.of(criteria)).isSameAs(shape);
+
+                assertEquivalent(shape + (filtered ? " con filtros" : ""), criteria, null, null);
+                assertEquivalent(shape + " lean", criteria, INCLUDES, ProductSourceList.SOURCE_EXCLUDES);
+            }
+        }
+    }
+
+    @Test
+    void everyShapeHasItsOwnStableTemplate() {
+        ProductSearchTemplates other = new ProductSearchTemplates(null, new ProductSearchQueryFactory(100, 50, 10, 1000), false);
+        Set<String> ids = new HashSet<>();
+
+        for (ProductQueryShape shape : ProductQueryShape.all()) {
+            ProductSearchCriteria criteria = criteria(shape, false);
+            String id = templates.buildRequest("products", criteria, 10, null, null).getScript();
+
+            assertThat(id).matches("products-search-" + shape.getName().replace('+', '-') + "-[0-9a-f]{12}");
+            assertThat(other.buildRequest("products", criteria, 10, null, null).getScript()).isEqualTo(id);
+            ids.add(id);
+        }
+        assertThat(ids).hasSize(ProductQueryShape.all().size());
+    }
+
+    @Test
+    void aggregateDoesNotCountForPagesWithCursor() {
+        ProductSearchCriteria firstPage = ProductSearchCriteria.builder().nombre("silla").aggregate(true).build();
+        ProductSearchCriteria nextPage = ProductSearchCriteria.builder().nombre("silla").aggregate(true).cursor("abc").build();
+
+        assertThat(ProductQueryShape.of(firstPage).getName()).isEqualTo("nombre+aggregate");
+        assertThat(ProductQueryShape.of(nextPage).getName()).isEqualTo("nombre");
+        assertThat(ProductQueryShape.of(ProductSearchCriteria.builder().empresaAsociada("acme").build()).getName()).isEqualTo("match_all");
+    }
+
+    private void assertEquivalent(String description, ProductSearchCriteria criteria, String[] includes, String[] excludes) {
+        //Lo mismo que DataAccessRepository#buildSearchSource
+        SearchSourceBuilder direct = queryFactory.buildSearch(criteria, 25, ProductQueryShape.of(criteria).hasAggregate());
+        if (includes != null || excludes != null) {
+            direct.fetchSource(includes, excludes);
+        }
+        Map<String, Object> expected = toMap(Strings.toString(direct));
+        Map<String, Object> rendered = toMap(render(ProductQueryShape.of(criteria),
+                templates.buildRequest("products", criteria, 25, includes, excludes)));
+
+        assertThat(clauses(rendered)).as(description).isEqualTo(clauses(expected));
+        assertThat(withoutQuery(rendered)).as(description).isEqualTo(withoutQuery(expected));
+    }
+
+    /**
+     * Renderiza la plantilla con los parametros tal y como los recibe el cluster: el cliente los escribe en el
+     * cuerpo de la peticion, asi que los filtros llegan como JSON y no como consultas.
+     */
+    private String render(ProductQueryShape shape, SearchTemplateRequest request) {
+        @SuppressWarnings("unchecked")
+        Map<String, Object> params = (Map<String, Object>) toMap(Strings.toString(request)).get("params");
+        return mustache.compile(shape.getName(), queryFactory.buildSearchTemplate(shape), TemplateScript.CONTEXT, Map.of())
+                .newInstance(params)
+                .execute();
+    }
+
+    /**
+     * Clausulas de la consulta por contexto. La plantilla envuelve la consulta de la forma en un bool exterior con
+     * los filtros, asi que se comparan las clausulas aplanadas y no el arbol. El match_all de must no filtra nada.
+     */
+    private static Map<String, List<Object>> clauses(Map<String, Object> search) {
+        Map<String, List<Object>> clauses = Map.of("must", new ArrayList<>(), "filter", new ArrayList<>());
+        flatten(search.get("query"), "must", clauses);
+        clauses.values().forEach(list -> list.sort((a, b) -> a.toString().compareTo(b.toString())));
+        return clauses;
+    }
+
+    @SuppressWarnings("unchecked")
+    private static void flatten(Object query, String context, Map<String, List<Object>> clauses) {
+        Map<String, Object> clause = (Map<String, Object>) query;
+        Map<String, Object> bool = (Map<String, Object>) clause.get("bool");
+        if (bool == null) {
+            if (!("must".equals(context) && clause.containsKey("match_all"))) {
+                clauses.get(context).add(clause);
+            }
+            return;
+        }
+        assertThat((List<Object>) bool.getOrDefault("should", List.of())).isEmpty();
+        assertThat((List<Object>) bool.getOrDefault("must_not", List.of())).isEmpty();
+        ((List<Object>) bool.getOrDefault("must", List.of())).forEach(child -> flatten(child, context, clauses));
+        ((List<Object>) bool.getOrDefault("filter", List.of())).forEach(child -> flatten(child, "filter", clauses));
+    }
+
+    @SuppressWarnings("unchecked")
+    private static Map<String, Object> withoutQuery(Map<String, Object> search) {
+        Map<String, Object> rest = new HashMap<>(search);
+        rest.remove("query");
+        //Sin includes ni excludes la plantilla envia un _source vacio, que equivale a no enviarlo
+        Map<String, Object> source = (Map<String, Object>) rest.get("_source");
+        if (source != null && source.values().stream().allMatch(fields -> ((List<Object>) fields).isEmpty())) {
+            rest.remove("_source");
+        }
+        return rest;
+    }
+
+    private static Map<String, Object> toMap(String json) {
+        return XContentHelper.convertToMap(XContentType.JSON.xContent(), json, true);
+    }
+
+    /**
+     * Criterios de la forma, con valores que hay que escapar en JSON y, si se pide, todos los filtros exactos.
+     */
+    private static ProductSearchCriteria criteria(ProductQueryShape shape, boolean filtered) {
+        ProductSearchCriteria.ProductSearchCriteriaBuilder criteria = ProductSearchCriteria.builder()
+                .nombre(shape.hasNombre() ? "Silla \"roja\" ñ\\" : null)
+                .categoria(shape.hasCategoria() ? "hogar & jardin" : null)
+                .descripcionCorta(shape.hasDescripcionCorta() ? "{{size}} </script>" : null)
+                .descripcionLarga(shape.hasDescripcionLarga() ? "linea 1\nlinea 2\t€" : null)
+                .aggregate(shape.hasAggregate());
+        if (filtered) {
+            criteria.empresaAsociada("Acme \"S.A.\"").puntuacion(4L).valorunitario(20.5).indValorUnitario(2)
+                    .precioMin(10.0).precioMax(99.99);
+        }
+        return criteria.build();
+    }
+}
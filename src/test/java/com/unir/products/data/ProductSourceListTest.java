@@ -0,0 +1,106 @@
+package com.unir.products.data;
+
+import com.fasterxml.jackson.databind.JsonNode;
+import com.fasterxml.jackson.databind.ObjectMapper;
+import com.fasterxml.jackson.databind.node.ObjectNode;
+import org.elasticsearch.common.bytes.BytesArray;
+import org.elasticsearch.search.SearchHit;
+import org.junit.jupiter.api.BeforeEach;
+import org.junit.jupiter.api.Test;
+import org.springframework.data.elasticsearch.core.ElasticsearchOperations;
+import org.springframework.data.elasticsearch.core.convert.MappingElasticsearchConverter;
+import org.springframework.data.elasticsearch.core.mapping.SimpleElasticsearchMappingContext;
+
+import java.io.ByteArrayOutputStream;
+import java.util.Map;
+
+import static org.assertj.core.api.Assertions.assertThat;
+import static org.mockito.Mockito.mock;
+import static org.mockito.Mockito.when;
+
+class ProductSourceListTest {
+
+    private final ObjectMapper objectMapper = new ObjectMapper();
+    private ProductSearchResultMapper mapper;
+
+    @BeforeEach
+    void setUp() {
+        MappingElasticsearchConverter converter = new MappingElasticsearchConverter(new SimpleElasticsearchMappingContext());
+        converter.afterPropertiesSet();
+        ElasticsearchOperations operations = mock(ElasticsearchOperations.class);
+        when(operations.getElasticsearchConverter()).thenReturn(converter);
+        mapper = new ProductSearchResultMapper("http://localhost:8088", operations, new ProductSearchQueryFactory(100, 50, 10, 1000));
+    }
+
+    //La salida ligera no lleva los campos que faltan en el _source: se compara con la de los productos proyectados
+    @Test
+    void leanOutputMatchesBeanOutput() throws Exception {
+        SearchHit[] hits = {
+                hit("a1", "{\"codigo\":\"C-1\",\"nombre\":\"Silla \\\"roja\\\"\",\"categoria\":\"hogar\",\"precio\":120,"
+                        + "\"cantidadDisponible\":3,\"puntuacion\":4,\"imagen\":\"https://img/1.png\",\"updatedAt\":1700000000000}"),
+                hit("a2", "{\"codigo\":\"C-2\",\"nombre\":\"Mesa ñandú\",\"precio\":80}"),
+                hit("a3", "{}"),
+                hit("a4", "{ }")
+        };
+
+        JsonNode bean = objectMapper.readTree(objectMapper.writeValueAsString(mapper.toProducts(hits, true)));
+
+        assertThat(objectMapper.readTree(objectMapper.writeValueAsString(mapper.toProductSources(hits)))).isEqualTo(bean);
+        ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+        objectMapper.writeValue(bytes, mapper.toProductSources(hits));
+        assertThat(objectMapper.readTree(bytes.toByteArray())).isEqualTo(bean);
+    }
+
+    @Test
+    void leanOutputSpansSeveralGeneratorBuffers() throws Exception {
+        //Fuentes mas grandes que el buffer del generador, con caracteres de varios bytes que caen en cualquier corte
+        SearchHit[] hits = new SearchHit[20];
+        for (int i = 0; i < hits.length; i++) {
+            hits[i] = hit("a" + i, "{\"codigo\":\"C-" + i + "\",\"descripcionLarga\":\"" + "ñandú €".repeat(1000 + i) + "\"}");
+        }
+
+        ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+        objectMapper.writeValue(bytes, mapper.toProductSources(hits));
+
+        assertThat(objectMapper.readTree(bytes.toByteArray()))
+                .isEqualTo(objectMapper.readTree(objectMapper.writeValueAsString(mapper.toProducts(hits, true))));
+    }
+
+    @Test
+    void leanOutputKeepsIndexFieldNames() throws Exception {
+        SearchHit[] hits = {hit("a1", "{\"codigo\":\"C-1\",\"Producto\":\"silla\"}")};
+
+        ObjectNode bean = (ObjectNode) objectMapper.readTree(objectMapper.writeValueAsString(mapper.toProducts(hits, true))).get(0);
+        JsonNode lean = objectMapper.readTree(objectMapper.writeValueAsString(mapper.toProductSources(hits))).get(0);
+
+        //Es la unica diferencia documentada: la propiedad del bean es "producto" y el campo del indice "Producto"
+        bean.set("Producto", bean.remove("producto"));
+        assertThat(lean).isEqualTo(bean);
+    }
+
+    @Test
+    void leanOutputFallsBackToBeanWhenSourceIsNotCompact() throws Exception {
+        SearchHit[] hits = {hit("a1", " {\"codigo\":\"C-1\"}")};
+
+        assertThat(objectMapper.readTree(objectMapper.writeValueAsString(mapper.toProductSources(hits))))
+                .isEqualTo(objectMapper.readTree(objectMapper.writeValueAsString(mapper.toProducts(hits, true))));
+    }
+
+    @Test
+    void onlyProjectedProductsLeaveOutMissingFields() throws Exception {
+        SearchHit[] hits = {hit("a1", "{\"codigo\":\"C-1\"}")};
+
+        JsonNode full = objectMapper.readTree(objectMapper.writeValueAsString(mapper.toProducts(hits))).get(0);
+        JsonNode projected = objectMapper.readTree(objectMapper.writeValueAsString(mapper.toProducts(hits, true))).get(0);
+
+        assertThat(full.has("nombre")).isTrue();
+        assertThat(full.get("nombre").isNull()).isTrue();
+        assertThat(projected.fieldNames()).toIterable().containsExactlyInAnyOrder("id", "codigo");
+    }
+
+    private static SearchHit hit(String id, String source) {
+        SearchHit hit = new SearchHit(0, id, null, Map.of(), Map.of());
+        hit.sourceRef(new BytesArray(source));
+        return hit;
+    }
+}
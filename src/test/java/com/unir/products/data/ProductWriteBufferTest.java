@@ -0,0 +1,296 @@
+package com.unir.products.data;
+
+import io.micrometer.core.instrument.simple.SimpleMeterRegistry;
+import org.elasticsearch.ElasticsearchStatusException;
+import org.elasticsearch.action.ActionListener;
+import org.elasticsearch.action.DocWriteRequest;
+import org.elasticsearch.action.bulk.BulkItemResponse;
+import org.elasticsearch.action.bulk.BulkRequest;
+import org.elasticsearch.action.bulk.BulkResponse;
+import org.elasticsearch.action.delete.DeleteRequest;
+import org.elasticsearch.action.index.IndexRequest;
+import org.elasticsearch.action.index.IndexResponse;
+import org.elasticsearch.action.support.WriteRequest;
+import org.elasticsearch.client.RequestOptions;
+import org.elasticsearch.client.RestHighLevelClient;
+import org.elasticsearch.index.shard.ShardId;
+import org.elasticsearch.rest.RestStatus;
+import org.junit.jupiter.api.BeforeEach;
+import org.junit.jupiter.api.Test;
+import org.springframework.dao.TransientDataAccessResourceException;
+
+import java.io.IOException;
+import java.util.ArrayDeque;
+import java.util.Deque;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.TimeUnit;
+
+import static org.assertj.core.api.Assertions.assertThat;
+import static org.assertj.core.api.Assertions.assertThatThrownBy;
+import static org.mockito.ArgumentMatchers.any;
+import static org.mockito.ArgumentMatchers.eq;
+import static org.mockito.Mockito.doAnswer;
+import static org.mockito.Mockito.mock;
+import static org.mockito.Mockito.when;
+
+class ProductWriteBufferTest {
+
+    private final RestHighLevelClient client = mock(RestHighLevelClient.class);
+    private final ElasticsearchResilience resilience = mock(ElasticsearchResilience.class);
+    private final ProductsQueryCache queryCache = mock(ProductsQueryCache.class);
+    private final ProductsByIdCache productCache = mock(ProductsByIdCache.class);
+    private final List<BulkRequest> sent = new CopyOnWriteArrayList<>();
+    // Respuesta de cada bulk, en orden; sin ninguna pendiente todos los elementos se escriben bien
+    private final Deque<Responder> responses = new ArrayDeque<>();
+
+    @FunctionalInterface
+    private interface Responder {
+        BulkResponse respond(BulkRequest request) throws Exception;
+    }
+
+    @BeforeEach
+    @SuppressWarnings("unchecked")
+    void setUp() throws Exception {
+        when(resilience.execute(eq("write_behind"), any())).thenAnswer(invocation -> {
+            ElasticsearchResilience.AsyncCall<BulkResponse> call = invocation.getArgument(1);
+            CompletableFuture<BulkResponse> response = new CompletableFuture<>();
+            call.send(RequestOptions.DEFAULT, ActionListener.wrap(response::complete, response::completeExceptionally));
+            try {
+                return response.get();
+            } catch (ExecutionException e) {
+                throw e.getCause();
+            }
+        });
+        doAnswer(invocation -> {
+            BulkRequest request = invocation.getArgument(0);
+            ActionListener<BulkResponse> listener = invocation.getArgument(2);
+            sent.add(request);
+            Responder responder;
+            synchronized (responses) {
+                responder = responses.isEmpty() ? ProductWriteBufferTest::succeeded : responses.poll();
+            }
+            BulkResponse response;
+            try {
+                response = responder.respond(request);
+            } catch (Exception e) {
+                listener.onFailure(e);
+                return null;
+            }
+            listener.onResponse(response);
+            return null;
+        }).when(client).bulkAsync(any(), any(), any());
+    }
+
+    @Test
+    void sendsOnlyTheLastWriteOfEachDocument() throws Exception {
+        ProductWriteBuffer buffer = buffer(1000, 1000);
+
+        CompletableFuture<Void> first = buffer.write(index("a", "v1"), false);
+        CompletableFuture<Void> second = buffer.write(index("b", "v1"), false);
+        CompletableFuture<Void> last = buffer.write(index("a", "v2"), false);
+        CompletableFuture<Void> deleted = buffer.write(new DeleteRequest("products", "c"), false);
+
+        assertThat(first).isCompleted();
+        assertThat(last).isNotDone();
+
+        buffer.drain();
+
+        assertThat(sent).hasSize(1);
+        List<DocWriteRequest<?>> requests = sent.get(0).requests();
+        assertThat(requests).extracting(DocWriteRequest::id).containsExactly("a", "b", "c");
+        assertThat(((IndexRequest) requests.get(0)).sourceAsMap()).containsEntry("version", "v2");
+        assertThat(sent.get(0).getRefreshPolicy()).isEqualTo(WriteRequest.RefreshPolicy.NONE);
+        assertThat(second).isCompleted();
+        assertThat(last).isCompleted();
+        assertThat(deleted).isCompleted();
+    }
+
+    @Test
+    void flushesEarlyOnceMaxActionsIsReached() throws Exception {
+        ProductWriteBuffer buffer = buffer(2, 1000);
+
+        CompletableFuture<Void> first = buffer.write(index("a", "v1"), false);
+        CompletableFuture<Void> second = buffer.write(index("b", "v1"), false);
+
+        CompletableFuture.allOf(first, second).get(5, TimeUnit.SECONDS);
+        assertThat(sent).hasSize(1);
+        assertThat(sent.get(0).requests()).hasSize(2);
+        buffer.drain();
+    }
+
+    @Test
+    void waitForRefreshSendsAtOnceWithWaitUntil() throws Exception {
+        ProductWriteBuffer buffer = buffer(1000, 1000);
+
+        buffer.write(index("a", "v1"), false);
+        buffer.write(index("b", "v1"), true).get(5, TimeUnit.SECONDS);
+
+        assertThat(sent).hasSize(1);
+        assertThat(sent.get(0).requests()).hasSize(2);
+        assertThat(sent.get(0).getRefreshPolicy()).isEqualTo(WriteRequest.RefreshPolicy.WAIT_UNTIL);
+        buffer.drain();
+    }
+
+    @Test
+    void requeuesWritesWhileTheClusterIsUnavailable() throws Exception {
+        ProductWriteBuffer buffer = buffer(1000, 5000);
+        responses.add(request -> {
+            throw new IOException("conexion rechazada");
+        });
+
+        CompletableFuture<Void> written = buffer.write(index("a", "v1"), false);
+        buffer.drain();
+
+        assertThat(sent).hasSize(2);
+        assertThat(sent.get(1).requests()).extracting(DocWriteRequest::id).containsExactly("a");
+        assertThat(written).isCompleted();
+        assertThat(written.isCompletedExceptionally()).isFalse();
+    }
+
+    @Test
+    void requeuesRetryableItemsAndFailsTheRest() throws Exception {
+        ProductWriteBuffer buffer = buffer(1000, 5000);
+        responses.add(request -> response(request, RestStatus.CREATED, RestStatus.TOO_MANY_REQUESTS, RestStatus.BAD_REQUEST));
+
+        CompletableFuture<Void> ok = buffer.write(index("a", "v1"), false);
+        CompletableFuture<Void> throttled = buffer.write(index("b", "v1"), false);
+        CompletableFuture<Void> invalid = buffer.write(index("c", "v1"), false);
+        buffer.drain();
+
+        assertThat(sent).hasSize(2);
+        assertThat(sent.get(1).requests()).extracting(DocWriteRequest::id).containsExactly("b");
+        assertThat(ok.isCompletedExceptionally()).isFalse();
+        assertThat(throttled.isCompletedExceptionally()).isFalse();
+        assertThat(invalid).isCompletedExceptionally();
+    }
+
+    @Test
+    void aNewerWriteWinsOverARequeuedOne() throws Exception {
+        //Con max-actions=1 cada escritura encarga un envio en el hilo del buffer
+        ProductWriteBuffer buffer = buffer(1, 5000);
+        CompletableFuture<CompletableFuture<Void>> newer = new CompletableFuture<>();
+        responses.add(request -> {
+            //Llega otra escritura del mismo documento mientras el bulk esta en vuelo
+            newer.complete(buffer.write(index("a", "v2"), false));
+            throw new IOException("conexion rechazada");
+        });
+
+        CompletableFuture<Void> older = buffer.write(index("a", "v1"), false);
+
+        newer.get(5, TimeUnit.SECONDS).get(5, TimeUnit.SECONDS);
+        older.get(5, TimeUnit.SECONDS);
+        assertThat(sent).hasSize(2);
+        assertThat(((IndexRequest) sent.get(1).requests().get(0)).sourceAsMap()).containsEntry("version", "v2");
+        buffer.drain();
+    }
+
+    @Test
+    void awaitPendingSendsTheDocumentAtOnceAndWaitsForIt() throws Exception {
+        ProductWriteBuffer buffer = buffer(1000, 1000);
+
+        assertThat(buffer.awaitPending("products", "a")).isCompleted();
+        CompletableFuture<Void> written = buffer.write(index("a", "v1"), false);
+        buffer.write(index("b", "v1"), false);
+
+        buffer.awaitPending("products", "a").get(5, TimeUnit.SECONDS);
+
+        assertThat(written).isCompleted();
+        assertThat(sent).hasSize(1);
+        assertThat(sent.get(0).requests()).extracting(DocWriteRequest::id).containsExactly("a", "b");
+        buffer.drain();
+    }
+
+    @Test
+    void awaitPendingWaitsForARequeuedWriteAndIgnoresFailures() throws Exception {
+        ProductWriteBuffer buffer = buffer(1000, 5000);
+        CompletableFuture<CompletableFuture<Void>> awaited = new CompletableFuture<>();
+        responses.add(request -> {
+            //Se espera al documento mientras su primer envio esta en vuelo y acaba reencolado
+            awaited.complete(buffer.awaitPending("products", "a"));
+            throw new IOException("conexion rechazada");
+        });
+        responses.add(request -> response(request, RestStatus.BAD_REQUEST));
+
+        CompletableFuture<Void> written = buffer.write(index("a", "v1"), true);
+        CompletableFuture<Void> pending = awaited.get(5, TimeUnit.SECONDS);
+        assertThat(pending).isNotDone();
+        buffer.drain();
+
+        assertThat(sent).hasSize(2);
+        assertThat(written).isCompletedExceptionally();
+        assertThat(pending.isCompletedExceptionally()).isFalse();
+        pending.get(5, TimeUnit.SECONDS);
+    }
+
+    @Test
+    void rejectsNewDocumentsOnceFull() throws Exception {
+        ProductWriteBuffer buffer = buffer(1000, 1000, 2);
+
+        buffer.write(index("a", "v1"), false);
+        buffer.write(index("b", "v1"), false);
+
+        assertThatThrownBy(() -> buffer.write(index("c", "v1"), false)).isInstanceOf(TransientDataAccessResourceException.class);
+        //Sustituir una escritura pendiente no ocupa sitio nuevo
+        buffer.write(index("a", "v2"), false);
+        //Un borrado y su marca se aceptan juntos o no se aceptan
+        assertThatThrownBy(() -> buffer.write(List.of(new DeleteRequest("products", "a"), new IndexRequest("tombstones").id("a")), false))
+                .isInstanceOf(TransientDataAccessResourceException.class);
+
+        buffer.drain();
+        assertThat(sent.get(0).requests()).extracting(DocWriteRequest::id).containsExactly("a", "b");
+    }
+
+    @Test
+    void drainRejectsNewWritesAndFailsWhatCannotBeSent() throws Exception {
+        ProductWriteBuffer buffer = buffer(1000, 300);
+        for (int i = 0; i < 100; i++) {
+            responses.add(request -> {
+                throw new ElasticsearchStatusException("no disponible", RestStatus.SERVICE_UNAVAILABLE);
+            });
+        }
+
+        CompletableFuture<Void> written = buffer.write(index("a", "v1"), false);
+        long start = System.nanoTime();
+        buffer.drain();
+
+        assertThat(TimeUnit.NANOSECONDS.toMillis(System.nanoTime() - start)).isLessThan(2000);
+        assertThat(written).isCompletedExceptionally();
+        assertThatThrownBy(written::get).hasCauseInstanceOf(TransientDataAccessResourceException.class);
+        assertThatThrownBy(() -> buffer.write(index("b", "v1"), false)).isInstanceOf(TransientDataAccessResourceException.class);
+    }
+
+    private ProductWriteBuffer buffer(int maxActions, long drainTimeoutMillis) {
+        return buffer(maxActions, drainTimeoutMillis, 10000);
+    }
+
+    private ProductWriteBuffer buffer(int maxActions, long drainTimeoutMillis, int maxPending) {
+        //Sin envio periodico: cada test decide cuando se envia
+        return new ProductWriteBuffer(client, resilience, new ElasticsearchMetrics(new SimpleMeterRegistry()), queryCache, productCache,
+                false, "1s", maxActions, maxPending, drainTimeoutMillis + "ms");
+    }
+
+    private static IndexRequest index(String id, String version) {
+        return new IndexRequest("products").id(id).source(Map.of("version", version));
+    }
+
+    private static BulkResponse succeeded(BulkRequest request) {
+        return response(request, request.requests().stream().map(item -> RestStatus.CREATED).toArray(RestStatus[]::new));
+    }
+
+    private static BulkResponse response(BulkRequest request, RestStatus... statuses) {
+        BulkItemResponse[] items = new BulkItemResponse[statuses.length];
+        for (int i = 0; i < statuses.length; i++) {
+            DocWriteRequest<?> item = request.requests().get(i);
+            items[i] = statuses[i].getStatus() < 300
+                    ? new BulkItemResponse(i, item.opType(), new IndexResponse(new ShardId("products", "uuid", 0), "_doc", item.id(), 1, 1, 1, true))
+                    : new BulkItemResponse(i, item.opType(), new BulkItemResponse.Failure("products", "_doc", item.id(),
+                    new ElasticsearchStatusException("rechazado", statuses[i]), statuses[i]));
+        }
+        return new BulkResponse(items, 1);
+    }
+
+}
@@ -0,0 +1,138 @@
+package com.unir.products.data;
+
+import com.unir.products.model.request.ProductSearchCriteria;
+import com.unir.products.model.response.ProductsQueryResponse;
+import io.micrometer.core.instrument.simple.SimpleMeterRegistry;
+import org.junit.jupiter.api.Test;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.CompletableFuture;
+import java.util.function.Function;
+
+import static org.assertj.core.api.Assertions.assertThat;
+
+class ProductsQueryCacheTest {
+
+    private final ProductsQueryCache cache = new ProductsQueryCache(100, "1m", "0ms", "10m", new SimpleMeterRegistry());
+    private final List<ProductSearchCriteria> loaded = new ArrayList<>();
+    private final List<CompletableFuture<ProductsQueryResponse>> searches = new ArrayList<>();
+
+    private final Function<ProductSearchCriteria, CompletableFuture<ProductsQueryResponse>> loader = criteria -> {
+        loaded.add(criteria);
+        CompletableFuture<ProductsQueryResponse> search = new CompletableFuture<>();
+        searches.add(search);
+        return search;
+    };
+
+    @Test
+    void normalizesEquivalentCriteriaToOneEntry() {
+        cache.get(ProductSearchCriteria.builder().nombre("silla").categoria("hogar").fields("Nombre,Precio").build(), loader);
+        searches.get(0).complete(new ProductsQueryResponse());
+
+        CompletableFuture<ProductsQueryResponse> same = cache.get(ProductSearchCriteria.builder()
+                .nombre("  silla ").categoria("hogar\t").empresaAsociada("   ").cursor("").fields(" nombre,precio ")
+                .aggregate(false).profile(false).lean(false).build(), loader);
+
+        assertThat(loaded).hasSize(1);
+        assertThat(same).isCompleted();
+        assertThat(loaded.get(0).getNombre()).isEqualTo("silla");
+        assertThat(loaded.get(0).getFields()).isEqualTo("nombre,precio");
+        assertThat(loaded.get(0).getEmpresaAsociada()).isNull();
+    }
+
+    @Test
+    void ignoresIndValorUnitarioWithoutValorUnitario() {
+        cache.get(ProductSearchCriteria.builder().nombre("silla").indValorUnitario(1).build(), loader);
+        searches.get(0).complete(new ProductsQueryResponse());
+
+        cache.get(ProductSearchCriteria.builder().nombre("silla").indValorUnitario(2).build(), loader);
+
+        assertThat(loaded).hasSize(1);
+    }
+
+    @Test
+    void keepsDifferentCriteriaApart() {
+        cache.get(ProductSearchCriteria.builder().nombre("silla").build(), loader);
+        cache.get(ProductSearchCriteria.builder().nombre("Silla").build(), loader);
+        cache.get(ProductSearchCriteria.builder().nombre("silla").size(20).build(), loader);
+        cache.get(ProductSearchCriteria.builder().nombre("silla").aggregate(true).build(), loader);
+
+        assertThat(loaded).hasSize(4);
+    }
+
+    @Test
+    void coalescesConcurrentIdenticalSearches() {
+        CompletableFuture<ProductsQueryResponse> first = cache.get(ProductSearchCriteria.builder().nombre("silla").build(), loader);
+        CompletableFuture<ProductsQueryResponse> second = cache.get(ProductSearchCriteria.builder().nombre("silla ").build(), loader);
+
+        assertThat(loaded).hasSize(1);
+        assertThat(second).isNotDone();
+
+        ProductsQueryResponse response = new ProductsQueryResponse();
+        searches.get(0).complete(response);
+
+        assertThat(first).isCompletedWithValue(response);
+        assertThat(second).isCompletedWithValue(response);
+    }
+
+    @Test
+    void sharesFailuresWithoutCachingThem() {
+        CompletableFuture<ProductsQueryResponse> first = cache.get(ProductSearchCriteria.builder().nombre("silla").build(), loader);
+        CompletableFuture<ProductsQueryResponse> second = cache.get(ProductSearchCriteria.builder().nombre("silla").build(), loader);
+        searches.get(0).completeExceptionally(new IllegalStateException("fallo"));
+
+        assertThat(first).isCompletedExceptionally();
+        assertThat(second).isCompletedExceptionally();
+
+        cache.get(ProductSearchCriteria.builder().nombre("silla").build(), loader);
+        assertThat(loaded).hasSize(2);
+    }
+
+    @Test
+    void doesNotCacheOrCoalescePagedOrProfiledSearches() {
+        cache.get(ProductSearchCriteria.builder().nombre("silla").cursor("abc").build(), loader);
+        cache.get(ProductSearchCriteria.builder().nombre("silla").cursor("abc").build(), loader);
+        cache.get(ProductSearchCriteria.builder().nombre("silla").profile(true).build(), loader);
+        cache.get(ProductSearchCriteria.builder().nombre("silla").profile(true).build(), loader);
+
+        assertThat(loaded).hasSize(4);
+    }
+
+    @Test
+    void writesInvalidateCachedAndInFlightSearches() {
+        cache.get(ProductSearchCriteria.builder().nombre("silla").build(), loader);
+        searches.get(0).complete(new ProductsQueryResponse());
+        cache.get(ProductSearchCriteria.builder().nombre("mesa").build(), loader);
+
+        cache.invalidateAll();
+
+        cache.get(ProductSearchCriteria.builder().nombre("silla").build(), loader);
+        cache.get(ProductSearchCriteria.builder().nombre("mesa").build(), loader);
+        assertThat(loaded).hasSize(4);
+    }
+
+    @Test
+    void doesNotCacheSearchesWithinTheWriteGrace() {
+        ProductsQueryCache graceful = new ProductsQueryCache(100, "1m", "1h", "10m", new SimpleMeterRegistry());
+        graceful.invalidateAll();
+
+        graceful.get(ProductSearchCriteria.builder().nombre("silla").build(), loader);
+        searches.get(0).complete(new ProductsQueryResponse());
+        graceful.get(ProductSearchCriteria.builder().nombre("silla").build(), loader);
+
+        assertThat(loaded).hasSize(2);
+    }
+
+    @Test
+    void keepsLastGoodResponseForFallbackAfterWrites() {
+        ProductsQueryResponse response = new ProductsQueryResponse();
+        cache.get(ProductSearchCriteria.builder().nombre("silla").build(), loader);
+        searches.get(0).complete(response);
+
+        cache.invalidateAll();
+
+        assertThat(cache.getStale(ProductSearchCriteria.builder().nombre(" silla").build())).isSameAs(response);
+        assertThat(cache.getStale(ProductSearchCriteria.builder().nombre("silla").cursor("abc").build())).isNull();
+    }
+}
@@ -0,0 +1,75 @@
+package com.unir.products.data;
+
+import org.junit.jupiter.api.Test;
+
+import java.nio.charset.StandardCharsets;
+import java.util.Base64;
+
+import static org.assertj.core.api.Assertions.assertThat;
+import static org.assertj.core.api.Assertions.assertThatIllegalArgumentException;
+
+class SearchCursorTest {
+
+    @Test
+    void roundTripsPitAndSortValues() {
+        SearchCursor cursor = new SearchCursor("pit-1", new Object[]{"hogar", 120, "C-1", "a1"});
+
+        SearchCursor decoded = SearchCursor.decode(cursor.encode());
+
+        assertThat(decoded.getPit()).isEqualTo("pit-1");
+        assertThat(decoded.getAfter()).containsExactly("hogar", 120, "C-1", "a1");
+    }
+
+    @Test
+    void roundTripsFirstPageCursorWithoutPit() {
+        SearchCursor decoded = SearchCursor.decode(new SearchCursor(null, new Object[]{1.5, "C-1", "a1"}).encode());
+
+        assertThat(decoded.getPit()).isNull();
+        assertThat(decoded.getAfter()).containsExactly(1.5, "C-1", "a1");
+    }
+
+    @Test
+    void isUrlSafe() {
+        String encoded = new SearchCursor("p+/=?&", new Object[]{"ñ/+", Long.MAX_VALUE}).encode();
+
+        assertThat(encoded).matches("[A-Za-z0-9_-]+");
+    }
+
+    @Test
+    void rejectsCursorThatIsNotBase64() {
+        assertThatIllegalArgumentException().isThrownBy(() -> SearchCursor.decode("no es un cursor!"))
+                .withMessage("Cursor no valido");
+    }
+
+    @Test
+    void rejectsTruncatedCursor() {
+        String encoded = new SearchCursor("pit-1", new Object[]{"hogar", 120, "C-1", "a1"}).encode();
+
+        assertThatIllegalArgumentException().isThrownBy(() -> SearchCursor.decode(encoded.substring(0, encoded.length() / 2)))
+                .withMessage("Cursor no valido");
+    }
+
+    @Test
+    void rejectsCursorThatIsNotJson() {
+        assertThatIllegalArgumentException().isThrownBy(() -> SearchCursor.decode(encode("pit=1&after=2")))
+                .withMessage("Cursor no valido");
+    }
+
+    @Test
+    void rejectsCursorWithUnknownFields() {
+        assertThatIllegalArgumentException().isThrownBy(() -> SearchCursor.decode(encode("{\"after\":[1],\"from\":10000}")))
+                .withMessage("Cursor no valido");
+    }
+
+    @Test
+    void rejectsCursorWithoutSortValues() {
+        assertThatIllegalArgumentException().isThrownBy(() -> SearchCursor.decode(encode("{\"pit\":\"pit-1\"}")))
+                .withMessage("Cursor no valido");
+        assertThatIllegalArgumentException().isThrownBy(() -> SearchCursor.decode(encode("{\"pit\":\"pit-1\",\"after\":[]}")))
+                .withMessage("Cursor no valido");
+    }
+
+    private static String encode(String json) {
+        return Base64.getUrlEncoder().withoutPadding().encodeToString(json.getBytes(StandardCharsets.UTF_8));
+    }
+}